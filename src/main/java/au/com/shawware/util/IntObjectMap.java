@@ -0,0 +1,401 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A map from primitive <code>int</code> keys to non-null values. The keys
+ * are never boxed: they are held in an open-addressed table with linear
+ * probing alongside their values, which uses far less memory than a
+ * {@link HashMap} of the same size. The table only grows if the map is
+ * filled beyond the size it was constructed for.
+ * <p>
+ * This map is not thread-safe.
+ *
+ * @param <V> the type of the values
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class IntObjectMap<V>
+{
+    /** The default number of entries to size the map for. */
+    private static final int DEFAULT_SIZE = 16;
+    /** The highest proportion of the table that may be used. */
+    private static final float LOAD_FACTOR = 0.75f;
+    /** The largest table that can be allocated. */
+    private static final int MAX_CAPACITY = 1 << 30;
+    /** Spreads sequential keys across the table (the golden ratio). */
+    private static final int SPREAD = 0x9E3779B9;
+
+    /** The keys, where the corresponding value is not null. */
+    private int[] mKeys;
+    /** The values, null where a slot is empty. */
+    private Object[] mValues;
+    /** The number of entries. */
+    private int mSize;
+    /** The number of entries at which the table must grow. */
+    private int mThreshold;
+
+    /**
+     * Constructs a new, empty map.
+     */
+    public IntObjectMap()
+    {
+        this(DEFAULT_SIZE);
+    }
+
+    /**
+     * Constructs a new, empty map sized to hold the given number of
+     * entries without growing.
+     *
+     * @param expectedSize the expected number of entries
+     */
+    public IntObjectMap(int expectedSize)
+    {
+        if (expectedSize < 0)
+        {
+            throw new IllegalArgumentException("Invalid size: " + expectedSize); //$NON-NLS-1$
+        }
+        allocate(capacityFor(expectedSize));
+        mSize = 0;
+    }
+
+    /**
+     * @return The number of entries in this map.
+     */
+    public int size()
+    {
+        return mSize;
+    }
+
+    /**
+     * @return Whether this map is empty.
+     */
+    public boolean isEmpty()
+    {
+        return mSize == 0;
+    }
+
+    /**
+     * Retrieves the value for the given key.
+     *
+     * @param key the key
+     *
+     * @return The key's value or null if the key is not in this map.
+     */
+    @SuppressWarnings("unchecked")
+    public V get(int key)
+    {
+        int slot = find(key);
+        return (slot < 0) ? null : (V)mValues[slot];
+    }
+
+    /**
+     * Determines whether the given key is in this map.
+     *
+     * @param key the key
+     *
+     * @return Whether the key is in this map.
+     */
+    public boolean containsKey(int key)
+    {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Sets the value for the given key.
+     *
+     * @param key the key
+     * @param value the value (not null)
+     *
+     * @return The key's previous value or null if the key was not in this map.
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value)
+    {
+        if (value == null)
+        {
+            throw new IllegalArgumentException("Null value"); //$NON-NLS-1$
+        }
+        int mask = mKeys.length - 1;
+        int slot = hash(key, mask);
+        while (mValues[slot] != null)
+        {
+            if (mKeys[slot] == key)
+            {
+                V previous = (V)mValues[slot];
+                mValues[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        if (++mSize > mThreshold)
+        {
+            resize(mKeys.length * 2);
+        }
+        return null;
+    }
+
+    /**
+     * Adds every entry in the given map to this map.
+     *
+     * @param map the map to add
+     */
+    public void putAll(IntObjectMap<? extends V> map)
+    {
+        if (capacityFor(mSize + map.mSize) > mKeys.length)
+        {
+            resize(capacityFor(mSize + map.mSize));
+        }
+        map.forEach(this::put);
+    }
+
+    /**
+     * Removes the given key from this map.
+     *
+     * @param key the key
+     *
+     * @return The key's value or null if the key was not in this map.
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key)
+    {
+        int slot = find(key);
+        if (slot < 0)
+        {
+            return null;
+        }
+        V previous = (V)mValues[slot];
+        mValues[slot] = null;
+        mSize--;
+        // Shift back any later entries in the same run that can now be
+        // found sooner, so that no lookup stops early at the new gap.
+        int mask = mKeys.length - 1;
+        int gap = slot;
+        int next = (slot + 1) & mask;
+        while (mValues[next] != null)
+        {
+            int home = hash(mKeys[next], mask);
+            if (((next - home) & mask) >= ((next - gap) & mask))
+            {
+                mKeys[gap] = mKeys[next];
+                mValues[gap] = mValues[next];
+                mValues[next] = null;
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return previous;
+    }
+
+    /**
+     * Removes every entry from this map.
+     */
+    public void clear()
+    {
+        Arrays.fill(mValues, null);
+        mSize = 0;
+    }
+
+    /**
+     * @return This map's keys in ascending order.
+     */
+    public int[] keys()
+    {
+        int[] keys = new int[mSize];
+        int index = 0;
+        for (int slot = 0; slot < mKeys.length; slot++)
+        {
+            if (mValues[slot] != null)
+            {
+                keys[index++] = mKeys[slot];
+            }
+        }
+        Arrays.sort(keys);
+        return keys;
+    }
+
+    /**
+     * @return This map's values in no particular order.
+     */
+    @SuppressWarnings("unchecked")
+    public List<V> values()
+    {
+        List<V> values = new ArrayList<>(mSize);
+        for (Object value : mValues)
+        {
+            if (value != null)
+            {
+                values.add((V)value);
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Performs the given action on every entry in this map, in no
+     * particular order.
+     *
+     * @param action the action to perform
+     */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super V> action)
+    {
+        for (int slot = 0; slot < mKeys.length; slot++)
+        {
+            if (mValues[slot] != null)
+            {
+                action.visit(mKeys[slot], (V)mValues[slot]);
+            }
+        }
+    }
+
+    /**
+     * Copies this map into a standard map, eg. for code that needs one.
+     *
+     * @return The standard map.
+     */
+    @SuppressWarnings("boxing")
+    public Map<Integer, V> toMap()
+    {
+        Map<Integer, V> map = new HashMap<>(mSize * 4 / 3 + 1);
+        forEach(map::put);
+        return map;
+    }
+
+    /**
+     * Finds the slot holding the given key.
+     *
+     * @param key the key
+     *
+     * @return The key's slot or -1 if the key is not in this map.
+     */
+    private int find(int key)
+    {
+        int mask = mKeys.length - 1;
+        int slot = hash(key, mask);
+        while (mValues[slot] != null)
+        {
+            if (mKeys[slot] == key)
+            {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Re-hashes every entry into a table of the given capacity.
+     *
+     * @param capacity the new capacity (a power of two)
+     */
+    private void resize(int capacity)
+    {
+        if (capacity <= mKeys.length)
+        {
+            if (mKeys.length == MAX_CAPACITY)
+            {
+                throw new IllegalStateException("Map is full"); //$NON-NLS-1$
+            }
+            return;
+        }
+        int[] keys = mKeys;
+        Object[] values = mValues;
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (values[i] != null)
+            {
+                int slot = hash(keys[i], mask);
+                while (mValues[slot] != null)
+                {
+                    slot = (slot + 1) & mask;
+                }
+                mKeys[slot] = keys[i];
+                mValues[slot] = values[i];
+            }
+        }
+    }
+
+    /**
+     * Allocates an empty table of the given capacity.
+     *
+     * @param capacity the capacity (a power of two)
+     */
+    private void allocate(int capacity)
+    {
+        mKeys = new int[capacity];
+        mValues = new Object[capacity];
+        mThreshold = (capacity == MAX_CAPACITY) ? (capacity - 1) : (int)(capacity * LOAD_FACTOR);
+    }
+
+    /**
+     * Determines the table capacity needed to hold the given number of
+     * entries without growing.
+     *
+     * @param size the number of entries
+     *
+     * @return The capacity (a power of two).
+     */
+    private static int capacityFor(int size)
+    {
+        long needed = Math.max(2, (long)Math.ceil(size / LOAD_FACTOR) + 1);
+        if (needed >= MAX_CAPACITY)
+        {
+            return MAX_CAPACITY;
+        }
+        return Integer.highestOneBit((int)needed - 1) << 1;
+    }
+
+    /**
+     * Determines the slot a key would ideally occupy.
+     *
+     * @param key the key
+     * @param mask the table's capacity less one
+     *
+     * @return The key's ideal slot.
+     */
+    private static int hash(int key, int mask)
+    {
+        int hash = key * SPREAD;
+        return (hash ^ (hash >>> 16)) & mask;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mSize, mKeys.length);
+    }
+
+    /**
+     * An action performed on each entry in a map.
+     *
+     * @param <V> the type of the values
+     */
+    @FunctionalInterface
+    public interface Visitor<V>
+    {
+        /**
+         * Performs the action on an entry.
+         *
+         * @param key the entry's key
+         * @param value the entry's value
+         */
+        void visit(int key, V value);
+    }
+}
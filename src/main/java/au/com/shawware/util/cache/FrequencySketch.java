@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Estimates how often each of a large number of integer keys has been
+ * used recently, in a fixed amount of memory, eg. to decide which values
+ * are worth keeping in a cache. This is a count-min sketch: each key is
+ * counted in several rows of small counters and its frequency is the
+ * least of its counts, so collisions can only over-estimate it.
+ * <p>
+ * Counts saturate at {@link #MAXIMUM_FREQUENCY} and every count is halved
+ * once enough uses have been recorded, so that keys that were popular
+ * long ago fade away. This class is thread-safe; concurrent updates may
+ * occasionally be lost, which does not matter for an estimate.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class FrequencySketch
+{
+    /** The highest frequency recorded for a key. */
+    public static final int MAXIMUM_FREQUENCY = 15;
+
+    /** The number of rows of counters. */
+    private static final int DEPTH = 4;
+    /** The multipliers used to hash a key for each row. */
+    private static final int[] SEEDS = { 0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F };
+    /** The number of uses to record for each counter in a row before halving. */
+    private static final int SAMPLE_FACTOR = 10;
+
+    /** The counters, a row after another. */
+    private final AtomicIntegerArray mCounts;
+    /** Selects a counter within a row. */
+    private final int mMask;
+    /** The number of uses to record before halving every count. */
+    private final int mSampleSize;
+    /** The number of uses recorded since the counts were last halved. */
+    private final AtomicInteger mAdditions;
+
+    /**
+     * Constructs a new sketch.
+     *
+     * @param width the number of counters in each row, roughly the number of keys to tell apart
+     */
+    public FrequencySketch(int width)
+    {
+        if (width <= 0)
+        {
+            throw new IllegalArgumentException("Invalid width: " + width); //$NON-NLS-1$
+        }
+        int rowWidth = (width == 1) ? 1 : Integer.highestOneBit(Math.min(width - 1, 1 << 29)) << 1;
+        mCounts     = new AtomicIntegerArray(rowWidth * DEPTH);
+        mMask       = rowWidth - 1;
+        mSampleSize = rowWidth * SAMPLE_FACTOR;
+        mAdditions  = new AtomicInteger();
+    }
+
+    /**
+     * Records a use of the given key.
+     *
+     * @param key the key
+     */
+    public void increment(int key)
+    {
+        boolean added = false;
+        for (int row = 0; row < DEPTH; row++)
+        {
+            int index = index(key, row);
+            if (mCounts.get(index) < MAXIMUM_FREQUENCY)
+            {
+                mCounts.incrementAndGet(index);
+                added = true;
+            }
+        }
+        if (added && (mAdditions.incrementAndGet() == mSampleSize))
+        {
+            reset();
+        }
+    }
+
+    /**
+     * Estimates how often the given key has been used recently.
+     *
+     * @param key the key
+     *
+     * @return The estimated frequency, from zero to {@link #MAXIMUM_FREQUENCY}.
+     */
+    public int frequency(int key)
+    {
+        int frequency = MAXIMUM_FREQUENCY;
+        for (int row = 0; row < DEPTH; row++)
+        {
+            frequency = Math.min(frequency, mCounts.get(index(key, row)));
+        }
+        return frequency;
+    }
+
+    /**
+     * Halves every count so that old uses count for less than new ones.
+     */
+    private void reset()
+    {
+        for (int i = 0; i < mCounts.length(); i++)
+        {
+            mCounts.set(i, mCounts.get(i) >>> 1);
+        }
+        mAdditions.addAndGet(-mSampleSize / 2);
+    }
+
+    /**
+     * Determines the index of the given key's counter in the given row.
+     *
+     * @param key the key
+     * @param row the row
+     *
+     * @return The counter's index.
+     */
+    private int index(int key, int row)
+    {
+        int hash = key * SEEDS[row];
+        hash ^= hash >>> 16;
+        return (row * (mMask + 1)) + (hash & mMask);
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mMask + 1, mSampleSize, mAdditions.get());
+    }
+}
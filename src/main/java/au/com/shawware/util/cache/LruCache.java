@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.cache;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import au.com.shawware.util.NotNull;
+import au.com.shawware.util.StringUtil;
+import au.com.shawware.util.time.ITimeSource;
+
+/**
+ * Implements a simple, size-bounded cache that evicts the least recently
+ * used value when full. Values can optionally expire after a given lifetime.
+ * Unlike {@link Cache}, values are put into this cache explicitly, which
+ * suits sources that throw checked exceptions. This class is thread-safe.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <KeyType> the key type
+ * @param <ValueType> the value type
+ */
+public class LruCache<KeyType, ValueType>
+{
+    /** A rule for validating the cache keys. */
+    private final NotNull<KeyType> NOT_NULL = new NotNull<>("cache key"); //$NON-NLS-1$
+
+    /** The values held in this cache, least recently used first. */
+    private final Map<KeyType, CachedValue<ValueType>> mValues;
+    /** The maximum number of values to hold. */
+    private final int mMaximumSize;
+    /** The maximum lifetime of an individual value (if any). */
+    private final Duration mLifetime;
+    /** The clock to use to manage cache lifetimes (if any). */
+    private final ITimeSource mClock;
+    /** The number of successful retrievals. */
+    private long mHits;
+    /** The number of unsuccessful retrievals. */
+    private long mMisses;
+
+    /**
+     * Constructs a new cache whose values do not expire.
+     *
+     * @param maximumSize the maximum number of values to hold
+     */
+    public LruCache(int maximumSize)
+    {
+        this(maximumSize, null, null);
+    }
+
+    /**
+     * Constructs a new cache whose values expire.
+     *
+     * @param maximumSize the maximum number of values to hold
+     * @param lifetime the maximum life time of a value in the cache (null for no expiry)
+     * @param clock the source of time (only needed if there is a lifetime)
+     */
+    public LruCache(int maximumSize, Duration lifetime, ITimeSource clock)
+    {
+        if (maximumSize <= 0)
+        {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumSize); //$NON-NLS-1$
+        }
+        if ((lifetime != null) && (clock == null))
+        {
+            throw new IllegalArgumentException("Null clock"); //$NON-NLS-1$
+        }
+        mValues = new LinkedHashMap<KeyType, CachedValue<ValueType>>(16, 0.75f, true)
+        {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<KeyType, CachedValue<ValueType>> eldest)
+            {
+                return size() > mMaximumSize;
+            }
+        };
+        mMaximumSize = maximumSize;
+        mLifetime    = lifetime;
+        mClock       = clock;
+        mHits        = 0;
+        mMisses      = 0;
+    }
+
+    /**
+     * Retrieves the value for the given key.
+     *
+     * @param key the key to lookup
+     *
+     * @return The corresponding value or null if it is not present or has expired.
+     *
+     * @throws IllegalArgumentException null key
+     */
+    public synchronized ValueType get(KeyType key)
+        throws IllegalArgumentException
+    {
+        NOT_NULL.validate(key);
+
+        CachedValue<ValueType> value = mValues.get(key);
+        if ((value != null) && (value.getExpiryTime() <= now()))
+        {
+            mValues.remove(key);
+            value = null;
+        }
+        if (value == null)
+        {
+            mMisses++;
+            return null;
+        }
+        mHits++;
+        return value.getValue();
+    }
+
+    /**
+     * Adds the given value to the cache, evicting the least recently
+     * used value if the cache is full.
+     *
+     * @param key the key to store the value at
+     * @param value the value to store
+     *
+     * @throws IllegalArgumentException null key
+     */
+    public synchronized void put(KeyType key, ValueType value)
+        throws IllegalArgumentException
+    {
+        NOT_NULL.validate(key);
+
+        long expiry = (mLifetime == null) ? Long.MAX_VALUE : now() + mLifetime.toMillis();
+        mValues.put(key, new CachedValue<>(value, expiry));
+    }
+
+    /**
+     * Removes the value (if any) for the given key.
+     *
+     * @param key the key to remove
+     *
+     * @throws IllegalArgumentException null key
+     */
+    public synchronized void remove(KeyType key)
+        throws IllegalArgumentException
+    {
+        NOT_NULL.validate(key);
+
+        mValues.remove(key);
+    }
+
+    /**
+     * Removes every value from the cache.
+     */
+    public synchronized void clear()
+    {
+        mValues.clear();
+    }
+
+    /**
+     * @return The number of values held in the cache.
+     */
+    public synchronized int size()
+    {
+        return mValues.size();
+    }
+
+    /**
+     * @return The number of successful retrievals.
+     */
+    public synchronized long getHits()
+    {
+        return mHits;
+    }
+
+    /**
+     * @return The number of unsuccessful retrievals.
+     */
+    public synchronized long getMisses()
+    {
+        return mMisses;
+    }
+
+    /**
+     * @return The current time, if values expire.
+     */
+    private long now()
+    {
+        return (mLifetime == null) ? 0 : mClock.getTimeInMillis();
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public synchronized String toString()
+    {
+        return StringUtil.toString(mMaximumSize, mLifetime, mHits, mMisses, mValues);
+    }
+}
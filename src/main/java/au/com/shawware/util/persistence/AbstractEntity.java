@@ -7,12 +7,23 @@
 
 package au.com.shawware.util.persistence;
 
+import com.fasterxml.jackson.annotation.JsonProperty;
+
 /**
  * The base class for all persisted entities.
  * We assume that the persistence mechanism will allocate a unique
  * ID to each entity (that is a sub-class). Each entity also has a
  * key (of the given type) which is used as a local identifier and
  * is not necessarily unique.
+ * <p>
+ * The stores also maintain a version for each entity, which is
+ * incremented every time the entity is updated. An entity that is
+ * updated with a version (ie. as it was retrieved) only replaces the
+ * stored entity if the stored entity still has that version, otherwise
+ * the update fails with a {@link ConcurrentUpdateException}. An entity
+ * that is {@link #UNVERSIONED} always replaces the stored entity. The
+ * version is persisted as {@link #VERSION_PROPERTY}, which sub-classes
+ * are unlikely to have a property of their own called.
  *
  * @param <KeyType> the entity key type
  *
@@ -22,6 +33,12 @@ public abstract class AbstractEntity<KeyType> implements Comparable<AbstractEnti
 {
     /** The default ID to use when an entity is yet to be assigned one. */
     public static final int DEFAULT_ID = 0;
+    /** The version of an entity whose updates are not checked. */
+    public static final long UNVERSIONED = 0;
+    /** The version of a newly created entity. */
+    public static final long INITIAL_VERSION = 1;
+    /** The name of the persisted version property. */
+    public static final String VERSION_PROPERTY = "_version"; //$NON-NLS-1$
 
     /** The entity's unique ID. */
     private int mId;
@@ -29,6 +46,9 @@ public abstract class AbstractEntity<KeyType> implements Comparable<AbstractEnti
     /** The entity's key. */
     private KeyType mKey;
 
+    /** The entity's version. */
+    private long mVersion;
+
     /**
      * Constructs a new base entity with the default ID.
      * 
@@ -40,8 +60,9 @@ public abstract class AbstractEntity<KeyType> implements Comparable<AbstractEnti
         {
             throw new IllegalArgumentException("Null key"); //$NON-NLS-1$
         }
-        mId  = DEFAULT_ID;
-        mKey = key;
+        mId      = DEFAULT_ID;
+        mKey     = key;
+        mVersion = UNVERSIONED;
     }
 
     /**
@@ -96,6 +117,30 @@ public abstract class AbstractEntity<KeyType> implements Comparable<AbstractEnti
         mKey = key;
     }
 
+    /**
+     * @return This entity's version.
+     */
+    @JsonProperty(VERSION_PROPERTY)
+    public long getVersion()
+    {
+        return mVersion;
+    }
+
+    /**
+     * Sets this entity's version. This is normally only done by the stores.
+     * 
+     * @param version the new version
+     */
+    @JsonProperty(VERSION_PROPERTY)
+    public void setVersion(long version)
+    {
+        if (version < UNVERSIONED)
+        {
+            throw new IllegalArgumentException("Invalid version: " + version); //$NON-NLS-1$
+        }
+        mVersion = version;
+    }
+
     @Override
     public int compareTo(AbstractEntity<KeyType> that)
     {
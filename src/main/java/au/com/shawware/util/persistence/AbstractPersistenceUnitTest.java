@@ -11,12 +11,23 @@ import java.io.File;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import org.junit.AfterClass;
 import org.junit.Assert;
 import org.junit.BeforeClass;
 
+import au.com.shawware.util.IntObjectMap;
 import au.com.shawware.util.test.AbstractUnitTest;
 
 /**
@@ -50,12 +61,14 @@ public abstract class AbstractPersistenceUnitTest extends AbstractUnitTest
      * Cleanup after all tests.
      * 
      * @throws IOException file error
+     * @throws InterruptedException interrupted while waiting for the cleanup
      */
     @AfterClass
     public static void tearDown()
-        throws IOException
+        throws IOException, InterruptedException
     {
-        Runtime.getRuntime().exec("rm -r " + PERSISTENCE_ROOT);
+        // Wait for the cleanup so that it cannot race with the next test's setup.
+        Runtime.getRuntime().exec("rm -r " + PERSISTENCE_ROOT).waitFor();
     }
 
     /**
@@ -84,6 +97,193 @@ public abstract class AbstractPersistenceUnitTest extends AbstractUnitTest
         verifyEntityMap(store.getAll(), t1);
     }
 
+    /**
+     * Verifies the streaming and paged retrieval of entities. The store
+     * is expected to be empty and entities are created using the factory.
+     * 
+     * @param store the entity store to use
+     * @param factory creates the entity instances
+     * 
+     * @throws PersistenceException persistence error
+     */
+    protected final <T extends AbstractEntity<?>> void verifyBulkReads(IEntityStore<T> store, Supplier<T> factory)
+        throws PersistenceException
+    {
+        for (int i = 1; i <= 10; i++)
+        {
+            store.create(factory.get());
+        }
+        store.delete(5);
+
+        List<Integer> ids = new ArrayList<>();
+        store.forEach(entity -> ids.add(entity.getId()));
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 6, 7, 8, 9, 10), ids);
+        try (Stream<T> entities = store.stream())
+        {
+            Assert.assertEquals(ids, entities.map(AbstractEntity::getId).collect(Collectors.toList()));
+        }
+        try (Stream<EntityProjection> projections = store.project(AbstractEntity.VERSION_PROPERTY, "key"))
+        {
+            List<EntityProjection> projected = projections.collect(Collectors.toList());
+            Assert.assertEquals(ids, projected.stream().map(EntityProjection::getId).collect(Collectors.toList()));
+            Assert.assertEquals(store.get(6).getKey(), projected.get(4).get("key"));
+            Assert.assertEquals(AbstractEntity.INITIAL_VERSION, projected.get(4).getLong(AbstractEntity.VERSION_PROPERTY));
+        }
+        IntObjectMap<T> byId = store.getAllById();
+        Assert.assertEquals(ids, Arrays.stream(byId.keys()).boxed().collect(Collectors.toList()));
+        Assert.assertEquals(store.get(6).toString(), byId.get(6).toString());
+
+        List<T> page = store.getRange(3, 4);
+        Assert.assertEquals(Arrays.asList(3, 4, 6, 7), page.stream().map(AbstractEntity::getId).collect(Collectors.toList()));
+        Assert.assertEquals(store.get(6).toString(), page.get(2).toString());
+        Assert.assertEquals(1, store.getRange(10, 4).size());
+        Assert.assertEquals(0, store.getRange(11, 4).size());
+        Assert.assertEquals(0, store.getRange(1, 0).size());
+    }
+
+    /**
+     * Verifies the batch creation, retrieval, update and deletion of
+     * entities. The store is expected to be empty and entities are
+     * created using the factory, which should create distinct entities.
+     * 
+     * @param store the entity store to use
+     * @param factory creates the entity instances
+     * 
+     * @throws PersistenceException persistence error
+     */
+    protected final <T extends AbstractEntity<?>> void verifyBatchOperations(IEntityStore<T> store, Supplier<T> factory)
+        throws PersistenceException
+    {
+        List<T> entities = new ArrayList<>();
+        for (int i = 1; i <= 5; i++)
+        {
+            entities.add(factory.get());
+        }
+        List<T> created = store.createAll(entities);
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 4, 5), created.stream().map(AbstractEntity::getId).collect(Collectors.toList()));
+        Assert.assertEquals(6, store.create(factory.get()).getId());
+
+        Map<Integer, T> many = store.getMany(new int[] { 2, 4, 6 });
+        Assert.assertEquals(3, many.size());
+        Assert.assertEquals(store.get(4).toString(), many.get(4).toString());
+
+        T replacement = factory.get();
+        replacement.setId(2);
+        store.updateAll(Arrays.asList(replacement, created.get(2)));
+        Assert.assertEquals(replacement.toString(), store.get(2).toString());
+
+        store.deleteAll(new int[] { 1, 3, 7 });
+        Assert.assertEquals(new HashSet<>(Arrays.asList(2, 4, 5, 6)), store.getAll().keySet());
+        Assert.assertEquals(7, store.createAll(Arrays.asList(factory.get())).get(0).getId());
+    }
+
+    /**
+     * Verifies that updates are checked against the stored entity's
+     * version. Entities are created using the factory.
+     * 
+     * @param store the entity store to use
+     * @param factory creates the entity instances
+     * 
+     * @throws PersistenceException persistence error
+     */
+    protected final <T extends AbstractEntity<?>> void verifyVersioning(IEntityStore<T> store, Supplier<T> factory)
+        throws PersistenceException
+    {
+        T created = store.create(factory.get());
+        int id = created.getId();
+        Assert.assertEquals(AbstractEntity.INITIAL_VERSION, created.getVersion());
+
+        T first = store.get(id);
+        T second = store.get(id);
+        store.update(first);
+        Assert.assertEquals(2, first.getVersion());
+        Assert.assertEquals(2, store.get(id).getVersion());
+        try
+        {
+            store.update(second);
+            Assert.fail("Stale update succeeded");
+        }
+        catch (ConcurrentUpdateException e)
+        {
+            Assert.assertEquals(id, e.getId());
+            Assert.assertEquals(AbstractEntity.INITIAL_VERSION, e.getExpectedVersion());
+            Assert.assertEquals(2, e.getActualVersion());
+        }
+        Assert.assertEquals(AbstractEntity.INITIAL_VERSION, second.getVersion());
+        try
+        {
+            store.updateAll(Arrays.asList(second));
+            Assert.fail("Stale batch update succeeded");
+        }
+        catch (ConcurrentUpdateException e)
+        {
+            Assert.assertEquals(id, e.getId());
+        }
+
+        // An unversioned entity always replaces the stored entity.
+        T unversioned = factory.get();
+        unversioned.setId(id);
+        store.update(unversioned);
+        Assert.assertEquals(3, store.get(id).getVersion());
+
+        T current = store.get(id);
+        store.updateAll(Arrays.asList(current));
+        Assert.assertEquals(4, store.get(id).getVersion());
+    }
+
+    /**
+     * Verifies that a watch on a store reports changes made through
+     * another store (or the same one) and keeps its mirror up to date.
+     * 
+     * @param watched the store to watch, which must be empty
+     * @param writer the store to make changes through
+     * @param factory creates new entities
+     * 
+     * @throws PersistenceException persistence error
+     * @throws InterruptedException interrupted while waiting for a change
+     */
+    protected final <T extends AbstractEntity<?>> void verifyWatch(IEntityStore<T> watched, IEntityStore<T> writer, Supplier<T> factory)
+        throws PersistenceException, InterruptedException
+    {
+        T first = watched.create(factory.get());
+        BlockingQueue<EntityChange> changes = new LinkedBlockingQueue<>();
+        try (IEntityWatch<T> watch = watched.watch(changes::add))
+        {
+            Assert.assertEquals(1, watch.getMirror().size());
+
+            T second = writer.create(factory.get());
+            verifyChange(changes, EntityChange.Type.CREATED, second.getId());
+            Assert.assertEquals(second.toString(), watch.get(second.getId()).toString());
+
+            writer.update(writer.get(first.getId()));
+            verifyChange(changes, EntityChange.Type.UPDATED, first.getId());
+            Assert.assertEquals(2, watch.get(first.getId()).getVersion());
+
+            writer.delete(second.getId());
+            verifyChange(changes, EntityChange.Type.DELETED, second.getId());
+            Assert.assertEquals(null, watch.get(second.getId()));
+            Assert.assertEquals(1, watch.getMirror().size());
+        }
+    }
+
+    /**
+     * Verifies the next change reported by a watch.
+     * 
+     * @param changes the reported changes
+     * @param type the expected kind of change
+     * @param id the expected entity ID
+     * 
+     * @throws InterruptedException interrupted while waiting for the change
+     */
+    private static void verifyChange(BlockingQueue<EntityChange> changes, EntityChange.Type type, int id)
+        throws InterruptedException
+    {
+        EntityChange change = changes.poll(10, TimeUnit.SECONDS);
+        Assert.assertNotNull(change);
+        Assert.assertEquals(type, change.getType());
+        Assert.assertEquals(id, change.getId());
+    }
+
     /**
      * Verifies the given entity map contains the given entity instance.
      * 
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Adapts any {@link IEntityStore} to the {@link IAsyncEntityStore} API
+ * by running each operation on the given executor, eg. a fixed pool of
+ * I/O threads or (on a recent JVM) a virtual thread per task executor.
+ * Callers can then issue many operations without blocking. Operations
+ * are not ordered with respect to each other, so callers that need an
+ * order must chain the futures. The wrapped store must be safe to use
+ * from the executor's threads.
+ * <p>
+ * Updates write a copy of each entity taken when the update is issued,
+ * so the caller's later changes cannot race with the write. The caller's
+ * entities are given their new versions before the future completes.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+public class AsyncEntityStore<EntityType extends AbstractEntity<?>> implements IAsyncEntityStore<EntityType>
+{
+    /** The store being adapted. */
+    private final IEntityStore<EntityType> mStore;
+    /** The executor to run the operations on. */
+    private final Executor mExecutor;
+
+    /**
+     * Constructs a new asynchronous store.
+     *
+     * @param store the store to adapt
+     * @param executor the executor to run operations on
+     */
+    public AsyncEntityStore(IEntityStore<EntityType> store, Executor executor)
+    {
+        if ((store == null) || (executor == null))
+        {
+            throw new IllegalArgumentException("Null parameter"); //$NON-NLS-1$
+        }
+        mStore    = store;
+        mExecutor = executor;
+    }
+
+    /**
+     * @return The store being adapted.
+     */
+    public IEntityStore<EntityType> getStore()
+    {
+        return mStore;
+    }
+
+    @Override
+    public CompletableFuture<Map<Integer, EntityType>> getAll()
+    {
+        return submit(mStore::getAll);
+    }
+
+    @Override
+    public CompletableFuture<EntityType> create(EntityType entity)
+    {
+        return submit(() -> mStore.create(entity));
+    }
+
+    @Override
+    public CompletableFuture<EntityType> get(int id)
+    {
+        return submit(() -> mStore.get(id));
+    }
+
+    @Override
+    public CompletableFuture<Void> update(EntityType entity)
+    {
+        EntityType copy;
+        try
+        {
+            copy = CachedEntity.copy(entity);
+        }
+        catch (PersistenceException e)
+        {
+            return failed(e);
+        }
+        return submit(() -> {
+            mStore.update(copy);
+            entity.setVersion(copy.getVersion());
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> delete(int id)
+    {
+        return submit(() -> {
+            mStore.delete(id);
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<List<EntityType>> findByKey(Object key)
+    {
+        return submit(() -> mStore.findByKey(key));
+    }
+
+    @Override
+    public CompletableFuture<List<EntityType>> createAll(Collection<EntityType> entities)
+    {
+        return submit(() -> mStore.createAll(entities));
+    }
+
+    @Override
+    public CompletableFuture<Map<Integer, EntityType>> getMany(int[] ids)
+    {
+        return submit(() -> mStore.getMany(ids));
+    }
+
+    @Override
+    public CompletableFuture<Void> updateAll(Collection<EntityType> entities)
+    {
+        List<EntityType> originals = new ArrayList<>(entities);
+        List<EntityType> copies = new ArrayList<>(originals.size());
+        try
+        {
+            for (EntityType entity : originals)
+            {
+                copies.add(CachedEntity.copy(entity));
+            }
+        }
+        catch (PersistenceException e)
+        {
+            return failed(e);
+        }
+        return submit(() -> {
+            mStore.updateAll(copies);
+            for (int i = 0; i < originals.size(); i++)
+            {
+                originals.get(i).setVersion(copies.get(i).getVersion());
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll(int[] ids)
+    {
+        return submit(() -> {
+            mStore.deleteAll(ids);
+            return null;
+        });
+    }
+
+    /**
+     * Runs the given operation on the executor. Anything the operation
+     * throws, errors included, fails the future rather than leaving its
+     * callers waiting forever.
+     *
+     * @param operation the operation to run
+     * @param <T> the operation's result type
+     *
+     * @return The future result of the operation.
+     */
+    private <T> CompletableFuture<T> submit(Operation<T> operation)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try
+        {
+            mExecutor.execute(() -> {
+                try
+                {
+                    result.complete(operation.run());
+                }
+                catch (Throwable e)
+                {
+                    result.completeExceptionally(e);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Creates a future that has already failed.
+     *
+     * @param error the failure
+     * @param <T> the operation's result type
+     *
+     * @return The failed future.
+     */
+    private static <T> CompletableFuture<T> failed(Throwable error)
+    {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        result.completeExceptionally(error);
+        return result;
+    }
+
+    /**
+     * A store operation, which can throw a checked exception.
+     *
+     * @param <T> the operation's result type
+     */
+    @FunctionalInterface
+    private interface Operation<T>
+    {
+        /**
+         * Runs the operation.
+         *
+         * @return The operation's result.
+         *
+         * @throws PersistenceException error accessing the store
+         */
+        T run()
+            throws PersistenceException;
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mStore, mExecutor);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * An entity held in memory in its encoded form. Each caller that
+ * retrieves the entity gets a copy of its own, so callers never see each
+ * other's unsaved changes and the version a caller holds is always the
+ * version it read, as the optimistic version checks require.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the type of entity held
+ */
+final class CachedEntity<EntityType extends AbstractEntity<?>>
+{
+    /** The entity's class. */
+    private final Class<EntityType> mClass;
+    /** The encoded entity. */
+    private final byte[] mData;
+    /** The entity's version when it was encoded. */
+    private final long mVersion;
+
+    /**
+     * Constructs a new cached entity.
+     *
+     * @param clazz the entity's class
+     * @param data the encoded entity
+     * @param version the entity's version
+     */
+    private CachedEntity(Class<EntityType> clazz, byte[] data, long version)
+    {
+        mClass   = clazz;
+        mData    = data;
+        mVersion = version;
+    }
+
+    /**
+     * Encodes the given entity for holding in memory.
+     *
+     * @param entity the entity
+     * @param <EntityType> the type of entity
+     *
+     * @return The cached entity.
+     *
+     * @throws PersistenceException error encoding the entity
+     */
+    @SuppressWarnings("unchecked")
+    static <EntityType extends AbstractEntity<?>> CachedEntity<EntityType> of(EntityType entity)
+        throws PersistenceException
+    {
+        try
+        {
+            return new CachedEntity<>((Class<EntityType>)entity.getClass(), EntityCodecs.encode(EntityCodecs.COMPACT_JSON, entity), entity.getVersion());
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error caching entity: " + entity.getId(), e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Copies the given entity.
+     *
+     * @param entity the entity
+     * @param <EntityType> the type of entity
+     *
+     * @return The copy.
+     *
+     * @throws PersistenceException error copying the entity
+     */
+    static <EntityType extends AbstractEntity<?>> EntityType copy(EntityType entity)
+        throws PersistenceException
+    {
+        return of(entity).get();
+    }
+
+    /**
+     * @return A new copy of the entity.
+     *
+     * @throws PersistenceException error decoding the entity
+     */
+    EntityType get()
+        throws PersistenceException
+    {
+        try
+        {
+            return EntityCodecs.decode(mData, mClass);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error decoding cached " + mClass.getSimpleName(), e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * @return The entity's version when it was cached.
+     */
+    long getVersion()
+    {
+        return mVersion;
+    }
+
+    /**
+     * @return The size of the encoded entity (in bytes).
+     */
+    int getSize()
+    {
+        return mData.length;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mClass.getSimpleName(), mVersion, mData.length);
+    }
+}
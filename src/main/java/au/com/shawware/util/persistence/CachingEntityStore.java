@@ -0,0 +1,431 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import au.com.shawware.util.StringUtil;
+import au.com.shawware.util.cache.LruCache;
+import au.com.shawware.util.time.ITimeSource;
+
+/**
+ * Caches the entities read from another store. Entities are held in a
+ * size-bounded, least recently used cache, optionally with a lifetime.
+ * Cached entities are invalidated when they are updated or deleted
+ * through this store. An entity read while it is being written is not
+ * cached, since the read may have returned the old entity. Optionally,
+ * the result of {@link #getAll()} can be held as a snapshot which is
+ * kept current by the writes through this store.
+ * <p>
+ * Entities are cached in their encoded form and each retrieval decodes a
+ * copy of its own, so callers never share an entity.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+@SuppressWarnings("boxing")
+public class CachingEntityStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>
+{
+    /** The store being cached. */
+    private final IEntityStore<EntityType> mStore;
+    /** The number of generations, shared between entities. */
+    private static final int GENERATIONS = 64;
+
+    /** The cached entities. */
+    private final LruCache<Integer, CachedEntity<EntityType>> mCache;
+    /** Counts the invalidations of the entities. Guards the cache's contents. */
+    private final long[] mGenerations;
+    /** Whether to hold a snapshot of every entity. */
+    private final boolean mSnapshotAll;
+    /** The maximum lifetime of the snapshot (if any). */
+    private final Duration mLifetime;
+    /** The clock to use to manage the snapshot's lifetime (if any). */
+    private final ITimeSource mClock;
+    /** The snapshot of every entity (if any). */
+    private Map<Integer, CachedEntity<EntityType>> mSnapshot;
+    /** When the snapshot expires. */
+    private long mSnapshotExpiry;
+
+    /**
+     * Constructs a new caching store whose entities do not expire.
+     *
+     * @param store the store to cache
+     * @param maximumSize the maximum number of entities to cache
+     */
+    public CachingEntityStore(IEntityStore<EntityType> store, int maximumSize)
+    {
+        this(store, maximumSize, null, null, false);
+    }
+
+    /**
+     * Constructs a new caching store.
+     *
+     * @param store the store to cache
+     * @param maximumSize the maximum number of entities to cache
+     * @param lifetime the maximum life time of a cached entity (null for no expiry)
+     * @param clock the source of time (only needed if there is a lifetime)
+     * @param snapshotAll whether to hold a snapshot of every entity to serve {@link #getAll()}
+     */
+    public CachingEntityStore(IEntityStore<EntityType> store, int maximumSize, Duration lifetime, ITimeSource clock, boolean snapshotAll)
+    {
+        if (store == null)
+        {
+            throw new IllegalArgumentException("Null store"); //$NON-NLS-1$
+        }
+        mStore       = store;
+        mCache       = new LruCache<>(maximumSize, lifetime, clock);
+        mGenerations = new long[GENERATIONS];
+        mSnapshotAll = snapshotAll;
+        mLifetime    = lifetime;
+        mClock       = clock;
+        mSnapshot    = null;
+    }
+
+    @Override
+    public synchronized Map<Integer, EntityType> getAll()
+        throws PersistenceException
+    {
+        if (!mSnapshotAll)
+        {
+            return mStore.getAll();
+        }
+        if ((mSnapshot == null) || ((mLifetime != null) && (mSnapshotExpiry <= mClock.getTimeInMillis())))
+        {
+            Map<Integer, EntityType> entities = mStore.getAll();
+            mSnapshot = new HashMap<>(entities.size() * 4 / 3 + 1);
+            for (EntityType entity : entities.values())
+            {
+                mSnapshot.put(entity.getId(), CachedEntity.of(entity));
+            }
+            mSnapshotExpiry = (mLifetime == null) ? Long.MAX_VALUE : mClock.getTimeInMillis() + mLifetime.toMillis();
+        }
+        Map<Integer, EntityType> entities = new HashMap<>(mSnapshot.size() * 4 / 3 + 1);
+        for (CachedEntity<EntityType> entity : mSnapshot.values())
+        {
+            EntityType copy = entity.get();
+            entities.put(copy.getId(), copy);
+        }
+        return entities;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll(Executor executor)
+        throws PersistenceException
+    {
+        return mSnapshotAll ? getAll() : mStore.getAll(executor);
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+        throws PersistenceException
+    {
+        return mStore.stream();
+    }
+
+    @Override
+    public void forEach(Consumer<? super EntityType> action)
+        throws PersistenceException
+    {
+        mStore.forEach(action);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The underlying store is watched and each changed entity is also
+     * discarded from the cache.
+     */
+    @Override
+    public IEntityWatch<EntityType> watch(Consumer<EntityChange> listener)
+        throws PersistenceException
+    {
+        return mStore.watch(change -> {
+            forget(change);
+            listener.accept(change);
+        });
+    }
+
+    @Override
+    public int[] getAllIds()
+        throws PersistenceException
+    {
+        return mStore.getAllIds();
+    }
+
+    @Override
+    public List<EntityType> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        return mStore.getRange(fromId, limit);
+    }
+
+    @Override
+    public EntityType create(EntityType entity)
+        throws PersistenceException
+    {
+        EntityType created = mStore.create(entity);
+        snapshot(created);
+        return created;
+    }
+
+    @Override
+    public EntityType get(int id)
+        throws PersistenceException
+    {
+        CachedEntity<EntityType> cached = mCache.get(id);
+        if (cached != null)
+        {
+            return cached.get();
+        }
+        long generation = generation(id);
+        EntityType entity = mStore.get(id);
+        cache(entity, generation);
+        return entity;
+    }
+
+    @Override
+    public void update(EntityType entity)
+        throws PersistenceException
+    {
+        mStore.update(entity);
+        invalidate(entity.getId());
+        snapshot(entity);
+    }
+
+    @Override
+    public void delete(int id)
+        throws PersistenceException
+    {
+        mStore.delete(id);
+        invalidate(id);
+        unsnapshot(id);
+    }
+
+    @Override
+    public List<EntityType> createAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        List<EntityType> created = mStore.createAll(entities);
+        for (EntityType entity : created)
+        {
+            snapshot(entity);
+        }
+        return created;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getMany(int[] ids)
+        throws PersistenceException
+    {
+        Map<Integer, EntityType> entities = new HashMap<>(ids.length * 4 / 3 + 1);
+        List<Integer> misses = new ArrayList<>();
+        Map<Integer, Long> generations = new HashMap<>();
+        for (int id : ids)
+        {
+            CachedEntity<EntityType> cached = mCache.get(id);
+            if (cached == null)
+            {
+                misses.add(id);
+                generations.put(id, generation(id));
+            }
+            else
+            {
+                entities.put(id, cached.get());
+            }
+        }
+        if (!misses.isEmpty())
+        {
+            Map<Integer, EntityType> loaded = mStore.getMany(misses.stream().mapToInt(Integer::intValue).toArray());
+            for (EntityType entity : loaded.values())
+            {
+                cache(entity, generations.get(entity.getId()));
+            }
+            entities.putAll(loaded);
+        }
+        return entities;
+    }
+
+    @Override
+    public void updateAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        mStore.updateAll(entities);
+        for (EntityType entity : entities)
+        {
+            invalidate(entity.getId());
+            snapshot(entity);
+        }
+    }
+
+    @Override
+    public void deleteAll(int[] ids)
+        throws PersistenceException
+    {
+        mStore.deleteAll(ids);
+        for (int id : ids)
+        {
+            invalidate(id);
+            unsnapshot(id);
+        }
+    }
+
+    /**
+     * @return The number of retrievals served from the cache.
+     */
+    public long getHits()
+    {
+        return mCache.getHits();
+    }
+
+    /**
+     * @return The number of retrievals not served from the cache.
+     */
+    public long getMisses()
+    {
+        return mCache.getMisses();
+    }
+
+    /**
+     * Discards every cached entity, eg. if the underlying store has been
+     * modified by another process.
+     */
+    public synchronized void invalidateAll()
+    {
+        synchronized (mGenerations)
+        {
+            for (int i = 0; i < GENERATIONS; i++)
+            {
+                mGenerations[i]++;
+            }
+            mCache.clear();
+        }
+        mSnapshot = null;
+    }
+
+    /**
+     * Determines the current generation of the given entity. If the
+     * generation has changed by the time the entity is cached, the entity
+     * may have been written since it was read, so it is not cached.
+     *
+     * @param id the entity's ID
+     *
+     * @return The generation.
+     */
+    private long generation(int id)
+    {
+        synchronized (mGenerations)
+        {
+            return mGenerations[id & (GENERATIONS - 1)];
+        }
+    }
+
+    /**
+     * Caches the given entity, just read from the store, unless it has
+     * been invalidated since.
+     *
+     * @param entity the entity
+     * @param generation the entity's generation before it was read
+     *
+     * @throws PersistenceException error encoding the entity
+     */
+    private void cache(EntityType entity, long generation)
+        throws PersistenceException
+    {
+        CachedEntity<EntityType> cached = CachedEntity.of(entity);
+        synchronized (mGenerations)
+        {
+            if (mGenerations[entity.getId() & (GENERATIONS - 1)] == generation)
+            {
+                mCache.put(entity.getId(), cached);
+            }
+        }
+    }
+
+    /**
+     * Discards the given entity from the cache and stops any read of it
+     * that is in progress from being cached.
+     *
+     * @param id the entity's ID
+     */
+    private void invalidate(int id)
+    {
+        synchronized (mGenerations)
+        {
+            mGenerations[id & (GENERATIONS - 1)]++;
+            mCache.remove(id);
+        }
+    }
+
+    /**
+     * Discards the given changed entity from the cache and the snapshot.
+     *
+     * @param change the change
+     */
+    private synchronized void forget(EntityChange change)
+    {
+        invalidate(change.getId());
+        if (change.getType() == EntityChange.Type.DELETED)
+        {
+            unsnapshot(change.getId());
+        }
+        else
+        {
+            // The snapshot is reloaded when next needed.
+            mSnapshot = null;
+        }
+    }
+
+    /**
+     * Adds or replaces the given entity in the snapshot (if any), unless
+     * the snapshot already holds a later version of it.
+     *
+     * @param entity the entity
+     *
+     * @throws PersistenceException error encoding the entity
+     */
+    private synchronized void snapshot(EntityType entity)
+        throws PersistenceException
+    {
+        if (mSnapshot != null)
+        {
+            CachedEntity<EntityType> current = mSnapshot.get(entity.getId());
+            if ((current == null) || (current.getVersion() <= entity.getVersion()))
+            {
+                mSnapshot.put(entity.getId(), CachedEntity.of(entity));
+            }
+        }
+    }
+
+    /**
+     * Removes the given entity from the snapshot (if any).
+     *
+     * @param id the entity's ID
+     */
+    private synchronized void unsnapshot(int id)
+    {
+        if (mSnapshot != null)
+        {
+            mSnapshot.remove(id);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mStore, mCache);
+    }
+}
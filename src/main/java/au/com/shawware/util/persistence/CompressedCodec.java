@@ -0,0 +1,123 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Compresses the output of another codec using Deflate or GZIP.
+ * The wrapped codec's output is self-describing, so any codec can
+ * decode the compressed data, not just the one that wrote it.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class CompressedCodec implements IEntityCodec
+{
+    /** The size of the buffer to use when inflating. */
+    private static final int BUFFER_SIZE = 4096;
+
+    /** The codec whose output is compressed. */
+    private final IEntityCodec mCodec;
+    /** Whether to use GZIP rather than Deflate. */
+    private final boolean mGzip;
+
+    /**
+     * Constructs a new codec.
+     * 
+     * @param codec the codec whose output is compressed
+     * @param gzip whether to use GZIP rather than Deflate
+     */
+    CompressedCodec(IEntityCodec codec, boolean gzip)
+    {
+        if (codec == null)
+        {
+            throw new IllegalArgumentException("Null codec"); //$NON-NLS-1$
+        }
+        mCodec = codec;
+        mGzip  = gzip;
+    }
+
+    @Override
+    public byte getId()
+    {
+        return mGzip ? EntityCodecs.GZIP_ID : EntityCodecs.DEFLATE_ID;
+    }
+
+    @Override
+    public byte[] encode(Object entity)
+        throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = mGzip ? new GZIPOutputStream(bytes) : new DeflaterOutputStream(bytes))
+        {
+            out.write(EntityCodecs.encode(mCodec, entity));
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public <EntityType> EntityType decode(byte[] data, int offset, int length, Class<EntityType> clazz)
+        throws IOException
+    {
+        return EntityCodecs.decode(inflate(data, offset, length), clazz);
+    }
+
+    @Override
+    public JsonParser createParser(byte[] data, int offset, int length)
+        throws IOException
+    {
+        return EntityCodecs.createParser(inflate(data, offset, length));
+    }
+
+    /**
+     * Decompresses the given data.
+     * 
+     * @param data the compressed data
+     * @param offset the start of the compressed data
+     * @param length the length of the compressed data
+     * 
+     * @return The decompressed data.
+     * 
+     * @throws IOException error decompressing the data
+     */
+    private byte[] inflate(byte[] data, int offset, int length)
+        throws IOException
+    {
+        ByteArrayInputStream bytes = new ByteArrayInputStream(data, offset, length);
+        ByteArrayOutputStream inflated = new ByteArrayOutputStream(length * 4);
+        try (InputStream in = mGzip ? new GZIPInputStream(bytes) : new InflaterInputStream(bytes))
+        {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(buffer)) > 0)
+            {
+                inflated.write(buffer, 0, read);
+            }
+        }
+        return inflated.toByteArray();
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mGzip, mCodec);
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+/**
+ * Thrown when an entity cannot be updated because the stored entity has
+ * been updated since it was retrieved. The caller can retrieve the entity
+ * again and re-apply its changes.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class ConcurrentUpdateException extends PersistenceException
+{
+    /** The ID for serialisation. */
+    private static final long serialVersionUID = 4419713350416581652L;
+
+    /** The ID of the entity that could not be updated. */
+    private final int mId;
+    /** The version the update expected. */
+    private final long mExpectedVersion;
+    /** The stored entity's version. */
+    private final long mActualVersion;
+
+    /**
+     * Creates a new exception.
+     * 
+     * @param entityName the entity's name
+     * @param id the entity's ID
+     * @param expectedVersion the version the update expected
+     * @param actualVersion the stored entity's version
+     */
+    public ConcurrentUpdateException(String entityName, int id, long expectedVersion, long actualVersion)
+    {
+        super("Concurrent update of " + entityName + ": " + id + //$NON-NLS-1$ //$NON-NLS-2$
+              " (expected version " + expectedVersion + " but found " + actualVersion + ")"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        mId              = id;
+        mExpectedVersion = expectedVersion;
+        mActualVersion   = actualVersion;
+    }
+
+    /**
+     * @return The ID of the entity that could not be updated.
+     */
+    public int getId()
+    {
+        return mId;
+    }
+
+    /**
+     * @return The version the update expected.
+     */
+    public long getExpectedVersion()
+    {
+        return mExpectedVersion;
+    }
+
+    /**
+     * @return The stored entity's version.
+     */
+    public long getActualVersion()
+    {
+        return mActualVersion;
+    }
+
+    /**
+     * Determines the version to give an entity that is replacing the given
+     * stored entity.
+     * 
+     * @param entityName the entity's name
+     * @param stored the stored entity
+     * @param entity the replacement entity
+     * 
+     * @return The replacement entity's new version.
+     * 
+     * @throws ConcurrentUpdateException the stored entity has been updated since the replacement was retrieved
+     */
+    static long nextVersion(String entityName, AbstractEntity<?> stored, AbstractEntity<?> entity)
+        throws ConcurrentUpdateException
+    {
+        long version = entity.getVersion();
+        if ((version != AbstractEntity.UNVERSIONED) && (version != stored.getVersion()))
+        {
+            throw new ConcurrentUpdateException(entityName, entity.getId(), version, stored.getVersion());
+        }
+        return stored.getVersion() + 1;
+    }
+}
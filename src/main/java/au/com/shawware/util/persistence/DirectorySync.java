@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Forces directories to disk so that the files created, renamed and
+ * deleted in them are durable. Concurrent callers of {@link #commit(Path)}
+ * are grouped: the first caller waits briefly for others to arrive and
+ * then forces each of their directories once on behalf of all of them.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class DirectorySync
+{
+    /** The default time to wait for other callers to join a commit. */
+    static final long DEFAULT_WINDOW_MICROS = 2000;
+
+    /** How long to wait for other callers to join a commit. */
+    private final long mWindowNanos;
+    /** The number of commits requested so far. */
+    private long mRequested;
+    /** The number of requested commits known to be durable. */
+    private long mCompleted;
+    /** The directories waiting to be forced. */
+    private final Set<Path> mPending;
+    /** Whether a caller is currently forcing directories. */
+    private boolean mSyncing;
+    /** The number of group commits performed. */
+    private long mSyncs;
+
+    /**
+     * Constructs a new instance.
+     *
+     * @param windowMicros how long to wait for other callers to join a commit
+     */
+    DirectorySync(long windowMicros)
+    {
+        if (windowMicros < 0)
+        {
+            throw new IllegalArgumentException("Invalid window: " + windowMicros); //$NON-NLS-1$
+        }
+        mWindowNanos = TimeUnit.MICROSECONDS.toNanos(windowMicros);
+        mRequested   = 0;
+        mCompleted   = 0;
+        mPending     = new HashSet<>();
+        mSyncing     = false;
+        mSyncs       = 0;
+    }
+
+    /**
+     * Makes the caller's changes to the given directory durable. Returns
+     * once the directory has been forced after the caller arrived, either
+     * by the caller itself or by another caller it was grouped with.
+     *
+     * @param directory the directory to force
+     *
+     * @throws IOException error forcing the directory
+     */
+    void commit(Path directory)
+        throws IOException
+    {
+        long ticket;
+        synchronized (this)
+        {
+            ticket = ++mRequested;
+            mPending.add(directory);
+            while (mSyncing && (mCompleted < ticket))
+            {
+                try
+                {
+                    wait();
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted waiting for commit: " + directory); //$NON-NLS-1$
+                }
+            }
+            if (mCompleted >= ticket)
+            {
+                return;
+            }
+            mSyncing = true;
+        }
+        // This caller leads the commit: give others a chance to join it.
+        if (mWindowNanos > 0)
+        {
+            LockSupport.parkNanos(mWindowNanos);
+        }
+        long covered;
+        Set<Path> directories;
+        synchronized (this)
+        {
+            covered = mRequested;
+            directories = new HashSet<>(mPending);
+            mPending.clear();
+        }
+        boolean forced = false;
+        try
+        {
+            for (Path pending : directories)
+            {
+                force(pending);
+            }
+            forced = true;
+        }
+        finally
+        {
+            synchronized (this)
+            {
+                mSyncing = false;
+                if (forced)
+                {
+                    mCompleted = covered;
+                    mSyncs++;
+                }
+                else
+                {
+                    // The waiting callers retry for themselves.
+                    mPending.addAll(directories);
+                }
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return The number of group commits performed by {@link #commit(Path)}.
+     */
+    synchronized long getSyncCount()
+    {
+        return mSyncs;
+    }
+
+    /**
+     * Forces the given directory to disk so that new, renamed and
+     * deleted files are durable.
+     *
+     * @param directory the directory to force
+     *
+     * @throws IOException error forcing the directory
+     */
+    static void force(Path directory)
+        throws IOException
+    {
+        FileChannel channel;
+        try
+        {
+            channel = FileChannel.open(directory, StandardOpenOption.READ);
+        }
+        catch (IOException e)
+        {
+            // Some platforms (eg. Windows) cannot open a directory, so there is nothing to force.
+            return;
+        }
+        try (FileChannel open = channel)
+        {
+            open.force(true);
+        }
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public synchronized String toString()
+    {
+        return StringUtil.toString(mRequested, mCompleted, mSyncs, mPending);
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.Map;
+
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * A snapshot of the state of an {@link EntityDiskStore}: the IDs it holds,
+ * the highest ID ever allocated, the size and modification stamp of each
+ * entity's file and the modification stamps of the store's directories.
+ * If none of the directories have changed since the snapshot was taken,
+ * the snapshot's IDs can be used in place of scanning the store.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class DiskCheckpoint
+{
+    /** The highest ID allocated. */
+    private final int mMaxId;
+    /** The IDs in the store in ascending order. */
+    private final int[] mIds;
+    /** The size of each entity's file. */
+    private final long[] mSizes;
+    /** The modification stamp (in microseconds) of each entity's file. */
+    private final long[] mModified;
+    /** The modification stamp (in microseconds) of each directory, keyed by relative path. */
+    private final Map<String, Long> mDirectories;
+
+    /**
+     * Constructs a new checkpoint.
+     *
+     * @param maxId the highest ID allocated
+     * @param ids the IDs in the store in ascending order
+     * @param sizes the size of each entity's file
+     * @param modified the modification stamp of each entity's file
+     * @param directories the modification stamp of each directory
+     */
+    @JsonCreator
+    DiskCheckpoint(@JsonProperty("maxId") int maxId,
+                   @JsonProperty("ids") int[] ids,
+                   @JsonProperty("sizes") long[] sizes,
+                   @JsonProperty("modified") long[] modified,
+                   @JsonProperty("directories") Map<String, Long> directories)
+    {
+        if ((ids == null) || (sizes == null) || (modified == null) || (directories == null) ||
+            (sizes.length != ids.length) || (modified.length != ids.length))
+        {
+            throw new IllegalArgumentException("Invalid checkpoint"); //$NON-NLS-1$
+        }
+        mMaxId       = maxId;
+        mIds         = ids;
+        mSizes       = sizes;
+        mModified    = modified;
+        mDirectories = directories;
+    }
+
+    /**
+     * @return The highest ID allocated.
+     */
+    public int getMaxId()
+    {
+        return mMaxId;
+    }
+
+    /**
+     * @return The IDs in the store in ascending order.
+     */
+    public int[] getIds()
+    {
+        return mIds;
+    }
+
+    /**
+     * @return The size of each entity's file.
+     */
+    public long[] getSizes()
+    {
+        return mSizes;
+    }
+
+    /**
+     * @return The modification stamp of each entity's file.
+     */
+    public long[] getModified()
+    {
+        return mModified;
+    }
+
+    /**
+     * @return The modification stamp of each directory, keyed by relative path.
+     */
+    public Map<String, Long> getDirectories()
+    {
+        return mDirectories;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mMaxId, mIds.length, mDirectories);
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+/**
+ * How an {@link EntityDiskStore} lays its files out on disk.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public enum DiskLayout
+{
+    /** Every file is held directly in the store's directory. */
+    FLAT,
+    /**
+     * Files are spread across two levels of up to 256 sub-directories,
+     * derived from the entity's ID, which keeps each directory small
+     * for stores holding very many entities.
+     */
+    SHARDED;
+}
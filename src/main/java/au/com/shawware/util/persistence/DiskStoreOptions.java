@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * The options for an {@link EntityDiskStore}. By default, entities are
+ * written as pretty-printed JSON, in place, to a single directory, and
+ * neither the highest ID nor a checkpoint is persisted.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public class DiskStoreOptions
+{
+    /** Whether to persist the highest ID on closing. */
+    private boolean mPersistMaxId;
+    /** The codec to write entities with. */
+    private IEntityCodec mCodec;
+    /** How durably to write entities. */
+    private Durability mDurability;
+    /** How to lay the files out. */
+    private DiskLayout mLayout;
+    /** Whether to checkpoint the store's state. */
+    private boolean mCheckpoint;
+
+    /**
+     * Constructs a new set of options with the defaults.
+     */
+    public DiskStoreOptions()
+    {
+        mPersistMaxId = false;
+        mCodec        = EntityCodecs.PRETTY_JSON;
+        mDurability   = Durability.NONE;
+        mLayout       = DiskLayout.FLAT;
+        mCheckpoint   = false;
+    }
+
+    /**
+     * Sets whether to persist the highest ID on closing, so that
+     * re-opening the store need not scan it.
+     *
+     * @param persistMaxId whether to persist the highest ID
+     *
+     * @return These options.
+     */
+    public DiskStoreOptions persistMaxId(boolean persistMaxId)
+    {
+        mPersistMaxId = persistMaxId;
+        return this;
+    }
+
+    /**
+     * Sets the codec to write entities with.
+     *
+     * @param codec the codec
+     *
+     * @return These options.
+     */
+    public DiskStoreOptions codec(IEntityCodec codec)
+    {
+        if (codec == null)
+        {
+            throw new IllegalArgumentException("Null codec"); //$NON-NLS-1$
+        }
+        mCodec = codec;
+        return this;
+    }
+
+    /**
+     * Sets how durably to write entities.
+     *
+     * @param durability the durability
+     *
+     * @return These options.
+     */
+    public DiskStoreOptions durability(Durability durability)
+    {
+        if (durability == null)
+        {
+            throw new IllegalArgumentException("Null durability"); //$NON-NLS-1$
+        }
+        mDurability = durability;
+        return this;
+    }
+
+    /**
+     * Sets how to lay the files out.
+     *
+     * @param layout the layout
+     *
+     * @return These options.
+     */
+    public DiskStoreOptions layout(DiskLayout layout)
+    {
+        if (layout == null)
+        {
+            throw new IllegalArgumentException("Null layout"); //$NON-NLS-1$
+        }
+        mLayout = layout;
+        return this;
+    }
+
+    /**
+     * Sets whether to checkpoint the store's state, so that re-opening
+     * the store need not scan it. This is only valid if the store is the
+     * only writer to its directory.
+     *
+     * @param checkpoint whether to checkpoint
+     *
+     * @return These options.
+     */
+    public DiskStoreOptions checkpoint(boolean checkpoint)
+    {
+        mCheckpoint = checkpoint;
+        return this;
+    }
+
+    /**
+     * @return Whether to persist the highest ID on closing.
+     */
+    boolean getPersistMaxId()
+    {
+        return mPersistMaxId;
+    }
+
+    /**
+     * @return The codec to write entities with.
+     */
+    IEntityCodec getCodec()
+    {
+        return mCodec;
+    }
+
+    /**
+     * @return How durably to write entities.
+     */
+    Durability getDurability()
+    {
+        return mDurability;
+    }
+
+    /**
+     * @return How to lay the files out.
+     */
+    DiskLayout getLayout()
+    {
+        return mLayout;
+    }
+
+    /**
+     * @return Whether to checkpoint the store's state.
+     */
+    boolean getCheckpoint()
+    {
+        return mCheckpoint;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mPersistMaxId, mCodec, mDurability, mLayout, mCheckpoint);
+    }
+}
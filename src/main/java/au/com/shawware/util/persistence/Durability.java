@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+/**
+ * How durably an {@link EntityDiskStore} writes individual entities.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public enum Durability
+{
+    /** Files are overwritten in place and left to the operating system to flush. */
+    NONE,
+    /** Files are written to a temporary file, forced and renamed into place, then the directory is forced. */
+    ATOMIC,
+    /** As for {@link #ATOMIC}, but concurrent writers share a single force of the directory. */
+    GROUP_COMMIT;
+}
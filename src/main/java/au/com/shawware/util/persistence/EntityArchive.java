@@ -0,0 +1,533 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Reads and writes archives holding every entity in a store in a single
+ * sequential file. An archive is a header followed by one record per
+ * entity, each being the entity's encoded length and its self-describing
+ * encoding (see {@link EntityCodecs}), and then an end marker. The
+ * records may be compressed with GZIP and may be followed by a CRC-32
+ * checksum of the (uncompressed) records.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+final class EntityArchive
+{
+    /** The value every archive starts with ("SWEA"). */
+    private static final int MAGIC = 0x53574541;
+    /** The version of the archive format. */
+    private static final byte FORMAT = 1;
+    /** The flag marking compressed records. */
+    private static final byte COMPRESSED = 0x01;
+    /** The flag marking checksummed records. */
+    private static final byte CHECKSUMMED = 0x02;
+    /** The length of the header. */
+    private static final int HEADER_LENGTH = 6;
+    /** The length of a record's length. */
+    private static final int LENGTH_LENGTH = 4;
+    /** The length that marks the end of the records. */
+    private static final int END = -1;
+    /** The size of the buffers to use when streaming records. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** The extension given to an archive while it is being written. */
+    private static final String TEMP_EXTENSION = ".tmp"; //$NON-NLS-1$
+    /** The number of entities to import in each batch. */
+    static final int BATCH_SIZE = 1000;
+
+    /**
+     * Prevent instantiation.
+     */
+    private EntityArchive()
+    {
+        // Do nothing
+    }
+
+    /**
+     * Writes every entity in the given store to the given archive,
+     * reading the entities through a snapshot of the store.
+     *
+     * @param store the store to export
+     * @param archive the archive to write
+     * @param compress whether to compress the entities
+     * @param checksum whether to checksum the entities
+     * @param <EntityType> the type of entity to export
+     *
+     * @return The number of entities exported.
+     *
+     * @throws PersistenceException error accessing the store or writing the archive
+     */
+    static <EntityType extends AbstractEntity<?>> int export(IEntityStore<EntityType> store, Path archive, boolean compress, boolean checksum)
+        throws PersistenceException
+    {
+        return export(archive, compress, checksum, records -> {
+            int count = 0;
+            try (IEntitySnapshot<EntityType> snapshot = store.snapshot();
+                 Stream<EntityType> entities = snapshot.stream())
+            {
+                Iterator<EntityType> iterator = entities.iterator();
+                while (iterator.hasNext())
+                {
+                    writeRecord(records, EntityCodecs.encode(EntityCodecs.COMPACT_JSON, iterator.next()));
+                    count++;
+                }
+            }
+            catch (UncheckedPersistenceException e)
+            {
+                throw new PersistenceException(e.getMessage(), e.getCause());
+            }
+            return count;
+        });
+    }
+
+    /**
+     * Writes an archive whose records are written by the given exporter.
+     * The archive is written to a temporary file that replaces the archive
+     * once it is complete, so a failed export leaves any existing archive
+     * as it was and never leaves a partial one behind.
+     *
+     * @param archive the archive to write
+     * @param compress whether to compress the records
+     * @param checksum whether to checksum the records
+     * @param exporter writes the records
+     *
+     * @return The number of entities exported.
+     *
+     * @throws PersistenceException error accessing the store or writing the archive
+     */
+    static int export(Path archive, boolean compress, boolean checksum, Exporter exporter)
+        throws PersistenceException
+    {
+        Path temp = null;
+        try
+        {
+            // Temporary files start with a dot so they are never mistaken for entities.
+            temp = Files.createTempFile(archive.toAbsolutePath().getParent(), "." + archive.getFileName(), TEMP_EXTENSION); //$NON-NLS-1$
+            int count = write(temp, compress, checksum, exporter);
+            Files.move(temp, archive, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            return count;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error exporting to " + archive, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            if (temp != null)
+            {
+                try
+                {
+                    Files.deleteIfExists(temp);
+                }
+                catch (IOException e)
+                {
+                    // Leave it; it can never be mistaken for an archive or an entity.
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes an archive to the given file.
+     *
+     * @param file the file to write
+     * @param compress whether to compress the records
+     * @param checksum whether to checksum the records
+     * @param exporter writes the records
+     *
+     * @return The number of entities exported.
+     *
+     * @throws IOException error writing the file
+     * @throws PersistenceException error accessing the store
+     */
+    private static int write(Path file, boolean compress, boolean checksum, Exporter exporter)
+        throws IOException, PersistenceException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+        {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+            header.putInt(MAGIC).put(FORMAT).put((byte)((compress ? COMPRESSED : 0) | (checksum ? CHECKSUMMED : 0)));
+            header.flip();
+            writeFully(channel, header);
+
+            int count;
+            if (!compress && !checksum)
+            {
+                // Entities can be transferred straight into the archive.
+                count = exporter.export(channel);
+                writeLength(channel, END);
+            }
+            else
+            {
+                BufferedOutputStream buffered = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+                GZIPOutputStream compressed = compress ? new GZIPOutputStream(buffered, BUFFER_SIZE) : null;
+                OutputStream out = compress ? compressed : buffered;
+                CRC32 crc = new CRC32();
+                WritableByteChannel records = Channels.newChannel(checksum ? new CheckedOutputStream(out, crc) : out);
+                count = exporter.export(records);
+                writeLength(records, END);
+                if (checksum)
+                {
+                    ByteBuffer value = ByteBuffer.allocate(Long.BYTES);
+                    value.putLong(crc.getValue());
+                    out.write(value.array());
+                }
+                if (compress)
+                {
+                    compressed.finish();
+                }
+                buffered.flush();
+            }
+            channel.force(true);
+            return count;
+        }
+    }
+
+    /**
+     * Reads every entity in the given archive and passes them to the given
+     * importer in batches. If the archive is checksummed, it is verified
+     * before any entity is imported.
+     *
+     * @param archive the archive to read
+     * @param clazz the entities' class
+     * @param importer writes each batch of entities
+     * @param <EntityType> the type of entity to import
+     *
+     * @return The number of entities imported.
+     *
+     * @throws PersistenceException error reading the archive or writing the entities
+     */
+    static <EntityType> int load(Path archive, Class<EntityType> clazz, Importer<EntityType> importer)
+        throws PersistenceException
+    {
+        try
+        {
+            if (isChecksummed(archive))
+            {
+                read(archive, clazz, null);
+            }
+            return read(archive, clazz, importer);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error importing from " + archive, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Reads every entity in the given archive and passes them to the given
+     * importer in batches, keeping their archived IDs. The whole archive
+     * is checked before any entity is imported: it is rejected if any of
+     * its IDs is already in use or appears more than once, rather than
+     * one entity silently replacing another.
+     *
+     * @param archive the archive to read
+     * @param clazz the entities' class
+     * @param existing the IDs already in use, in ascending order
+     * @param importer writes each batch of entities
+     * @param <EntityType> the type of entity to import
+     *
+     * @return The number of entities imported.
+     *
+     * @throws PersistenceException error reading the archive, an ID collides or error writing the entities
+     */
+    @SuppressWarnings("boxing")
+    static <EntityType extends AbstractEntity<?>> int restore(Path archive, Class<EntityType> clazz, int[] existing, Importer<EntityType> importer)
+        throws PersistenceException
+    {
+        Set<Integer> archived = new HashSet<>();
+        try
+        {
+            read(archive, clazz, entities -> {
+                for (EntityType entity : entities)
+                {
+                    int id = entity.getId();
+                    if ((Arrays.binarySearch(existing, id) >= 0) || !archived.add(id))
+                    {
+                        throw new PersistenceException("Error importing from " + archive + ", ID in use: " + id); //$NON-NLS-1$ //$NON-NLS-2$
+                    }
+                }
+            });
+            return read(archive, clazz, importer);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error importing from " + archive, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Writes a record holding the given encoded entity.
+     *
+     * @param records where to write the record
+     * @param data the encoded entity
+     *
+     * @throws IOException error writing the record
+     */
+    static void writeRecord(WritableByteChannel records, byte[] data)
+        throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(LENGTH_LENGTH + data.length);
+        record.putInt(data.length).put(data);
+        record.flip();
+        writeFully(records, record);
+    }
+
+    /**
+     * Writes a record holding the encoded entity in the given file,
+     * transferring the file's contents directly where possible.
+     *
+     * @param records where to write the record
+     * @param file the file holding the encoded entity
+     *
+     * @throws IOException error writing the record
+     */
+    static void transferRecord(WritableByteChannel records, FileChannel file)
+        throws IOException
+    {
+        long size = file.size();
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Entity too large: " + size); //$NON-NLS-1$
+        }
+        writeLength(records, (int)size);
+        long position = 0;
+        while (position < size)
+        {
+            long transferred = file.transferTo(position, size - position, records);
+            if (transferred <= 0)
+            {
+                throw new IOException("Entity truncated at " + position); //$NON-NLS-1$
+            }
+            position += transferred;
+        }
+    }
+
+    /**
+     * Writes a record length.
+     *
+     * @param records where to write the length
+     * @param length the length
+     *
+     * @throws IOException error writing the length
+     */
+    private static void writeLength(WritableByteChannel records, int length)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH_LENGTH);
+        buffer.putInt(length);
+        buffer.flip();
+        writeFully(records, buffer);
+    }
+
+    /**
+     * Writes the whole of the given buffer to the given channel.
+     *
+     * @param channel the channel to write to
+     * @param buffer the buffer to write
+     *
+     * @throws IOException error writing the buffer
+     */
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Reads the entities in the given archive.
+     *
+     * @param archive the archive to read
+     * @param clazz the entities' class
+     * @param importer writes each batch of entities (null to just verify the archive)
+     * @param <EntityType> the type of entity to read
+     *
+     * @return The number of entities read.
+     *
+     * @throws IOException error reading the archive
+     * @throws PersistenceException error writing the entities
+     */
+    private static <EntityType> int read(Path archive, Class<EntityType> clazz, Importer<EntityType> importer)
+        throws IOException, PersistenceException
+    {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ))
+        {
+            byte flags = readFlags(channel);
+            boolean checksum = (flags & CHECKSUMMED) != 0;
+
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel), BUFFER_SIZE);
+            if ((flags & COMPRESSED) != 0)
+            {
+                in = new GZIPInputStream(in, BUFFER_SIZE);
+            }
+            CRC32 crc = new CRC32();
+            DataInputStream records = new DataInputStream(checksum ? new CheckedInputStream(in, crc) : in);
+            List<EntityType> batch = new ArrayList<>();
+            int count = 0;
+            int length;
+            while ((length = records.readInt()) != END)
+            {
+                if (length < 0)
+                {
+                    throw new IOException("Invalid record length: " + length); //$NON-NLS-1$
+                }
+                byte[] data = new byte[length];
+                records.readFully(data);
+                count++;
+                if (importer != null)
+                {
+                    batch.add(EntityCodecs.decode(data, clazz));
+                    if (batch.size() == BATCH_SIZE)
+                    {
+                        importer.write(batch);
+                        batch = new ArrayList<>();
+                    }
+                }
+            }
+            if (checksum && (new DataInputStream(in).readLong() != crc.getValue()))
+            {
+                throw new IOException("Checksum mismatch"); //$NON-NLS-1$
+            }
+            if (!batch.isEmpty())
+            {
+                importer.write(batch);
+            }
+            return count;
+        }
+    }
+
+    /**
+     * Determines whether the given archive is checksummed.
+     * 
+     * @param archive the archive
+     * 
+     * @return Whether the archive is checksummed.
+     * 
+     * @throws IOException error reading the archive
+     */
+    private static boolean isChecksummed(Path archive)
+        throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ))
+        {
+            return (readFlags(channel) & CHECKSUMMED) != 0;
+        }
+    }
+
+    /**
+     * Reads and validates an archive's header.
+     * 
+     * @param channel the channel to read from
+     * 
+     * @return The archive's flags.
+     * 
+     * @throws IOException error reading the header or the channel is not an archive
+     */
+    private static byte readFlags(ReadableByteChannel channel)
+        throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(channel, header);
+        header.flip();
+        if ((header.getInt() != MAGIC) || (header.get() != FORMAT))
+        {
+            throw new IOException("Not an entity archive"); //$NON-NLS-1$
+        }
+        return header.get();
+    }
+
+    /**
+     * Fills the given buffer from the given channel.
+     *
+     * @param channel the channel to read from
+     * @param buffer the buffer to fill
+     *
+     * @throws IOException error reading the channel or it ended first
+     */
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer)
+        throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            if (channel.read(buffer) < 0)
+            {
+                throw new IOException("Not an entity archive"); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Writes the records for a store's entities.
+     */
+    @FunctionalInterface
+    interface Exporter
+    {
+        /**
+         * Writes a record for each of the entities.
+         *
+         * @param records where to write the records
+         *
+         * @return The number of records written.
+         *
+         * @throws IOException error writing the records
+         * @throws PersistenceException error accessing the store
+         */
+        int export(WritableByteChannel records)
+            throws IOException, PersistenceException;
+    }
+
+    /**
+     * Writes a batch of imported entities to a store.
+     *
+     * @param <EntityType> the type of entity to import
+     */
+    @FunctionalInterface
+    interface Importer<EntityType>
+    {
+        /**
+         * Writes the given entities.
+         *
+         * @param entities the entities to write
+         *
+         * @throws PersistenceException error writing the entities
+         */
+        void write(List<EntityType> entities)
+            throws PersistenceException;
+    }
+}
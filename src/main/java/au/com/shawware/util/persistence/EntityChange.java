@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * A change to an entity in a store, as reported to the listener of an
+ * {@link IEntityWatch}.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public final class EntityChange
+{
+    /**
+     * The kinds of change.
+     */
+    public enum Type
+    {
+        /** The entity has been created. */
+        CREATED,
+        /** The entity has been updated. */
+        UPDATED,
+        /** The entity has been deleted. */
+        DELETED;
+    }
+
+    /** The kind of change. */
+    private final Type mType;
+    /** The changed entity's ID. */
+    private final int mId;
+
+    /**
+     * Constructs a new change.
+     *
+     * @param type the kind of change
+     * @param id the changed entity's ID
+     */
+    EntityChange(Type type, int id)
+    {
+        mType = type;
+        mId   = id;
+    }
+
+    /**
+     * @return The kind of change.
+     */
+    public Type getType()
+    {
+        return mType;
+    }
+
+    /**
+     * @return The changed entity's ID.
+     */
+    public int getId()
+    {
+        return mId;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mType, mId);
+    }
+}
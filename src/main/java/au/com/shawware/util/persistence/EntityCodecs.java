@@ -0,0 +1,264 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * The standard entity codecs and the means to encode and decode
+ * entities in a self-describing form. JSON is written as is, for
+ * compatibility with existing stores and to keep it human-readable.
+ * Anything else is preceded by a marker byte (which cannot start a
+ * JSON document) and the ID of the codec that wrote it. This means a
+ * store can be switched from one codec to another and its existing
+ * entities are migrated lazily as they are updated.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public final class EntityCodecs
+{
+    /** The ID of the (header-less) JSON codecs. */
+    public static final byte JSON_ID = 0;
+    /** The ID of the Smile (binary JSON) codec. */
+    public static final byte SMILE_ID = 1;
+    /** The ID of the Deflate compression codec. */
+    public static final byte DEFLATE_ID = 2;
+    /** The ID of the GZIP compression codec. */
+    public static final byte GZIP_ID = 3;
+
+    /** Pretty-printed JSON - the historical format. */
+    public static final IEntityCodec PRETTY_JSON;
+    /** JSON without any whitespace. */
+    public static final IEntityCodec COMPACT_JSON;
+    /** Smile, Jackson's binary JSON format. */
+    public static final IEntityCodec SMILE;
+
+    /** The marker that precedes the codec ID for non-JSON codecs. */
+    private static final byte MARKER = 0;
+    /** The length of the header for non-JSON codecs. */
+    private static final int HEADER_LENGTH = 2;
+
+    /**
+     * The mapper behind everything that reads or writes JSON. Mappers can
+     * be reconfigured, so only its immutable readers and writers are
+     * shared outside this class.
+     */
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+    /** The writer shared by everything that writes compact JSON. */
+    static final ObjectWriter JSON_WRITER = JSON_MAPPER.writer();
+    /** The mapper behind the Smile codec. */
+    private static final ObjectMapper SMILE_MAPPER = new ObjectMapper(new SmileFactory());
+
+    /** The codecs that can decode each ID. */
+    private static final Map<Byte, IEntityCodec> sCodecs = new ConcurrentHashMap<>();
+    /** The shared JSON reader for each class. */
+    private static final Map<Class<?>, ObjectReader> sReaders = new ConcurrentHashMap<>();
+
+    static
+    {
+        PRETTY_JSON  = new JacksonCodec(JSON_ID, "pretty-json", JSON_MAPPER.reader(), JSON_MAPPER.writerWithDefaultPrettyPrinter()); //$NON-NLS-1$
+        COMPACT_JSON = new JacksonCodec(JSON_ID, "json", JSON_MAPPER.reader(), JSON_WRITER); //$NON-NLS-1$
+        SMILE = new JacksonCodec(SMILE_ID, "smile", SMILE_MAPPER.reader(), SMILE_MAPPER.writer()); //$NON-NLS-1$
+        register(SMILE);
+        register(deflate(COMPACT_JSON));
+        register(gzip(COMPACT_JSON));
+    }
+
+    /**
+     * Prevent instantiation.
+     */
+    private EntityCodecs()
+    {
+        // Do nothing
+    }
+
+    /**
+     * Creates a codec that compresses the given codec's output with Deflate.
+     * 
+     * @param codec the codec to compress
+     * 
+     * @return The compressing codec.
+     */
+    public static IEntityCodec deflate(IEntityCodec codec)
+    {
+        return new CompressedCodec(codec, false);
+    }
+
+    /**
+     * Creates a codec that compresses the given codec's output with GZIP.
+     * 
+     * @param codec the codec to compress
+     * 
+     * @return The compressing codec.
+     */
+    public static IEntityCodec gzip(IEntityCodec codec)
+    {
+        return new CompressedCodec(codec, true);
+    }
+
+    /**
+     * Registers a custom codec so that data it encodes can be decoded.
+     * 
+     * @param codec the codec to register
+     */
+    @SuppressWarnings("boxing")
+    public static void register(IEntityCodec codec)
+    {
+        if ((codec == null) || (codec.getId() == JSON_ID))
+        {
+            throw new IllegalArgumentException("Invalid codec: " + codec); //$NON-NLS-1$
+        }
+        sCodecs.put(codec.getId(), codec);
+    }
+
+    /**
+     * Encodes the given entity with the given codec in a self-describing form.
+     * 
+     * @param codec the codec to use
+     * @param entity the entity to encode
+     * 
+     * @return The encoded entity.
+     * 
+     * @throws IOException error encoding the entity
+     */
+    public static byte[] encode(IEntityCodec codec, Object entity)
+        throws IOException
+    {
+        byte[] encoded = codec.encode(entity);
+        if (codec.getId() == JSON_ID)
+        {
+            return encoded;
+        }
+        byte[] data = new byte[HEADER_LENGTH + encoded.length];
+        data[0] = MARKER;
+        data[1] = codec.getId();
+        System.arraycopy(encoded, 0, data, HEADER_LENGTH, encoded.length);
+        return data;
+    }
+
+    /**
+     * Decodes an entity from self-describing data, whichever codec wrote it.
+     * 
+     * @param data the data to decode
+     * @param clazz the entity's class
+     * @param <EntityType> the type of entity to decode
+     * 
+     * @return The decoded entity.
+     * 
+     * @throws IOException error decoding the entity
+     */
+    public static <EntityType> EntityType decode(byte[] data, Class<EntityType> clazz)
+        throws IOException
+    {
+        if ((data.length == 0) || (data[0] != MARKER))
+        {
+            return COMPACT_JSON.decode(data, 0, data.length, clazz);
+        }
+        return getCodec(data).decode(data, HEADER_LENGTH, data.length - HEADER_LENGTH, clazz);
+    }
+
+    /**
+     * Creates a parser over the tokens of self-describing data, whichever
+     * codec wrote it.
+     * 
+     * @param data the data to parse
+     * 
+     * @return The parser.
+     * 
+     * @throws IOException error creating the parser
+     */
+    public static JsonParser createParser(byte[] data)
+        throws IOException
+    {
+        if ((data.length == 0) || (data[0] != MARKER))
+        {
+            return COMPACT_JSON.createParser(data, 0, data.length);
+        }
+        return getCodec(data).createParser(data, HEADER_LENGTH, data.length - HEADER_LENGTH);
+    }
+
+    /**
+     * Retrieves the shared JSON reader for the given class. Readers are
+     * immutable, so one can be used by every store of that class.
+     * 
+     * @param clazz the class to read
+     * 
+     * @return The reader.
+     */
+    static ObjectReader readerFor(Class<?> clazz)
+    {
+        return sReaders.computeIfAbsent(clazz, JSON_MAPPER::readerFor);
+    }
+
+    /**
+     * Creates a JSON reader for the given generic type, eg. a collection.
+     * 
+     * @param type the type to read
+     * 
+     * @return The reader.
+     */
+    static ObjectReader readerFor(TypeReference<?> type)
+    {
+        return JSON_MAPPER.readerFor(type);
+    }
+
+    /**
+     * Builds and caches the serializers and deserializers for the given
+     * classes in advance, so that the first entities encoded or decoded
+     * do not pay for introspecting their classes.
+     * 
+     * @param classes the classes to prepare
+     * 
+     * @throws IOException error building a serializer
+     */
+    public static void prewarm(Class<?>... classes)
+        throws IOException
+    {
+        for (Class<?> clazz : classes)
+        {
+            readerFor(clazz);
+            JSON_MAPPER.getSerializerProviderInstance().findValueSerializer(clazz);
+            SMILE_MAPPER.readerFor(clazz);
+            SMILE_MAPPER.getSerializerProviderInstance().findValueSerializer(clazz);
+        }
+    }
+
+    /**
+     * Finds the codec that wrote the given self-describing data.
+     * 
+     * @param data the data, which starts with a codec header
+     * 
+     * @return The codec.
+     * 
+     * @throws IOException the header is truncated or the codec is unknown
+     */
+    @SuppressWarnings("boxing")
+    private static IEntityCodec getCodec(byte[] data)
+        throws IOException
+    {
+        if (data.length < HEADER_LENGTH)
+        {
+            throw new IOException("Truncated header"); //$NON-NLS-1$
+        }
+        IEntityCodec codec = sCodecs.get(data[1]);
+        if (codec == null)
+        {
+            throw new IOException("Unknown codec: " + data[1]); //$NON-NLS-1$
+        }
+        return codec;
+    }
+}
@@ -7,30 +7,111 @@
 
 package au.com.shawware.util.persistence;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.function.Function;
+import java.util.NavigableSet;
+import java.util.Objects;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.ObjectReader;
-import com.fasterxml.jackson.databind.ObjectWriter;
 
+import au.com.shawware.util.IntObjectMap;
 import au.com.shawware.util.StringUtil;
 
 /**
- * Persists entities to disk as JSON.
+ * Persists entities to disk, one file per entity. The store is
+ * configured by {@link DiskStoreOptions}. By default entities are
+ * written as pretty-printed JSON, but any {@link IEntityCodec} can
+ * be used. Files are self-describing so existing entities can be read
+ * whichever codec wrote them. Files keep the same extension whatever
+ * the codec so that a store can be migrated from one codec to another.
+ * <p>
+ * By default, files are overwritten in place. For durability, files can
+ * instead be written atomically (see {@link Durability}): each entity is
+ * written to a temporary file which is forced to disk and then renamed
+ * over the original, so a crash leaves either the old or the new entity,
+ * never a torn one.
+ * <p>
+ * This store is thread-safe. IDs are allocated without locking and
+ * each entity is guarded by one of a fixed set of read/write locks,
+ * chosen by its ID, so independent entities can be read and written
+ * in parallel while operations on the same entity are serialised.
+ * <p>
+ * Stores holding very many entities can spread their files across
+ * sub-directories (see {@link DiskLayout}) and an existing store can be
+ * converted from one layout to another with {@link #migrate}.
+ * <p>
+ * Optionally, the store keeps a checkpoint of its state (see
+ * {@link #checkpoint()}), which is written when the store is closed.
+ * When the store is next used, the checkpoint is validated against the
+ * modification stamps of the store's directories and, if none of them
+ * have changed, used in place of scanning the store. This relies on the
+ * file system recording modification stamps with a fine resolution.
+ * Once loaded, the IDs in the store are held in memory and maintained
+ * by this store's own writes, so entities created or deleted by another
+ * process are not seen. A checkpointed store must therefore be the only
+ * writer to its directory and cannot be watched.
+ * <p>
+ * Deleting an entity only records a tombstone for it in a journal (see
+ * {@link TombstoneJournal}), so deletes return without waiting for the
+ * file system. The deleted entities' files are removed shortly after,
+ * in batches, by a background reclaimer, or at once by {@link #reclaim()}.
+ * A deleted entity's ID is never allocated again.
  *
  * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
  * 
  * @param <EntityType> the entity to be persisted
  */
-public class EntityDiskStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>
+public class EntityDiskStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>, Closeable
 {
     /** The file extension to use for entities. */
     private static final String JSON_EXTENSION = ".json"; //$NON-NLS-1$
@@ -40,6 +121,38 @@ public class EntityDiskStore<EntityType extends AbstractEntity<?>> implements IE
     private static final String ID_SEPARATOR = "-"; //$NON-NLS-1$
     /** The format to use for the IDs. */
     private static final String ID_FORMAT = "%02d"; //$NON-NLS-1$
+    /** The file extension to use for the persisted maximum ID. */
+    private static final String MAX_ID_EXTENSION = ".id"; //$NON-NLS-1$
+    /** The file extension to use for temporary files. */
+    private static final String TEMP_EXTENSION = ".tmp"; //$NON-NLS-1$
+    /** The number of locks to stripe the entities across (a power of two). */
+    private static final int LOCK_STRIPES = 64;
+    /** The number of sub-directories at each level of a sharded layout. */
+    private static final int SHARD_COUNT = 256;
+    /** The format to use for shard names. */
+    private static final String SHARD_FORMAT = "%02x"; //$NON-NLS-1$
+    /** The pattern shard names match. */
+    private static final String SHARD_PATTERN = "[0-9a-f]{2}"; //$NON-NLS-1$
+    /** The file extension to use for the checkpoint. */
+    private static final String CHECKPOINT_EXTENSION = ".checkpoint"; //$NON-NLS-1$
+    /** The key for the stamp of the store's own directory in a checkpoint. */
+    private static final String ROOT_STAMP = ""; //$NON-NLS-1$
+    /** Converts checkpoints to and from JSON. */
+    private static final ObjectMapper CHECKPOINT_MAPPER = new ObjectMapper();
+    /** The file extension to use for the tombstone journal. */
+    private static final String TOMBSTONE_EXTENSION = ".tombstones"; //$NON-NLS-1$
+    /** How long after a delete to reclaim the deleted entities' files. */
+    private static final long RECLAIM_DELAY_MILLIS = 100;
+    /** The longest to wait before retrying a failed reclamation. */
+    private static final long MAX_RECLAIM_DELAY_MILLIS = 60 * 1000;
+    /** The number of files to remove before forcing their directories. */
+    private static final int RECLAIM_BATCH = 256;
+    /** Reclaims deleted entities' files in the background for every store. */
+    private static final ScheduledExecutorService RECLAIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "entity-reclaimer"); //$NON-NLS-1$
+        thread.setDaemon(true);
+        return thread;
+    });
 
     /** The directory where entities are to be stored. */
     private final String mDirectory;
@@ -47,15 +160,49 @@ public class EntityDiskStore<EntityType extends AbstractEntity<?>> implements IE
     private final String mEntityName;
     /** The file prefix to use when storing an entity. */
     private final String mPrefix;
-    /** The length of the file prefix. */
-    private final int mPrefixLength;
-    /** The JSON writer to use. */
-    private final ObjectWriter mWriter;
-    /** The JSON reader to use. */
-    private final ObjectReader mReader;
+    /** The entity's class. */
+    private final Class<EntityType> mClass;
+    /** The codec to write entities with. */
+    private final IEntityCodec mCodec;
+    /** The highest ID allocated so far. */
+    private final AtomicInteger mMaxId;
+    /** Whether the highest ID has been loaded yet. */
+    private volatile boolean mMaxIdLoaded;
+    /** The file to persist the highest ID to on closing (if any). */
+    private final Path mMaxIdFile;
+    /** How durably to write entities. */
+    private final Durability mDurability;
+    /** How the store's files are laid out. */
+    private final DiskLayout mLayout;
+    /** Forces the directory on behalf of concurrent writers. */
+    private final DirectorySync mDirectorySync;
+    /** The locks guarding the entities, striped by ID. */
+    private final ReadWriteLock[] mLocks;
+    /** The file to checkpoint the store's state to (if any). */
+    private final Path mCheckpointFile;
+    /** The IDs in the store, held in memory once loaded if checkpointing. */
+    private volatile NavigableSet<Integer> mIds;
+    /** The highest ID allocated according to the checkpoint (if any). */
+    private int mCheckpointMaxId;
+    /** The number of writes so far, which orders writes against snapshots. */
+    private final AtomicLong mWrites;
+    /** The open snapshots. */
+    private final Queue<DiskSnapshot> mSnapshots;
+    /** The entities' previous versions, by ID, retained for the open snapshots. */
+    private final Map<Integer, List<Version>> mVersions;
+    /** The entities deleted but whose files have not yet been removed. */
+    private final TombstoneJournal mTombstones;
+    /** Whether a background reclamation is scheduled. */
+    private final AtomicBoolean mReclaimScheduled;
+    /** The number of background reclamations that have failed in a row. */
+    private final AtomicInteger mReclaimFailures;
+    /** Why the last background reclamation failed (if it did). */
+    private volatile IOException mReclaimFailure;
+    /** Serialises reclamations. */
+    private final Lock mReclaimLock;
 
     /**
-     * Constructs a new data store for the given class.
+     * Constructs a new data store for the given class with the default options.
      * 
      * @param directory the directory to store entities in
      * @param name the name of the entity
@@ -63,6 +210,20 @@ public class EntityDiskStore<EntityType extends AbstractEntity<?>> implements IE
      * @param clazz the entity's class
      */
     public EntityDiskStore(String directory, String name, String prefix, Class<EntityType> clazz)
+    {
+        this(directory, name, prefix, clazz, new DiskStoreOptions());
+    }
+
+    /**
+     * Constructs a new data store for the given class.
+     * 
+     * @param directory the directory to store entities in
+     * @param name the name of the entity
+     * @param prefix the prefix to use for the entity
+     * @param clazz the entity's class
+     * @param options how to store the entities
+     */
+    public EntityDiskStore(String directory, String name, String prefix, Class<EntityType> clazz, DiskStoreOptions options)
     {
         if (StringUtil.isEmpty(directory) ||
             StringUtil.isEmpty(name) ||
@@ -70,40 +231,206 @@ public class EntityDiskStore<EntityType extends AbstractEntity<?>> implements IE
         {
             throw new IllegalArgumentException("Empty parameter"); //$NON-NLS-1$
         }
+        if ((clazz == null) || (options == null))
+        {
+            throw new IllegalArgumentException("Null parameter"); //$NON-NLS-1$
+        }
         mDirectory = directory;
         mEntityName = name;
         mPrefix = prefix + ID_SEPARATOR;
-        mPrefixLength = mPrefix.length();
-        ObjectMapper mapper = new ObjectMapper();
-        mWriter = mapper.writerWithDefaultPrettyPrinter();
-        mReader = mapper.readerFor(clazz);
+        mClass = clazz;
+        mCodec = options.getCodec();
+        mMaxId = new AtomicInteger(AbstractEntity.DEFAULT_ID);
+        mMaxIdLoaded = false;
+        mMaxIdFile = options.getPersistMaxId() ? Paths.get(directory, prefix + MAX_ID_EXTENSION) : null;
+        mDurability = options.getDurability();
+        mLayout = options.getLayout();
+        mDirectorySync = new DirectorySync(DirectorySync.DEFAULT_WINDOW_MICROS);
+        mLocks = new ReadWriteLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+        {
+            mLocks[i] = new ReentrantReadWriteLock();
+        }
+        mCheckpointFile = options.getCheckpoint() ? Paths.get(directory, prefix + CHECKPOINT_EXTENSION) : null;
+        mIds = null;
+        mCheckpointMaxId = AbstractEntity.DEFAULT_ID;
+        mWrites = new AtomicLong(0);
+        mSnapshots = new ConcurrentLinkedQueue<>();
+        mVersions = new ConcurrentHashMap<>();
+        mTombstones = new TombstoneJournal(Paths.get(directory, prefix + TOMBSTONE_EXTENSION), mDurability != Durability.NONE);
+        mReclaimScheduled = new AtomicBoolean(false);
+        mReclaimFailures = new AtomicInteger(0);
+        mReclaimFailure = null;
+        mReclaimLock = new ReentrantLock();
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entities are read through a snapshot, so the result is
+     * consistent even if the store is being written to concurrently.
+     */
     @Override
     public Map<Integer, EntityType> getAll()
         throws PersistenceException
+    {
+        try (DiskSnapshot snapshot = new DiskSnapshot())
+        {
+            return snapshot.getAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entities are read through a snapshot, so the result is
+     * consistent even if the store is being written to concurrently.
+     */
+    @Override
+    public Map<Integer, EntityType> getAll(Executor executor)
+        throws PersistenceException
+    {
+        try (DiskSnapshot snapshot = new DiskSnapshot())
+        {
+            return snapshot.getAll(executor);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entities are read through a snapshot, so the result is
+     * consistent even if the store is being written to concurrently.
+     */
+    @Override
+    public IntObjectMap<EntityType> getAllById()
+        throws PersistenceException
+    {
+        try (DiskSnapshot snapshot = new DiskSnapshot())
+        {
+            return snapshot.getAllById();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Taking a snapshot is cheap and never blocks writers. While it is
+     * open, each write first retains a copy of the entity it replaces or
+     * deletes, which the snapshot reads instead of the current file. The
+     * copies are discarded once no open snapshot needs them.
+     */
+    @Override
+    public IEntitySnapshot<EntityType> snapshot()
+    {
+        return new DiskSnapshot();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The store's directories are watched by the file system and only the
+     * entities whose files change are reloaded. Entities deleted through
+     * this store are noticed at once; those deleted by another process
+     * are noticed when that process reclaims their files.
+     * <p>
+     * Checkpointed stores cannot be watched, as they do not see changes
+     * made by other processes.
+     */
+    @Override
+    public IEntityWatch<EntityType> watch(Consumer<EntityChange> listener)
+        throws PersistenceException
+    {
+        if (mCheckpointFile != null)
+        {
+            throw new IllegalStateException("Checkpointed stores cannot be watched: " + mEntityName); //$NON-NLS-1$
+        }
+        try
+        {
+            return new DiskWatch(listener);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error watching " + mEntityName, e); //$NON-NLS-1$
+        }
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+        throws PersistenceException
     {
         try
         {
-            return getIdStream()
-                    .mapToObj(id -> getForStream(id))
-                    .collect(Collectors.toMap(AbstractEntity::getId, Function.identity()));
+            return Arrays.stream(getIds()).mapToObj(this::getForStream);
         }
-        catch (IOException | UncheckedPersistenceException e)
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error retrieving every " + mEntityName, e); //$NON-NLS-1$
+        }
+    }
+
+    @Override
+    public int[] getAllIds()
+        throws PersistenceException
+    {
+        try
+        {
+            return getIds();
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error retrieving every " + mEntityName, e); //$NON-NLS-1$
+        }
+    }
+
+    @Override
+    public Stream<EntityProjection> project(String... fields)
+        throws PersistenceException
+    {
+        EntityProjector projector = new EntityProjector(fields);
+        try
+        {
+            return Arrays.stream(getIds()).mapToObj(id -> project(id, projector)).filter(Objects::nonNull);
+        }
+        catch (IOException e)
         {
             throw new PersistenceException("Error retrieving every " + mEntityName, e); //$NON-NLS-1$
         }
     }
 
+    @Override
+    public List<EntityType> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException("Invalid limit: " + limit); //$NON-NLS-1$
+        }
+        try
+        {
+            int[] ids = Arrays.stream(getIds()).filter(id -> id >= fromId).limit(limit).toArray();
+            List<EntityType> entities = new ArrayList<>(ids.length);
+            for (int id : ids)
+            {
+                entities.add(get(id));
+            }
+            return entities;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error retrieving " + mEntityName + " from: " + fromId, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
     @Override
     public EntityType create(EntityType entity)
         throws PersistenceException
     {
         try
         {
-            int maxID = getIdStream().max().orElse(0);
-            entity.setId(maxID + 1);
-            mWriter.writeValue(getFile(entity.getId()), entity);
+            entity.setId(allocateId());
+            entity.setVersion(AbstractEntity.INITIAL_VERSION);
+            commit(write(entity.getId(), entity));
             return entity;
         }
         catch (IOException e)
@@ -117,116 +444,2129 @@ public class EntityDiskStore<EntityType extends AbstractEntity<?>> implements IE
         throws PersistenceException
     {
         File file = getFile(id);
-        return get(id, file);
+        Lock lock = getLock(id).readLock();
+        lock.lock();
+        try
+        {
+            return get(id, file);
+        }
+        finally
+        {
+            lock.unlock();
+        }
     }
 
     @Override
     public void update(EntityType entity)
         throws PersistenceException
     {
+        int id = entity.getId();
+        File file = getFile(id);
+        Lock lock = getLock(id).writeLock();
+        lock.lock();
+        try
+        {
+            EntityType stored = get(id, file);
+            long previous = entity.getVersion();
+            entity.setVersion(ConcurrentUpdateException.nextVersion(mEntityName, stored, entity));
+            try
+            {
+                preserve(id, file);
+                write(file, entity);
+            }
+            catch (IOException e)
+            {
+                entity.setVersion(previous);
+                throw e;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error updating " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        finally
+        {
+            lock.unlock();
+        }
         try
         {
-            File file = getFile(entity.getId());
-            get(entity.getId(), file);
-            mWriter.writeValue(file, entity);
+            commit(file.toPath());
         }
         catch (IOException e)
         {
-            throw new PersistenceException("Error updating " + mEntityName + ": " + entity.getId(), e); //$NON-NLS-1$ //$NON-NLS-2$
+            throw new PersistenceException("Error updating " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
         }
     }
 
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entity is marked as deleted and its file is removed later.
+     */
     @Override
     public void delete(int id)
         throws PersistenceException
     {
         File file = getFile(id);
-        file.delete();
+        Lock lock = getLock(id).writeLock();
+        try
+        {
+            lock.lock();
+            try
+            {
+                if (!exists(id, file))
+                {
+                    return;
+                }
+                preserve(id, file);
+                mTombstones.delete(id);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            untrack(id);
+            scheduleReclaim();
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error deleting " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    @Override
+    public List<EntityType> createAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        List<EntityType> created = new ArrayList<>(entities.size());
+        if (entities.isEmpty())
+        {
+            return created;
+        }
+        try
+        {
+            int id = allocateIds(entities.size());
+            List<Path> files = new ArrayList<>(entities.size());
+            for (EntityType entity : entities)
+            {
+                entity.setId(id++);
+                entity.setVersion(AbstractEntity.INITIAL_VERSION);
+                files.add(write(entity.getId(), entity));
+                created.add(entity);
+            }
+            sync(files);
+            return created;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error creating " + mEntityName, e); //$NON-NLS-1$
+        }
+    }
+
+    @Override
+    public void updateAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        // Lock every entity (in a fixed order, to avoid deadlock) so the batch is checked and applied atomically.
+        int[] stripes = entities.stream().mapToInt(entity -> getStripe(entity.getId())).distinct().sorted().toArray();
+        for (int stripe : stripes)
+        {
+            mLocks[stripe].writeLock().lock();
+        }
+        List<Path> files = new ArrayList<>(entities.size());
+        int id = AbstractEntity.DEFAULT_ID;
+        try
+        {
+            // Check every entity exists and is current before updating any of them.
+            long[] versions = new long[entities.size()];
+            int i = 0;
+            for (EntityType entity : entities)
+            {
+                EntityType stored = get(entity.getId(), getFile(entity.getId()));
+                versions[i++] = ConcurrentUpdateException.nextVersion(mEntityName, stored, entity);
+            }
+            i = 0;
+            for (EntityType entity : entities)
+            {
+                id = entity.getId();
+                long previous = entity.getVersion();
+                entity.setVersion(versions[i++]);
+                try
+                {
+                    files.add(write(id, entity));
+                }
+                catch (IOException e)
+                {
+                    entity.setVersion(previous);
+                    throw e;
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error updating " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        finally
+        {
+            for (int stripe : stripes)
+            {
+                mLocks[stripe].writeLock().unlock();
+            }
+        }
+        try
+        {
+            sync(files);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error updating " + mEntityName, e); //$NON-NLS-1$
+        }
     }
 
     /**
-     * Builds a stream of entity IDs from the store.
-     * 
-     * @return The stream of entity IDs.
-     * 
-     * @throws IOException error reading store
+     * {@inheritDoc}
+     * <p>
+     * The entities are marked as deleted together and their files are
+     * removed later.
      */
-    private IntStream getIdStream()
-        throws IOException
+    @Override
+    public void deleteAll(int[] ids)
+        throws PersistenceException
     {
-        Path path = Paths.get(mDirectory);
-        return Files.list(path)
-                .map(Path::getFileName)
-                .map(Path::toString)
-                .filter(name -> name.startsWith(mPrefix) && name.endsWith(JSON_EXTENSION))
-                .mapToInt(name -> Integer.parseInt(name.substring(mPrefixLength, name.length() - EXTENSION_LENGTH)));
+        // Lock every entity (in a fixed order, to avoid deadlock) so the batch is journalled at once.
+        int[] stripes = Arrays.stream(ids).map(EntityDiskStore::getStripe).distinct().sorted().toArray();
+        for (int stripe : stripes)
+        {
+            mLocks[stripe].writeLock().lock();
+        }
+        int[] deleted;
+        try
+        {
+            deleted = Arrays.stream(ids).distinct().filter(this::existsForStream).toArray();
+            for (int id : deleted)
+            {
+                preserve(id, getFile(id));
+            }
+            if (deleted.length > 0)
+            {
+                mTombstones.delete(deleted);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error deleting " + mEntityName, e); //$NON-NLS-1$
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException("Error deleting " + mEntityName, e.getCause()); //$NON-NLS-1$
+        }
+        finally
+        {
+            for (int stripe : stripes)
+            {
+                mLocks[stripe].writeLock().unlock();
+            }
+        }
+        try
+        {
+            for (int id : deleted)
+            {
+                untrack(id);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error deleting " + mEntityName, e); //$NON-NLS-1$
+        }
+        scheduleReclaim();
     }
 
     /**
-     * Loads the entity with the given ID for streams, ie. with no checked exception.
+     * Removes the files of the deleted entities now, rather than waiting
+     * for them to be reclaimed in the background.
      * 
-     * @param id the entity's ID
+     * @return The number of deleted entities reclaimed.
      * 
-     * @return The corresponding entity.
-     *
-     * @throws UncheckedPersistenceException error reading the file
+     * @throws PersistenceException error removing the files
      */
-    private EntityType getForStream(int id)
-        throws UncheckedPersistenceException
+    public int reclaim()
+        throws PersistenceException
     {
         try
         {
-            return get(id);
+            return reclaimDeleted();
         }
-        catch (PersistenceException e)
+        catch (IOException e)
         {
-            throw new UncheckedPersistenceException("Error accessing " + mEntityName + ": " + id, e.getCause()); //$NON-NLS-1$ //$NON-NLS-2$
+            throw new PersistenceException("Error reclaiming " + mEntityName, e); //$NON-NLS-1$
         }
     }
 
     /**
-     * Loads the entity with the given ID from the given file.
+     * Retrieves the reason the last background reclamation failed. A
+     * failed reclamation is retried, waiting longer after each failure.
      * 
-     * @param id the entity's ID
-     * @param file the file to load from
+     * @return The error or null if the last reclamation succeeded.
+     */
+    public IOException getReclaimFailure()
+    {
+        return mReclaimFailure;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entities' files are transferred directly into the archive
+     * rather than being decoded and re-encoded.
+     */
+    @Override
+    public int exportTo(Path archive, boolean compress, boolean checksum)
+        throws PersistenceException
+    {
+        return EntityArchive.export(archive, compress, checksum, this::transferTo);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entities keep their archived IDs and each batch is made durable
+     * at once, according to the store's durability. The archive is rejected before anything is
+     * imported if any of its IDs is already in use in this store.
+     */
+    @Override
+    public int importFrom(Path archive, Class<EntityType> clazz)
+        throws PersistenceException
+    {
+        return EntityArchive.restore(archive, clazz, getAllIds(), this::putAll);
+    }
+
+    /**
+     * Writes an archive record for every entity in a snapshot of this store.
      * 
-     * @return The corresponding entity.
-     *
-     * @throws PersistenceException error reading the file
+     * @param records where to write the records
+     * 
+     * @return The number of records written.
+     * 
+     * @throws IOException error reading the store or writing the records
      */
-    private EntityType get(int id, File file)
+    int transferTo(WritableByteChannel records)
+        throws IOException
+    {
+        try (DiskSnapshot snapshot = new DiskSnapshot())
+        {
+            return snapshot.transferTo(records);
+        }
+    }
+
+    /**
+     * Reads a stamp for each entity in this store from its file's
+     * attributes, ie. without reading the file. A file's stamp changes
+     * whenever the file is written, unless the write changes neither its
+     * size nor its modification time, which file systems with coarse
+     * timestamps can allow for rapid writes.
+     * 
+     * @return The stamps keyed by entity ID.
+     * 
+     * @throws PersistenceException error reading the store
+     */
+    @SuppressWarnings("boxing")
+    Map<Integer, Long> getFileStamps()
         throws PersistenceException
     {
         try
         {
-            return mReader.readValue(file);
+            Map<Integer, Long> stamps = new HashMap<>();
+            for (int id : getIds())
+            {
+                try
+                {
+                    BasicFileAttributes attributes = Files.readAttributes(getFile(id).toPath(), BasicFileAttributes.class);
+                    stamps.put(id, (31 * attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS)) + attributes.size());
+                }
+                catch (NoSuchFileException e)
+                {
+                    // Deleted since the IDs were listed.
+                }
+            }
+            return stamps;
         }
         catch (IOException e)
         {
-            throw new PersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+            throw new PersistenceException("Error retrieving every " + mEntityName, e); //$NON-NLS-1$
         }
     }
 
     /**
-     * Calculates the corresponding data file for the given ID.
-     *
-     * @param id the ID
-     *
-     * @return The corresponding file.
+     * Writes the given entity with the ID it already has, eg. one allocated
+     * by a store that spans several directories. The ID is reserved so that
+     * this store never allocates it.
+     * 
+     * @param entity the entity to write
+     * 
+     * @throws PersistenceException error writing the entity
      */
-    @SuppressWarnings("boxing")
-    private File getFile(int id)
+    void put(EntityType entity)
+        throws PersistenceException
     {
-        if (id < 0)
+        try
         {
-            throw new IllegalArgumentException("Invalid ID:"  + id); //$NON-NLS-1$
+            reserveId(entity.getId());
+            commit(write(entity.getId(), entity));
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error creating " + mEntityName + ": " + entity.getId(), e); //$NON-NLS-1$ //$NON-NLS-2$
         }
-        return new File(mDirectory, mPrefix + String.format(ID_FORMAT, id) + JSON_EXTENSION);
     }
 
-    @Override
-    public String toString()
-    {
-        return StringUtil.toString(mEntityName, mDirectory);
+    /**
+     * Writes the given entities with the IDs they already have, forcing
+     * them to disk once as a batch. The IDs are reserved so that this
+     * store never allocates them.
+     * 
+     * @param entities the entities to write
+     * 
+     * @throws PersistenceException error writing the entities
+     */
+    void putAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        int id = AbstractEntity.DEFAULT_ID;
+        try
+        {
+            List<Path> files = new ArrayList<>(entities.size());
+            for (EntityType entity : entities)
+            {
+                id = entity.getId();
+                reserveId(id);
+                files.add(write(id, entity));
+            }
+            sync(files);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error creating " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * @return The highest ID allocated or reserved so far.
+     * 
+     * @throws PersistenceException error reading the store
+     */
+    int getMaxId()
+        throws PersistenceException
+    {
+        try
+        {
+            ensureMaxIdLoaded();
+            return mMaxId.get();
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error accessing " + mEntityName, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Allocates the next entity ID. The store is only scanned the first
+     * time this is called, after that the highest ID is held in memory.
+     * 
+     * @return The new ID.
+     * 
+     * @throws IOException error reading or writing the store
+     */
+    private int allocateId()
+        throws IOException
+    {
+        return allocateIds(1);
+    }
+
+    /**
+     * Allocates a block of consecutive entity IDs.
+     * 
+     * @param count the number of IDs to allocate
+     * 
+     * @return The first ID in the block.
+     * 
+     * @throws IOException error reading or writing the store
+     */
+    private int allocateIds(int count)
+        throws IOException
+    {
+        ensureMaxIdLoaded();
+        return mMaxId.getAndAdd(count) + 1;
+    }
+
+    /**
+     * Reserves the given ID, which has been allocated elsewhere, so that
+     * this store never allocates it.
+     * 
+     * @param id the ID to reserve
+     * 
+     * @throws IOException error reading or writing the store
+     */
+    private void reserveId(int id)
+        throws IOException
+    {
+        ensureMaxIdLoaded();
+        mMaxId.accumulateAndGet(id, Math::max);
+    }
+
+    /**
+     * Loads the highest ID if this has not already been done.
+     * 
+     * @throws IOException error reading the store
+     */
+    private void ensureMaxIdLoaded()
+        throws IOException
+    {
+        if (!mMaxIdLoaded)
+        {
+            synchronized (mMaxId)
+            {
+                if (!mMaxIdLoaded)
+                {
+                    mMaxId.set(loadMaxId());
+                    mMaxIdLoaded = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Determines the highest ID in the store. The persisted value is used
+     * if present and still valid, otherwise the store is scanned. The
+     * persisted value is deleted once loaded so that it is never used if
+     * this store is not closed cleanly.
+     * 
+     * @return The highest ID.
+     * 
+     * @throws IOException error reading the store
+     */
+    private int loadMaxId()
+        throws IOException
+    {
+        int maxId = AbstractEntity.DEFAULT_ID - 1;
+        if ((mMaxIdFile != null) && Files.exists(mMaxIdFile))
+        {
+            try
+            {
+                maxId = Integer.parseInt(new String(Files.readAllBytes(mMaxIdFile), StandardCharsets.UTF_8).trim());
+            }
+            catch (NumberFormatException e)
+            {
+                // Scan the store instead.
+            }
+            Files.delete(mMaxIdFile);
+        }
+        // The persisted value is stale if an entity has been created beyond it.
+        if ((maxId < AbstractEntity.DEFAULT_ID) || getFile(maxId + 1).exists())
+        {
+            int[] ids = getIds();
+            maxId = (ids.length == 0) ? AbstractEntity.DEFAULT_ID : ids[ids.length - 1];
+        }
+        // The checkpoint and tombstones remember any deleted IDs above the highest remaining one.
+        return Math.max(Math.max(maxId, mCheckpointMaxId), mTombstones.getHighest());
+    }
+
+    /**
+     * Persists the highest ID allocated so far (if configured to and it
+     * has been loaded).
+     * 
+     * @throws IOException error writing the file
+     */
+    private void storeMaxId()
+        throws IOException
+    {
+        if ((mMaxIdFile == null) || !mMaxIdLoaded)
+        {
+            return;
+        }
+        synchronized (mMaxId)
+        {
+            Path tmp = mMaxIdFile.resolveSibling(mMaxIdFile.getFileName() + TEMP_EXTENSION);
+            Files.write(tmp, Integer.toString(mMaxId.get()).getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, mMaxIdFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Lists the entity IDs in the store. The directories are closed
+     * before this returns.
+     * 
+     * @return The entity IDs in ascending order.
+     * 
+     * @throws IOException error reading store
+     */
+    private int[] getIds()
+        throws IOException
+    {
+        if (mCheckpointFile == null)
+        {
+            return withoutTombstones(getIds(Paths.get(mDirectory), mPrefix, mLayout));
+        }
+        return loadIds().stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Loads the IDs in the store into memory if this has not already been
+     * done, from the checkpoint if it is valid, otherwise by scanning.
+     * 
+     * @return The IDs in the store.
+     * 
+     * @throws IOException error reading the store
+     */
+    private NavigableSet<Integer> loadIds()
+        throws IOException
+    {
+        NavigableSet<Integer> ids = mIds;
+        if (ids != null)
+        {
+            return ids;
+        }
+        synchronized (mLocks)
+        {
+            if (mIds == null)
+            {
+                DiskCheckpoint checkpoint = readCheckpoint();
+                int[] loaded;
+                if (checkpoint == null)
+                {
+                    loaded = getIds(Paths.get(mDirectory), mPrefix, mLayout);
+                }
+                else
+                {
+                    loaded = checkpoint.getIds();
+                    mCheckpointMaxId = checkpoint.getMaxId();
+                }
+                loaded = withoutTombstones(loaded);
+                ids = new ConcurrentSkipListSet<>();
+                for (int id : loaded)
+                {
+                    ids.add(id);
+                }
+                mIds = ids;
+            }
+            return mIds;
+        }
+    }
+
+    /**
+     * Removes the deleted entities from the given IDs.
+     * 
+     * @param ids the IDs
+     * 
+     * @return The IDs of the entities that have not been deleted.
+     * 
+     * @throws IOException error reading the tombstones
+     */
+    private int[] withoutTombstones(int[] ids)
+        throws IOException
+    {
+        if (mTombstones.isEmpty())
+        {
+            return ids;
+        }
+        int count = 0;
+        int[] remaining = new int[ids.length];
+        for (int id : ids)
+        {
+            if (!mTombstones.contains(id))
+            {
+                remaining[count++] = id;
+            }
+        }
+        return (count == ids.length) ? ids : Arrays.copyOf(remaining, count);
+    }
+
+    /**
+     * Records that the entity with the given ID has been written.
+     * 
+     * @param id the entity's ID
+     * 
+     * @throws IOException error reading the store
+     */
+    @SuppressWarnings("boxing")
+    private void track(int id)
+        throws IOException
+    {
+        if (mCheckpointFile != null)
+        {
+            loadIds().add(id);
+        }
+    }
+
+    /**
+     * Records that the entity with the given ID has been deleted.
+     * 
+     * @param id the entity's ID
+     * 
+     * @throws IOException error reading the store
+     */
+    @SuppressWarnings("boxing")
+    private void untrack(int id)
+        throws IOException
+    {
+        if (mCheckpointFile != null)
+        {
+            loadIds().remove(id);
+        }
+    }
+
+    /**
+     * Checkpoints the store's state so that re-opening the store need not
+     * scan it. Every entity's file is examined, so this is best done when
+     * the store is not being modified, eg. when it is closed. Does nothing
+     * if the store is not configured to checkpoint.
+     * 
+     * @throws PersistenceException error writing the checkpoint
+     */
+    public void checkpoint()
+        throws PersistenceException
+    {
+        try
+        {
+            writeCheckpoint();
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error checkpointing " + mEntityName, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Reclaims any deleted entities and writes a checkpoint and the
+     * highest ID (if configured to).
+     * 
+     * @throws IOException error removing the files or writing the checkpoint
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        reclaimDeleted();
+        mTombstones.close();
+        writeCheckpoint();
+        storeMaxId();
+    }
+
+    /**
+     * Schedules the deleted entities to be reclaimed in the background,
+     * unless this has already been done.
+     */
+    private void scheduleReclaim()
+    {
+        scheduleReclaim(RECLAIM_DELAY_MILLIS);
+    }
+
+    /**
+     * Schedules the deleted entities to be reclaimed in the background
+     * after the given delay, unless this has already been done.
+     * 
+     * @param delayMillis how long to wait
+     */
+    private void scheduleReclaim(long delayMillis)
+    {
+        if (mReclaimScheduled.compareAndSet(false, true))
+        {
+            RECLAIMER.schedule(this::reclaimInBackground, delayMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Reclaims the deleted entities in the background. On failure, the
+     * entities remain deleted, the error is recorded for
+     * {@link #getReclaimFailure()} and the reclamation is retried, waiting
+     * twice as long each time it fails again.
+     */
+    private void reclaimInBackground()
+    {
+        mReclaimScheduled.set(false);
+        try
+        {
+            reclaimDeleted();
+            mReclaimFailures.set(0);
+            mReclaimFailure = null;
+        }
+        catch (IOException e)
+        {
+            mReclaimFailure = e;
+            int failures = Math.min(mReclaimFailures.incrementAndGet(), 20);
+            scheduleReclaim(Math.min(RECLAIM_DELAY_MILLIS << failures, MAX_RECLAIM_DELAY_MILLIS));
+        }
+    }
+
+    /**
+     * Removes the files of the deleted entities in batches, forcing each
+     * batch's directories before the journal forgets the entities.
+     * 
+     * @return The number of deleted entities reclaimed.
+     * 
+     * @throws IOException error removing the files
+     */
+    private int reclaimDeleted()
+        throws IOException
+    {
+        mReclaimLock.lock();
+        try
+        {
+            int[] pending = mTombstones.getPending();
+            if (pending.length == 0)
+            {
+                return 0;
+            }
+            int reclaimed = 0;
+            for (int from = 0; from < pending.length; from += RECLAIM_BATCH)
+            {
+                List<Path> files = new ArrayList<>(RECLAIM_BATCH);
+                for (int i = from; i < Math.min(from + RECLAIM_BATCH, pending.length); i++)
+                {
+                    int id = pending[i];
+                    Path file = getFile(id).toPath();
+                    Lock lock = getLock(id).writeLock();
+                    lock.lock();
+                    try
+                    {
+                        // The entity may have been written again since.
+                        if (mTombstones.contains(id))
+                        {
+                            if (Files.deleteIfExists(file))
+                            {
+                                files.add(file);
+                            }
+                            mTombstones.reclaimed(id);
+                            reclaimed++;
+                        }
+                    }
+                    finally
+                    {
+                        lock.unlock();
+                    }
+                }
+                if (mDurability != Durability.NONE)
+                {
+                    syncDirectories(files);
+                }
+            }
+            mTombstones.compact();
+            return reclaimed;
+        }
+        finally
+        {
+            mReclaimLock.unlock();
+        }
+    }
+
+    /**
+     * Writes the checkpoint (if configured to). The checkpoint is written
+     * in place, rather than renamed into place, so that writing it does
+     * not change the directory's modification stamp. A torn checkpoint is
+     * simply ignored.
+     * 
+     * @throws IOException error writing the checkpoint
+     */
+    private void writeCheckpoint()
+        throws IOException
+    {
+        if (mCheckpointFile == null)
+        {
+            return;
+        }
+        // Load the highest ID first: loading it can take the locks below.
+        ensureMaxIdLoaded();
+        synchronized (mLocks)
+        {
+            if (!Files.exists(mCheckpointFile))
+            {
+                // Create the file before taking the directory stamps.
+                Files.createFile(mCheckpointFile);
+            }
+            // Take the stamps before listing the entities: an entity created
+            // in between then changes a stamp and invalidates the checkpoint,
+            // rather than being left out of a checkpoint that looks valid.
+            Map<String, Long> stamps = getDirectoryStamps();
+            int[] ids = getIds();
+            long[] sizes = new long[ids.length];
+            long[] modified = new long[ids.length];
+            for (int i = 0; i < ids.length; i++)
+            {
+                BasicFileAttributes attributes = Files.readAttributes(getFile(ids[i]).toPath(), BasicFileAttributes.class);
+                sizes[i] = attributes.size();
+                modified[i] = attributes.lastModifiedTime().to(TimeUnit.MICROSECONDS);
+            }
+            DiskCheckpoint checkpoint = new DiskCheckpoint(mMaxId.get(), ids, sizes, modified, stamps);
+            byte[] data = CHECKPOINT_MAPPER.writeValueAsBytes(checkpoint);
+            try (FileChannel channel = FileChannel.open(mCheckpointFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+        }
+    }
+
+    /**
+     * Reads and validates the checkpoint. The checkpoint is valid if none
+     * of the store's directories have changed since it was written and
+     * the file for the highest ID is as it was.
+     * 
+     * @return The checkpoint or null if there is no valid checkpoint.
+     * 
+     * @throws IOException error reading the checkpoint
+     */
+    private DiskCheckpoint readCheckpoint()
+        throws IOException
+    {
+        if (!Files.exists(mCheckpointFile))
+        {
+            return null;
+        }
+        DiskCheckpoint checkpoint;
+        try
+        {
+            checkpoint = CHECKPOINT_MAPPER.readValue(Files.readAllBytes(mCheckpointFile), DiskCheckpoint.class);
+        }
+        catch (JsonProcessingException e)
+        {
+            return null;
+        }
+        Path root = Paths.get(mDirectory);
+        Map<String, Long> directories = checkpoint.getDirectories();
+        if (!directories.containsKey(ROOT_STAMP))
+        {
+            return null;
+        }
+        for (Map.Entry<String, Long> directory : directories.entrySet())
+        {
+            Path path = directory.getKey().isEmpty() ? root : root.resolve(directory.getKey());
+            if (!Files.isDirectory(path) || (getStamp(path) != directory.getValue().longValue()))
+            {
+                return null;
+            }
+        }
+        int[] ids = checkpoint.getIds();
+        if (ids.length > 0)
+        {
+            int last = ids.length - 1;
+            Path file = getFile(ids[last]).toPath();
+            if (!Files.exists(file) ||
+                (Files.size(file) != checkpoint.getSizes()[last]) ||
+                (getStamp(file) != checkpoint.getModified()[last]))
+            {
+                return null;
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * Records the modification stamps of the store's directories.
+     * 
+     * @return The stamps keyed by path relative to the store's directory.
+     * 
+     * @throws IOException error reading the directories
+     */
+    @SuppressWarnings("boxing")
+    private Map<String, Long> getDirectoryStamps()
+        throws IOException
+    {
+        Path root = Paths.get(mDirectory);
+        Map<String, Long> stamps = new TreeMap<>();
+        stamps.put(ROOT_STAMP, getStamp(root));
+        if (mLayout == DiskLayout.SHARDED)
+        {
+            for (Path shard : listShards(root))
+            {
+                stamps.put(root.relativize(shard).toString(), getStamp(shard));
+                for (Path subShard : listShards(shard))
+                {
+                    stamps.put(root.relativize(subShard).toString(), getStamp(subShard));
+                }
+            }
+        }
+        return stamps;
+    }
+
+    /**
+     * Reads the modification stamp of the given file or directory.
+     * 
+     * @param path the file or directory
+     * 
+     * @return The modification stamp in microseconds.
+     * 
+     * @throws IOException error reading the stamp
+     */
+    private static long getStamp(Path path)
+        throws IOException
+    {
+        return Files.getLastModifiedTime(path).to(TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Lists the entity IDs in a store. The shards of a sharded store
+     * are scanned in parallel.
+     * 
+     * @param directory the store's directory
+     * @param prefix the file prefix (including the separator)
+     * @param layout the store's layout
+     * 
+     * @return The entity IDs in ascending order.
+     * 
+     * @throws IOException error reading store
+     */
+    private static int[] getIds(Path directory, String prefix, DiskLayout layout)
+        throws IOException
+    {
+        if (layout == DiskLayout.FLAT)
+        {
+            return Arrays.stream(listIds(directory, prefix)).sorted().toArray();
+        }
+        try
+        {
+            return Arrays.stream(listShards(directory))
+                    .parallel()
+                    .flatMapToInt(shard -> {
+                        try
+                        {
+                            IntStream ids = IntStream.empty();
+                            for (Path subShard : listShards(shard))
+                            {
+                                ids = IntStream.concat(ids, Arrays.stream(listIds(subShard, prefix)));
+                            }
+                            return ids;
+                        }
+                        catch (IOException e)
+                        {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .sorted()
+                    .toArray();
+        }
+        catch (UncheckedIOException e)
+        {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Lists the entity IDs in a single directory.
+     * 
+     * @param directory the directory to list
+     * @param prefix the file prefix (including the separator)
+     * 
+     * @return The entity IDs in no particular order.
+     * 
+     * @throws IOException error reading the directory
+     */
+    private static int[] listIds(Path directory, String prefix)
+        throws IOException
+    {
+        int prefixLength = prefix.length();
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.map(Path::getFileName)
+                        .map(Path::toString)
+                        .filter(name -> name.startsWith(prefix) && name.endsWith(JSON_EXTENSION))
+                        .mapToInt(name -> Integer.parseInt(name.substring(prefixLength, name.length() - EXTENSION_LENGTH)))
+                        .toArray();
+        }
+    }
+
+    /**
+     * Extracts the ID from the name of an entity's file.
+     * 
+     * @param name the file's name
+     * @param prefix the file prefix (including the separator)
+     * 
+     * @return The ID or -1 if the file is not an entity's file.
+     */
+    private static int parseId(String name, String prefix)
+    {
+        if (!name.startsWith(prefix) || !name.endsWith(JSON_EXTENSION))
+        {
+            return -1;
+        }
+        try
+        {
+            return Integer.parseInt(name.substring(prefix.length(), name.length() - EXTENSION_LENGTH));
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+
+    /**
+     * Lists the shard sub-directories of the given directory.
+     * 
+     * @param directory the directory to list
+     * 
+     * @return The shards.
+     * 
+     * @throws IOException error reading the directory
+     */
+    private static Path[] listShards(Path directory)
+        throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            return files.filter(file -> file.getFileName().toString().matches(SHARD_PATTERN) && Files.isDirectory(file))
+                        .toArray(Path[]::new);
+        }
+    }
+
+    /**
+     * Loads the entity with the given ID for streams, ie. with no checked exception.
+     * 
+     * @param id the entity's ID
+     * 
+     * @return The corresponding entity.
+     *
+     * @throws UncheckedPersistenceException error reading the file
+     */
+    private EntityType getForStream(int id)
+        throws UncheckedPersistenceException
+    {
+        try
+        {
+            return get(id);
+        }
+        catch (PersistenceException e)
+        {
+            throw new UncheckedPersistenceException("Error accessing " + mEntityName + ": " + id, e.getCause()); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Extracts fields from the entity with the given ID for use in a stream.
+     * The file is read while holding the entity's lock but parsed afterwards.
+     * 
+     * @param id the entity's ID
+     * @param projector extracts the fields
+     * 
+     * @return The projection or null if the entity no longer exists.
+     *
+     * @throws UncheckedPersistenceException error reading the file
+     */
+    private EntityProjection project(int id, EntityProjector projector)
+        throws UncheckedPersistenceException
+    {
+        Path file = getFile(id).toPath();
+        Lock lock = getLock(id).readLock();
+        byte[] data;
+        try
+        {
+            lock.lock();
+            try
+            {
+                if (!exists(id, file.toFile()))
+                {
+                    return null;
+                }
+                data = Files.readAllBytes(file);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+            return projector.project(data);
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedPersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Loads the entity with the given ID from the given file.
+     * 
+     * @param id the entity's ID
+     * @param file the file to load from
+     * 
+     * @return The corresponding entity.
+     *
+     * @throws PersistenceException error reading the file
+     */
+    private EntityType get(int id, File file)
+        throws PersistenceException
+    {
+        try
+        {
+            if (mTombstones.contains(id))
+            {
+                throw new NoSuchFileException(file.toString());
+            }
+            return EntityCodecs.decode(Files.readAllBytes(file.toPath()), mClass);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Determines whether the entity with the given ID exists, ie. its file
+     * exists and it has not been deleted.
+     * 
+     * @param id the entity's ID
+     * @param file the entity's file
+     * 
+     * @return Whether the entity exists.
+     * 
+     * @throws IOException error reading the tombstones
+     */
+    private boolean exists(int id, File file)
+        throws IOException
+    {
+        return file.exists() && !mTombstones.contains(id);
+    }
+
+    /**
+     * Determines whether the entity with the given ID exists, for use in streams.
+     * 
+     * @param id the entity's ID
+     * 
+     * @return Whether the entity exists.
+     * 
+     * @throws UncheckedPersistenceException error reading the tombstones
+     */
+    private boolean existsForStream(int id)
+        throws UncheckedPersistenceException
+    {
+        try
+        {
+            return exists(id, getFile(id));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedPersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Retains the current version of the given entity (if any) for the
+     * open snapshots before it is written or deleted. Must be called while
+     * holding the entity's write lock.
+     * 
+     * @param id the entity's ID
+     * @param file the entity's file
+     * 
+     * @throws IOException error reading the current version
+     */
+    private void preserve(int id, File file)
+        throws IOException
+    {
+        long write = mWrites.incrementAndGet();
+        if (mSnapshots.isEmpty())
+        {
+            return;
+        }
+        Version version = new Version(write, exists(id, file) ? Files.readAllBytes(file.toPath()) : null);
+        mVersions.compute(id, (key, versions) -> {
+            List<Version> updated = (versions == null) ? new ArrayList<>(1) : new ArrayList<>(versions);
+            updated.add(version);
+            return updated;
+        });
+    }
+
+    /**
+     * Discards the retained versions that no open snapshot needs.
+     */
+    private void prune()
+    {
+        long oldest = Long.MAX_VALUE;
+        for (DiskSnapshot snapshot : mSnapshots)
+        {
+            oldest = Math.min(oldest, snapshot.mAsOf);
+        }
+        long horizon = oldest;
+        for (Integer id : mVersions.keySet())
+        {
+            mVersions.computeIfPresent(id, (key, versions) -> {
+                List<Version> retained = versions.stream()
+                        .filter(version -> version.mWrite > horizon)
+                        .collect(Collectors.toList());
+                return retained.isEmpty() ? null : retained;
+            });
+        }
+    }
+
+    /**
+     * Writes the given entity to its file while holding its lock.
+     * 
+     * @param id the entity's ID
+     * @param entity the entity to write
+     * 
+     * @return The file written to.
+     * 
+     * @throws IOException error writing the file
+     */
+    private Path write(int id, EntityType entity)
+        throws IOException
+    {
+        File file = getFile(id);
+        Lock lock = getLock(id).writeLock();
+        lock.lock();
+        try
+        {
+            preserve(id, file);
+            mTombstones.restore(id);
+            write(file, entity);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        track(id);
+        return file.toPath();
+    }
+
+    /**
+     * Writes the given entity to the given file. Unless the store is not
+     * durable, the entity is written to a temporary file which is forced
+     * to disk and then renamed over the given file. The rename is only
+     * durable once the directory has been forced.
+     * 
+     * @param file the file to write to
+     * @param entity the entity to write
+     * 
+     * @throws IOException error writing the file
+     */
+    private void write(File file, EntityType entity)
+        throws IOException
+    {
+        byte[] data = EntityCodecs.encode(mCodec, entity);
+        Path directory = file.getParentFile().toPath();
+        if ((mLayout == DiskLayout.SHARDED) && !Files.isDirectory(directory))
+        {
+            Files.createDirectories(directory);
+            if (mDurability != Durability.NONE)
+            {
+                DirectorySync.force(directory.getParent());
+                DirectorySync.force(Paths.get(mDirectory));
+            }
+        }
+        if (mDurability == Durability.NONE)
+        {
+            Files.write(file.toPath(), data);
+            return;
+        }
+        // Temporary files start with a dot so they are never mistaken for entities.
+        Path temp = Files.createTempFile(directory, "." + file.getName(), TEMP_EXTENSION); //$NON-NLS-1$
+        try
+        {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE))
+            {
+                ByteBuffer buffer = ByteBuffer.wrap(data);
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+                channel.force(true);
+            }
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally
+        {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Makes a single write durable, according to the store's durability.
+     * 
+     * @param file the file written to
+     * 
+     * @throws IOException error forcing the directory
+     */
+    private void commit(Path file)
+        throws IOException
+    {
+        switch (mDurability)
+        {
+            case ATOMIC:
+                DirectorySync.force(file.getParent());
+                break;
+            case GROUP_COMMIT:
+                mDirectorySync.commit(file.getParent());
+                break;
+            case NONE:
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Makes a batch of writes durable, according to the store's
+     * durability, as {@link #commit(Path)} does for a single write. The
+     * files have already been forced, so each directory involved is
+     * forced (or group committed) once for the whole batch. Nothing is
+     * forced for stores that do not ask for durability.
+     * 
+     * @param files the files written to
+     * 
+     * @throws IOException error forcing a directory
+     */
+    private void sync(List<Path> files)
+        throws IOException
+    {
+        switch (mDurability)
+        {
+            case ATOMIC:
+                syncDirectories(files);
+                break;
+            case GROUP_COMMIT:
+                Set<Path> directories = new HashSet<>();
+                for (Path file : files)
+                {
+                    if (directories.add(file.getParent()))
+                    {
+                        mDirectorySync.commit(file.getParent());
+                    }
+                }
+                break;
+            case NONE:
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Forces the directories holding the given files to disk so that
+     * new, renamed and deleted files are durable.
+     * 
+     * @param files the files whose directories are to be forced
+     * 
+     * @throws IOException error forcing a directory
+     */
+    private static void syncDirectories(List<Path> files)
+        throws IOException
+    {
+        Set<Path> directories = new HashSet<>();
+        for (Path file : files)
+        {
+            if (directories.add(file.getParent()))
+            {
+                DirectorySync.force(file.getParent());
+            }
+        }
+    }
+
+    /**
+     * @return The number of times the directory has been forced for group commits.
+     */
+    long getGroupCommitCount()
+    {
+        return mDirectorySync.getSyncCount();
+    }
+
+    /**
+     * Finds the lock guarding the entity with the given ID.
+     *
+     * @param id the entity's ID
+     *
+     * @return The corresponding lock.
+     */
+    private ReadWriteLock getLock(int id)
+    {
+        return mLocks[getStripe(id)];
+    }
+
+    /**
+     * Finds the index of the lock guarding the entity with the given ID.
+     *
+     * @param id the entity's ID
+     *
+     * @return The index of the corresponding lock.
+     */
+    private static int getStripe(int id)
+    {
+        return id & (LOCK_STRIPES - 1);
+    }
+
+    /**
+     * Calculates the corresponding data file for the given ID.
+     *
+     * @param id the ID
+     *
+     * @return The corresponding file.
+     */
+    private File getFile(int id)
+    {
+        if (id < 0)
+        {
+            throw new IllegalArgumentException("Invalid ID:"  + id); //$NON-NLS-1$
+        }
+        return getPath(Paths.get(mDirectory), mPrefix, mLayout, id).toFile();
+    }
+
+    /**
+     * Calculates the data file for the given ID in a store. A sharded
+     * store uses the low byte of the ID to choose the first level of
+     * sub-directory and the next byte to choose the second level, so
+     * consecutive IDs are spread across the shards.
+     *
+     * @param directory the store's directory
+     * @param prefix the file prefix (including the separator)
+     * @param layout the store's layout
+     * @param id the ID
+     *
+     * @return The corresponding file.
+     */
+    @SuppressWarnings("boxing")
+    private static Path getPath(Path directory, String prefix, DiskLayout layout, int id)
+    {
+        String name = prefix + String.format(ID_FORMAT, id) + JSON_EXTENSION;
+        if (layout == DiskLayout.FLAT)
+        {
+            return directory.resolve(name);
+        }
+        return directory.resolve(String.format(SHARD_FORMAT, id % SHARD_COUNT))
+                        .resolve(String.format(SHARD_FORMAT, (id / SHARD_COUNT) % SHARD_COUNT))
+                        .resolve(name);
+    }
+
+    /**
+     * Converts an existing store from one layout to another by moving
+     * its files. Emptied shards are removed. The files of deleted entities
+     * that have not yet been reclaimed are removed rather than moved. The
+     * store must not be in use while it is migrated. Migration can safely
+     * be re-run if it is interrupted, since files already moved are not
+     * seen again.
+     *
+     * @param directory the store's directory
+     * @param prefix the prefix used for the entity
+     * @param layout the new layout
+     *
+     * @return The number of files moved.
+     *
+     * @throws PersistenceException error moving or removing the files
+     */
+    public static int migrate(String directory, String prefix, DiskLayout layout)
+        throws PersistenceException
+    {
+        if (StringUtil.isEmpty(directory) || StringUtil.isEmpty(prefix) || (layout == null))
+        {
+            throw new IllegalArgumentException("Empty parameter"); //$NON-NLS-1$
+        }
+        Path root = Paths.get(directory);
+        String filePrefix = prefix + ID_SEPARATOR;
+        DiskLayout from = (layout == DiskLayout.FLAT) ? DiskLayout.SHARDED : DiskLayout.FLAT;
+        try
+        {
+            TombstoneJournal tombstones = new TombstoneJournal(root.resolve(prefix + TOMBSTONE_EXTENSION), true);
+            int[] ids = getIds(root, filePrefix, from);
+            Set<Path> directories = new HashSet<>();
+            int moved = 0;
+            for (int id : ids)
+            {
+                Path source = getPath(root, filePrefix, from, id);
+                directories.add(source.getParent());
+                if (tombstones.contains(id))
+                {
+                    Files.delete(source);
+                    tombstones.reclaimed(id);
+                    continue;
+                }
+                Path target = getPath(root, filePrefix, layout, id);
+                Files.createDirectories(target.getParent());
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                directories.add(target.getParent());
+                moved++;
+            }
+            if (from == DiskLayout.SHARDED)
+            {
+                for (Path shard : listShards(root))
+                {
+                    for (Path subShard : listShards(shard))
+                    {
+                        deleteIfEmpty(subShard);
+                    }
+                    deleteIfEmpty(shard);
+                }
+            }
+            for (Path changed : directories)
+            {
+                DirectorySync.force(changed);
+            }
+            DirectorySync.force(root);
+            tombstones.compact();
+            return moved;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error migrating " + prefix + " in " + directory + " to: " + layout, e); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
+    }
+
+    /**
+     * Deletes the given directory unless it still holds files,
+     * eg. those of another entity sharing the directory.
+     *
+     * @param directory the directory to delete
+     *
+     * @throws IOException error deleting the directory
+     */
+    private static void deleteIfEmpty(Path directory)
+        throws IOException
+    {
+        try (Stream<Path> files = Files.list(directory))
+        {
+            if (files.findAny().isPresent())
+            {
+                return;
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mEntityName, mDirectory);
+    }
+
+    /**
+     * An entity's contents before a write.
+     */
+    private static final class Version
+    {
+        /** The write that replaced these contents. */
+        final long mWrite;
+        /** The entity's encoded contents (null if it did not exist). */
+        final byte[] mContents;
+
+        /**
+         * Constructs a new version.
+         *
+         * @param write the write that replaced the contents
+         * @param contents the encoded contents (null if the entity did not exist)
+         */
+        Version(long write, byte[] contents)
+        {
+            mWrite    = write;
+            mContents = contents;
+        }
+    }
+
+    /**
+     * A snapshot of this store. An entity is read from the first version
+     * retained after the snapshot was taken, if any, otherwise from its
+     * current file.
+     */
+    private final class DiskSnapshot implements IEntitySnapshot<EntityType>
+    {
+        /** The last write visible to this snapshot. */
+        final long mAsOf;
+        /** Whether this snapshot has been closed. */
+        private boolean mClosed;
+
+        /**
+         * Takes a new snapshot.
+         */
+        DiskSnapshot()
+        {
+            synchronized (mSnapshots)
+            {
+                // Register first so that every later write preserves what it replaces.
+                mSnapshots.add(this);
+                mAsOf = mWrites.get();
+            }
+            mClosed = false;
+        }
+
+        @Override
+        public Map<Integer, EntityType> getAll()
+            throws PersistenceException
+        {
+            return getAllById().toMap();
+        }
+
+        /**
+         * Retrieves all the entities in the snapshot keyed by their primitive IDs.
+         * 
+         * @return The map of entities. Can be empty, but is never null.
+         * 
+         * @throws PersistenceException error accessing the store
+         */
+        IntObjectMap<EntityType> getAllById()
+            throws PersistenceException
+        {
+            try
+            {
+                int[] ids = getIds();
+                IntObjectMap<EntityType> entities = new IntObjectMap<>(ids.length);
+                for (int id : ids)
+                {
+                    EntityType entity = read(id);
+                    if (entity != null)
+                    {
+                        entities.put(id, entity);
+                    }
+                }
+                return entities;
+            }
+            catch (IOException | PersistenceException e)
+            {
+                throw new PersistenceException("Error retrieving every " + mEntityName, e); //$NON-NLS-1$
+            }
+        }
+
+        /**
+         * Retrieves all the entities in the snapshot, loading them concurrently.
+         * 
+         * @param executor the executor to load the entities with
+         * 
+         * @return The map of entities. Can be empty, but is never null.
+         * 
+         * @throws PersistenceException error accessing the store
+         */
+        @SuppressWarnings("boxing")
+        Map<Integer, EntityType> getAll(Executor executor)
+            throws PersistenceException
+        {
+            try
+            {
+                int[] ids = getIds();
+                List<CompletableFuture<EntityType>> loads = new ArrayList<>(ids.length);
+                for (int id : ids)
+                {
+                    loads.add(CompletableFuture.supplyAsync(() -> readForStream(id), executor));
+                }
+                Map<Integer, EntityType> entities = new HashMap<>(ids.length * 4 / 3 + 1);
+                for (CompletableFuture<EntityType> load : loads)
+                {
+                    EntityType entity = load.join();
+                    if (entity != null)
+                    {
+                        entities.put(entity.getId(), entity);
+                    }
+                }
+                return entities;
+            }
+            catch (CompletionException e)
+            {
+                if (e.getCause() instanceof UncheckedPersistenceException)
+                {
+                    throw new PersistenceException("Error retrieving every " + mEntityName, e.getCause()); //$NON-NLS-1$
+                }
+                throw e;
+            }
+            catch (IOException e)
+            {
+                throw new PersistenceException("Error retrieving every " + mEntityName, e); //$NON-NLS-1$
+            }
+        }
+
+        @Override
+        public EntityType get(int id)
+            throws PersistenceException
+        {
+            EntityType entity = read(id);
+            if (entity == null)
+            {
+                throw new PersistenceException("Error accessing " + mEntityName + ": " + id); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            return entity;
+        }
+
+        @Override
+        public Stream<EntityType> stream()
+            throws PersistenceException
+        {
+            try
+            {
+                return Arrays.stream(getIds())
+                        .mapToObj(this::readForStream)
+                        .filter(Objects::nonNull);
+            }
+            catch (IOException e)
+            {
+                throw new PersistenceException("Error retrieving every " + mEntityName, e); //$NON-NLS-1$
+            }
+        }
+
+        @Override
+        public void close()
+        {
+            synchronized (mSnapshots)
+            {
+                if (!mClosed)
+                {
+                    mClosed = true;
+                    mSnapshots.remove(this);
+                    prune();
+                }
+            }
+        }
+
+        /**
+         * Writes an archive record for every entity in the snapshot.
+         * Retained versions are written from memory and current ones
+         * are transferred directly from their files.
+         * 
+         * @param records where to write the records
+         * 
+         * @return The number of records written.
+         * 
+         * @throws IOException error reading the store or writing the records
+         */
+        int transferTo(WritableByteChannel records)
+            throws IOException
+        {
+            int count = 0;
+            for (int id : getIds())
+            {
+                Path file = getFile(id).toPath();
+                Lock lock = getLock(id).readLock();
+                lock.lock();
+                try
+                {
+                    Version version = getVersion(id);
+                    if (version != null)
+                    {
+                        if (version.mContents != null)
+                        {
+                            EntityArchive.writeRecord(records, version.mContents);
+                            count++;
+                        }
+                    }
+                    else if (exists(id, file.toFile()))
+                    {
+                        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+                        {
+                            EntityArchive.transferRecord(records, channel);
+                        }
+                        count++;
+                    }
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+            }
+            return count;
+        }
+
+        /**
+         * Finds the first version of the given entity retained since the
+         * snapshot was taken. Must be called while holding the entity's lock.
+         * 
+         * @param id the entity's ID
+         * 
+         * @return The version or null if the entity is unchanged since.
+         */
+        private Version getVersion(int id)
+        {
+            List<Version> versions = mVersions.get(id);
+            if (versions != null)
+            {
+                for (Version version : versions)
+                {
+                    if (version.mWrite > mAsOf)
+                    {
+                        return version;
+                    }
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Determines the IDs that may be in the snapshot: those in the store
+         * now and those with versions retained since the snapshot was taken.
+         * The store must be listed first so that an entity deleted while
+         * listing it is still found amongst the retained versions.
+         * 
+         * @return The candidate IDs in ascending order.
+         * 
+         * @throws IOException error reading the store
+         */
+        private int[] getIds()
+            throws IOException
+        {
+            NavigableSet<Integer> ids = new TreeSet<>();
+            for (int id : EntityDiskStore.this.getIds())
+            {
+                ids.add(id);
+            }
+            ids.addAll(mVersions.keySet());
+            return ids.stream().mapToInt(Integer::intValue).toArray();
+        }
+
+        /**
+         * Reads the given entity as it was when the snapshot was taken.
+         * 
+         * @param id the entity's ID
+         * 
+         * @return The entity or null if it did not exist.
+         * 
+         * @throws PersistenceException error reading the entity
+         */
+        private EntityType read(int id)
+            throws PersistenceException
+        {
+            File file = getFile(id);
+            Lock lock = getLock(id).readLock();
+            lock.lock();
+            try
+            {
+                Version version = getVersion(id);
+                if (version != null)
+                {
+                    return (version.mContents == null) ? null : EntityCodecs.decode(version.mContents, mClass);
+                }
+                return exists(id, file) ? EntityDiskStore.this.get(id, file) : null;
+            }
+            catch (IOException e)
+            {
+                throw new PersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Reads the given entity as it was when the snapshot was taken,
+         * wrapping any error for use in a stream.
+         * 
+         * @param id the entity's ID
+         * 
+         * @return The entity or null if it did not exist.
+         * 
+         * @throws UncheckedPersistenceException error reading the entity
+         */
+        private EntityType readForStream(int id)
+            throws UncheckedPersistenceException
+        {
+            try
+            {
+                return read(id);
+            }
+            catch (PersistenceException e)
+            {
+                throw new UncheckedPersistenceException("Error accessing " + mEntityName + ": " + id, e.getCause()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+        }
+
+        @Override
+        @SuppressWarnings("boxing")
+        public String toString()
+        {
+            return StringUtil.toString(mEntityName, mAsOf);
+        }
+    }
+
+    /**
+     * A watch on this store driven by the file system's notifications of
+     * changes to the store's directories. Changed files are read through
+     * a snapshot so that each entity is read consistently. A file that
+     * cannot be read, eg. because it is still being written, is retried
+     * on the next notification.
+     */
+    private final class DiskWatch extends EntityWatch<EntityType>
+    {
+        /** Notifies this watch of changes. */
+        private final WatchService mService;
+        /** The entities that could not be read and must be retried. */
+        private final Set<Integer> mRetries;
+
+        /**
+         * Starts watching the store.
+         * 
+         * @param listener told of each change
+         * 
+         * @throws IOException error watching the store's directories
+         * @throws PersistenceException error loading the mirror
+         */
+        DiskWatch(Consumer<EntityChange> listener)
+            throws IOException, PersistenceException
+        {
+            super(listener);
+            Path root = Paths.get(mDirectory);
+            mService = root.getFileSystem().newWatchService();
+            mRetries = new HashSet<>();
+            try
+            {
+                // Register before loading so that no change is missed.
+                register(root, new HashSet<>());
+                load(getAllById());
+            }
+            catch (IOException | PersistenceException e)
+            {
+                mService.close();
+                throw e;
+            }
+            Thread thread = new Thread(this::run, "watch-" + mEntityName); //$NON-NLS-1$
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /**
+         * Watches the given directory and any shards beneath it.
+         * 
+         * @param directory the directory
+         * @param ids where to add the IDs of the entities already in the shards
+         * 
+         * @throws IOException error watching the directories
+         */
+        @SuppressWarnings("boxing")
+        private void register(Path directory, Set<Integer> ids)
+            throws IOException
+        {
+            directory.register(mService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+            if (mLayout == DiskLayout.FLAT)
+            {
+                return;
+            }
+            if (Paths.get(mDirectory).relativize(directory).getNameCount() < 2)
+            {
+                for (Path shard : listShards(directory))
+                {
+                    register(shard, ids);
+                }
+            }
+            else
+            {
+                Arrays.stream(listIds(directory, mPrefix)).forEach(ids::add);
+            }
+        }
+
+        /**
+         * Waits for notifications and brings the mirror up to date, until
+         * the watch is closed.
+         */
+        @SuppressWarnings("boxing")
+        private void run()
+        {
+            try
+            {
+                while (!isClosed())
+                {
+                    Set<Integer> changed = new TreeSet<>(mRetries);
+                    mRetries.clear();
+                    boolean deleted = false;
+                    boolean overflowed = false;
+                    // Gather every pending notification before reloading anything.
+                    for (WatchKey key = mService.take(); key != null; key = mService.poll())
+                    {
+                        Path directory = (Path)key.watchable();
+                        for (WatchEvent<?> event : key.pollEvents())
+                        {
+                            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+                            {
+                                overflowed = true;
+                                continue;
+                            }
+                            Path file = directory.resolve((Path)event.context());
+                            String name = file.getFileName().toString();
+                            int id = parseId(name, mPrefix);
+                            if (id >= 0)
+                            {
+                                changed.add(id);
+                            }
+                            else if (file.equals(mTombstones.getFile()))
+                            {
+                                deleted = true;
+                            }
+                            else if ((event.kind() == StandardWatchEventKinds.ENTRY_CREATE) &&
+                                     (mLayout == DiskLayout.SHARDED) && name.matches(SHARD_PATTERN) && Files.isDirectory(file))
+                            {
+                                try
+                                {
+                                    // Files written before the new shard was registered are picked up now.
+                                    register(file, changed);
+                                }
+                                catch (IOException e)
+                                {
+                                    overflowed = true;
+                                }
+                            }
+                        }
+                        key.reset();
+                    }
+                    refresh(changed, deleted, overflowed);
+                }
+            }
+            catch (ClosedWatchServiceException | InterruptedException e)
+            {
+                // The watch has been closed.
+            }
+        }
+
+        /**
+         * Reloads the given entities and updates the mirror.
+         * 
+         * @param changed the IDs of the entities whose files have changed
+         * @param deleted whether entities may have been deleted through this store
+         * @param overflowed whether notifications have been lost
+         */
+        @SuppressWarnings("boxing")
+        private void refresh(Set<Integer> changed, boolean deleted, boolean overflowed)
+        {
+            if (deleted || overflowed)
+            {
+                try
+                {
+                    Set<Integer> ids = new HashSet<>();
+                    Arrays.stream(getIds()).forEach(ids::add);
+                    for (Integer id : getMirror().keySet())
+                    {
+                        if (!ids.contains(id))
+                        {
+                            changed.add(id);
+                        }
+                    }
+                    if (overflowed)
+                    {
+                        // Any entity may have changed.
+                        changed.addAll(ids);
+                    }
+                }
+                catch (IOException e)
+                {
+                    mRetries.addAll(changed);
+                    setReadFailure(e);
+                    return;
+                }
+            }
+            Exception failure = null;
+            try (DiskSnapshot snapshot = new DiskSnapshot())
+            {
+                for (int id : changed)
+                {
+                    try
+                    {
+                        apply(id, snapshot.read(id));
+                    }
+                    catch (PersistenceException e)
+                    {
+                        failure = e;
+                        mRetries.add(id);
+                    }
+                }
+            }
+            setReadFailure(failure);
+        }
+
+        @Override
+        void stop()
+        {
+            try
+            {
+                mService.close();
+            }
+            catch (IOException e)
+            {
+                // Nothing more can be done.
+            }
+        }
     }
 }
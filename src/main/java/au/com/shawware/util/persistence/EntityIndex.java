@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Function;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * An in-memory secondary index that maps an extracted value to the IDs
+ * of the entities with that value. Values are held in their JSON form,
+ * so any value Jackson can write can be indexed, values compare as their
+ * JSON forms do, and the index can be persisted without any type
+ * information.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity being indexed
+ */
+@SuppressWarnings("boxing")
+class EntityIndex<EntityType extends AbstractEntity<?>>
+{
+    /** The index's name. */
+    private final String mName;
+    /** Extracts the indexed value from an entity. */
+    private final Function<? super EntityType, ?> mExtractor;
+    /** Converts the indexed values to their JSON form. */
+    private final ObjectWriter mWriter;
+    /** The IDs of the entities with each value. */
+    private final Map<String, Set<Integer>> mIds;
+    /** The value of each entity. */
+    private final Map<Integer, String> mValues;
+    /** The version of each entity indexed (if known). */
+    private final Map<Integer, Long> mVersions;
+
+    /**
+     * Constructs a new, empty index.
+     *
+     * @param name the index's name
+     * @param extractor extracts the indexed value from an entity
+     * @param writer converts the indexed values to their JSON form
+     */
+    EntityIndex(String name, Function<? super EntityType, ?> extractor, ObjectWriter writer)
+    {
+        if (StringUtil.isEmpty(name) || (extractor == null))
+        {
+            throw new IllegalArgumentException("Empty parameter"); //$NON-NLS-1$
+        }
+        mName      = name;
+        mExtractor = extractor;
+        mWriter    = writer;
+        mIds       = new HashMap<>();
+        mValues    = new HashMap<>();
+        mVersions  = new HashMap<>();
+    }
+
+    /**
+     * @return This index's name.
+     */
+    String getName()
+    {
+        return mName;
+    }
+
+    /**
+     * Adds the given entity to the index, replacing any previous value,
+     * unless a later version of the entity has already been indexed (as
+     * concurrent writers may index their entities out of order).
+     *
+     * @param entity the entity to index
+     *
+     * @throws PersistenceException error converting the value
+     */
+    synchronized void add(EntityType entity)
+        throws PersistenceException
+    {
+        Long indexed = mVersions.get(entity.getId());
+        if ((indexed != null) && (indexed > entity.getVersion()))
+        {
+            return;
+        }
+        String value = toIndexValue(mExtractor.apply(entity));
+        remove(entity.getId());
+        mValues.put(entity.getId(), value);
+        mVersions.put(entity.getId(), entity.getVersion());
+        mIds.computeIfAbsent(value, v -> new TreeSet<>()).add(entity.getId());
+    }
+
+    /**
+     * Removes the given entity from the index.
+     *
+     * @param id the entity's ID
+     */
+    synchronized void remove(int id)
+    {
+        String value = mValues.remove(id);
+        mVersions.remove(id);
+        if (value != null)
+        {
+            Set<Integer> ids = mIds.get(value);
+            ids.remove(id);
+            if (ids.isEmpty())
+            {
+                mIds.remove(value);
+            }
+        }
+    }
+
+    /**
+     * Finds the entities with the given value.
+     *
+     * @param value the value to find
+     *
+     * @return The IDs of the matching entities in ascending order.
+     *
+     * @throws PersistenceException error converting the value
+     */
+    synchronized int[] find(Object value)
+        throws PersistenceException
+    {
+        Set<Integer> ids = mIds.get(toIndexValue(value));
+        return (ids == null) ? new int[0] : ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Removes every entity from the index.
+     */
+    synchronized void clear()
+    {
+        mIds.clear();
+        mValues.clear();
+        mVersions.clear();
+    }
+
+    /**
+     * Exports the index for persisting.
+     *
+     * @return The IDs of the entities with each value.
+     */
+    synchronized Map<String, int[]> export()
+    {
+        Map<String, int[]> index = new HashMap<>(mIds.size() * 4 / 3 + 1);
+        mIds.forEach((value, ids) -> index.put(value, ids.stream().mapToInt(Integer::intValue).toArray()));
+        return index;
+    }
+
+    /**
+     * Replaces the contents of the index with a persisted index.
+     *
+     * @param index the IDs of the entities with each value
+     */
+    synchronized void load(Map<String, int[]> index)
+    {
+        clear();
+        index.forEach((value, ids) -> {
+            Set<Integer> set = new TreeSet<>();
+            for (int id : ids)
+            {
+                set.add(id);
+                mValues.put(id, value);
+            }
+            mIds.put(value, set);
+        });
+    }
+
+    /**
+     * Converts the given value to its indexed form.
+     *
+     * @param value the value to convert
+     *
+     * @return The indexed form.
+     *
+     * @throws PersistenceException error converting the value
+     */
+    private String toIndexValue(Object value)
+        throws PersistenceException
+    {
+        try
+        {
+            return mWriter.writeValueAsString(value);
+        }
+        catch (JsonProcessingException e)
+        {
+            throw new PersistenceException("Error indexing " + mName + ": " + value, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mName, mIds.size());
+    }
+}
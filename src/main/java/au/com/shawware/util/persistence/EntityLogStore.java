@@ -0,0 +1,1223 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import au.com.shawware.util.IntObjectMap;
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Persists entities to disk as an append-only log of JSON records.
+ * Each create, update and delete appends a record to the active
+ * segment file and an in-memory index maps each entity's ID to its
+ * latest record. Once a segment is full, it is sealed and a new one
+ * started. Sealed segments are periodically compacted in the
+ * background into a single segment holding only the live records.
+ * <p>
+ * The log is replayed (and the index rebuilt) the first time the store
+ * is used. A torn record at the end of the log is discarded. Every write
+ * is forced to disk before it returns; a batch is forced once, after its
+ * last record.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+@SuppressWarnings("boxing")
+public class EntityLogStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>, Closeable
+{
+    /** The default maximum size of a segment (in bytes). */
+    public static final long DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    /** The default number of sealed segments that triggers a compaction. */
+    public static final int DEFAULT_COMPACTION_THRESHOLD = 4;
+
+    /** The file extension to use for segments. */
+    private static final String LOG_EXTENSION = ".log"; //$NON-NLS-1$
+    /** The file extension to use for a completed compaction. */
+    private static final String COMPACT_EXTENSION = ".compact"; //$NON-NLS-1$
+    /** The file extension to use for a compaction in progress. */
+    private static final String TEMP_EXTENSION = ".tmp"; //$NON-NLS-1$
+    /** The separator between the prefix and the segment number. */
+    private static final String SEGMENT_SEPARATOR = "-"; //$NON-NLS-1$
+    /** The format to use for segment numbers. */
+    private static final String SEGMENT_FORMAT = "%06d"; //$NON-NLS-1$
+
+    /** The record type for a newly created entity. */
+    private static final byte CREATE = 1;
+    /** The record type for an updated entity. */
+    private static final byte UPDATE = 2;
+    /** The record type for a deleted entity. */
+    private static final byte DELETE = 3;
+    /** The size of a record header: type, ID, payload length and payload checksum. */
+    private static final int HEADER_SIZE = 1 + 4 + 4 + 4;
+
+    /** The directory where segments are stored. */
+    private final Path mDirectory;
+    /** The entity's name - mostly for error messages. */
+    private final String mEntityName;
+    /** The file prefix to use for segments. */
+    private final String mPrefix;
+    /** The maximum size of a segment. */
+    private final long mSegmentSize;
+    /** The number of sealed segments that triggers a compaction. */
+    private final int mCompactionThreshold;
+    /** The JSON writer to use. */
+    private final ObjectWriter mWriter;
+    /** The JSON reader to use. */
+    private final ObjectReader mReader;
+    /** Guards the index and segments. */
+    private final ReadWriteLock mLock;
+    /** Runs compactions in the background while the store is open. */
+    private ExecutorService mCompactor;
+    /** The open segments, keyed by number. */
+    private final TreeMap<Integer, FileChannel> mSegments;
+    /** The location of the latest record for each live entity. */
+    private final Map<Integer, Location> mIndex;
+    /** Whether the log has been replayed yet. */
+    private volatile boolean mOpen;
+    /** The number of the active segment. */
+    private int mActive;
+    /** The size of the active segment. */
+    private long mActiveSize;
+    /** The highest ID allocated so far. */
+    private int mMaxId;
+    /** Whether a compaction is scheduled or running. */
+    private boolean mCompacting;
+    /** The error from the last background compaction (if any). */
+    private volatile IOException mCompactionError;
+
+    /**
+     * Constructs a new data store for the given class.
+     *
+     * @param directory the directory to store entities in
+     * @param name the name of the entity
+     * @param prefix the prefix to use for the entity
+     * @param clazz the entity's class
+     */
+    public EntityLogStore(String directory, String name, String prefix, Class<EntityType> clazz)
+    {
+        this(directory, name, prefix, clazz, DEFAULT_SEGMENT_SIZE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * Constructs a new data store for the given class.
+     *
+     * @param directory the directory to store entities in
+     * @param name the name of the entity
+     * @param prefix the prefix to use for the entity
+     * @param clazz the entity's class
+     * @param segmentSize the size at which a segment is sealed
+     * @param compactionThreshold the number of sealed segments that triggers a compaction
+     */
+    public EntityLogStore(String directory, String name, String prefix, Class<EntityType> clazz,
+                          long segmentSize, int compactionThreshold)
+    {
+        if (StringUtil.isEmpty(directory) ||
+            StringUtil.isEmpty(name) ||
+            StringUtil.isEmpty(prefix))
+        {
+            throw new IllegalArgumentException("Empty parameter"); //$NON-NLS-1$
+        }
+        if ((segmentSize <= 0) || (compactionThreshold <= 0))
+        {
+            throw new IllegalArgumentException("Invalid segment size or compaction threshold"); //$NON-NLS-1$
+        }
+        mDirectory = Paths.get(directory);
+        mEntityName = name;
+        mPrefix = prefix + SEGMENT_SEPARATOR;
+        mSegmentSize = segmentSize;
+        mCompactionThreshold = compactionThreshold;
+        mWriter = EntityCodecs.JSON_WRITER;
+        mReader = EntityCodecs.readerFor(clazz);
+        mLock = new ReentrantReadWriteLock();
+        mCompactor = null;
+        mSegments = new TreeMap<>();
+        mIndex = new HashMap<>();
+        mOpen = false;
+        mCompacting = false;
+        mCompactionError = null;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll()
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            Map<Integer, EntityType> entities = new HashMap<>(mIndex.size() * 4 / 3 + 1);
+            for (Map.Entry<Integer, Location> entry : mIndex.entrySet())
+            {
+                entities.put(entry.getKey(), decode(entry.getKey(), entry.getValue()));
+            }
+            return entities;
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public IntObjectMap<EntityType> getAllById()
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            IntObjectMap<EntityType> entities = new IntObjectMap<>(mIndex.size());
+            for (Map.Entry<Integer, Location> entry : mIndex.entrySet())
+            {
+                entities.put(entry.getKey(), decode(entry.getKey(), entry.getValue()));
+            }
+            return entities;
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+        throws PersistenceException
+    {
+        return Arrays.stream(getIds()).mapToObj(this::getForStream).filter(Objects::nonNull);
+    }
+
+    @Override
+    public int[] getAllIds()
+        throws PersistenceException
+    {
+        return getIds();
+    }
+
+    @Override
+    public Stream<EntityProjection> project(String... fields)
+        throws PersistenceException
+    {
+        EntityProjector projector = new EntityProjector(fields);
+        return Arrays.stream(getIds()).mapToObj(id -> project(id, projector)).filter(Objects::nonNull);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each poll compares the locations of the entities' latest records,
+     * which are held in memory, so only the entities written since the
+     * last poll are read.
+     */
+    @Override
+    public IEntityWatch<EntityType> watch(Consumer<EntityChange> listener)
+        throws PersistenceException
+    {
+        return EntityWatch.poll(this, this::getLocationStamps, listener, EntityWatch.DEFAULT_POLL_MILLIS);
+    }
+
+    @Override
+    public List<EntityType> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException("Invalid limit: " + limit); //$NON-NLS-1$
+        }
+        try
+        {
+            return Arrays.stream(getIds())
+                    .filter(id -> id >= fromId)
+                    .mapToObj(this::getForStream)
+                    .filter(Objects::nonNull)
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+    }
+
+    @Override
+    public EntityType create(EntityType entity)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            entity.setId(mMaxId + 1);
+            entity.setVersion(AbstractEntity.INITIAL_VERSION);
+            append(CREATE, entity.getId(), mWriter.writeValueAsBytes(entity));
+            mMaxId = entity.getId();
+            mSegments.get(mActive).force(false);
+            return entity;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error creating " + mEntityName, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public EntityType get(int id)
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            return decode(id, locate(id));
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void update(EntityType entity)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            EntityType stored = decode(entity.getId(), locate(entity.getId()));
+            long previous = entity.getVersion();
+            entity.setVersion(ConcurrentUpdateException.nextVersion(mEntityName, stored, entity));
+            try
+            {
+                append(UPDATE, entity.getId(), mWriter.writeValueAsBytes(entity));
+            }
+            catch (IOException e)
+            {
+                entity.setVersion(previous);
+                throw e;
+            }
+            mSegments.get(mActive).force(false);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error updating " + mEntityName + ": " + entity.getId(), e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(int id)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            if (mIndex.containsKey(id))
+            {
+                append(DELETE, id, new byte[0]);
+                mSegments.get(mActive).force(false);
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error deleting " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public List<EntityType> createAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            List<EntityType> created = new ArrayList<>(entities.size());
+            for (EntityType entity : entities)
+            {
+                entity.setId(mMaxId + 1);
+                entity.setVersion(AbstractEntity.INITIAL_VERSION);
+                append(CREATE, entity.getId(), mWriter.writeValueAsBytes(entity));
+                created.add(entity);
+            }
+            mSegments.get(mActive).force(false);
+            return created;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error creating " + mEntityName, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public Map<Integer, EntityType> getMany(int[] ids)
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            Map<Integer, EntityType> entities = new HashMap<>(ids.length * 4 / 3 + 1);
+            for (int id : ids)
+            {
+                entities.put(id, decode(id, locate(id)));
+            }
+            return entities;
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void updateAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            // Check every entity exists and is current before updating any of them.
+            long[] versions = new long[entities.size()];
+            int i = 0;
+            for (EntityType entity : entities)
+            {
+                EntityType stored = decode(entity.getId(), locate(entity.getId()));
+                versions[i++] = ConcurrentUpdateException.nextVersion(mEntityName, stored, entity);
+            }
+            i = 0;
+            for (EntityType entity : entities)
+            {
+                long previous = entity.getVersion();
+                entity.setVersion(versions[i++]);
+                try
+                {
+                    append(UPDATE, entity.getId(), mWriter.writeValueAsBytes(entity));
+                }
+                catch (IOException e)
+                {
+                    entity.setVersion(previous);
+                    throw e;
+                }
+            }
+            mSegments.get(mActive).force(false);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error updating " + mEntityName, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void deleteAll(int[] ids)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            for (int id : ids)
+            {
+                if (mIndex.containsKey(id))
+                {
+                    append(DELETE, id, new byte[0]);
+                }
+            }
+            mSegments.get(mActive).force(false);
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error deleting " + mEntityName, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts all the sealed segments into a single segment that holds
+     * only the latest record for each live entity. This is normally done
+     * in the background, but can be called directly. Writers are only
+     * blocked while the index is switched over to the compacted segment.
+     *
+     * @throws PersistenceException error compacting the segments
+     */
+    public void compact()
+        throws PersistenceException
+    {
+        open();
+        try
+        {
+            doCompact();
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error compacting " + mEntityName, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Waits for any background compaction to finish and closes the
+     * segment files. The store is re-opened if it is used again.
+     *
+     * @throws IOException error closing the store or from the last background compaction
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        ExecutorService compactor;
+        mLock.writeLock().lock();
+        try
+        {
+            compactor = mCompactor;
+            mCompactor = null;
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+        if (compactor != null)
+        {
+            // Let a running compaction finish rather than interrupt it mid-read.
+            compactor.shutdown();
+            try
+            {
+                while (!compactor.awaitTermination(1, TimeUnit.MINUTES))
+                {
+                    // Keep waiting: the segments cannot be closed under it.
+                }
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted closing " + mEntityName); //$NON-NLS-1$
+            }
+        }
+        // Compactions run directly hold this monitor too.
+        synchronized (this)
+        {
+            mLock.writeLock().lock();
+            try
+            {
+                for (FileChannel channel : mSegments.values())
+                {
+                    channel.close();
+                }
+                mSegments.clear();
+                mIndex.clear();
+                mCompacting = false;
+                mOpen = false;
+            }
+            finally
+            {
+                mLock.writeLock().unlock();
+            }
+        }
+        if (mCompactionError != null)
+        {
+            throw mCompactionError;
+        }
+    }
+
+    /**
+     * @return The number of segments currently in use.
+     */
+    int getSegmentCount()
+    {
+        mLock.readLock().lock();
+        try
+        {
+            return mSegments.size();
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Lists the IDs of the live entities.
+     *
+     * @return The IDs in ascending order.
+     *
+     * @throws PersistenceException error opening the store
+     */
+    private int[] getIds()
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            return mIndex.keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Derives a stamp for each live entity from the location of its
+     * latest record, which changes whenever the entity is written (and
+     * when it is moved by a compaction).
+     *
+     * @return The stamps keyed by entity ID.
+     *
+     * @throws PersistenceException error opening the store
+     */
+    private Map<Integer, Long> getLocationStamps()
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            Map<Integer, Long> stamps = new HashMap<>(mIndex.size() * 4 / 3 + 1);
+            mIndex.forEach((id, location) -> stamps.put(id, ((long)location.mSegment << 48) ^ location.mOffset));
+            return stamps;
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the entity with the given ID for streams, ie. with no checked exception.
+     *
+     * @param id the entity's ID
+     *
+     * @return The corresponding entity or null if it has since been deleted.
+     *
+     * @throws UncheckedPersistenceException error reading the entity
+     */
+    private EntityType getForStream(int id)
+        throws UncheckedPersistenceException
+    {
+        mLock.readLock().lock();
+        try
+        {
+            Location location = mIndex.get(id);
+            return (location == null) ? null : decode(id, location);
+        }
+        catch (PersistenceException e)
+        {
+            throw new UncheckedPersistenceException(e.getMessage(), e.getCause());
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Extracts fields from the entity with the given ID for use in a stream.
+     * The entity is read while holding the lock but parsed afterwards.
+     *
+     * @param id the entity's ID
+     * @param projector extracts the fields
+     *
+     * @return The projection or null if the entity no longer exists.
+     *
+     * @throws UncheckedPersistenceException error reading the entity
+     */
+    private EntityProjection project(int id, EntityProjector projector)
+        throws UncheckedPersistenceException
+    {
+        try
+        {
+            ByteBuffer payload;
+            mLock.readLock().lock();
+            try
+            {
+                Location location = mIndex.get(id);
+                if (location == null)
+                {
+                    return null;
+                }
+                payload = ByteBuffer.allocate(location.mLength);
+                readFully(mSegments.get(location.mSegment), payload, location.mOffset);
+            }
+            finally
+            {
+                mLock.readLock().unlock();
+            }
+            return projector.project(mReader.getFactory().createParser(payload.array()));
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedPersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Replays the log and builds the index if this has not already been done.
+     *
+     * @throws PersistenceException error reading the log
+     */
+    private void open()
+        throws PersistenceException
+    {
+        if (mOpen)
+        {
+            return;
+        }
+        mLock.writeLock().lock();
+        try
+        {
+            if (!mOpen)
+            {
+                recover();
+                for (int segment : listSegments(LOG_EXTENSION))
+                {
+                    FileChannel channel = FileChannel.open(getSegment(segment, LOG_EXTENSION),
+                                                           StandardOpenOption.READ, StandardOpenOption.WRITE);
+                    mSegments.put(segment, channel);
+                    mActive = segment;
+                    mActiveSize = replay(segment, channel);
+                }
+                if (mSegments.isEmpty())
+                {
+                    startSegment(1);
+                }
+                String name = mEntityName;
+                mCompactor = Executors.newSingleThreadExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, "compactor-" + name); //$NON-NLS-1$
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                mOpen = true;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error opening " + mEntityName, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Completes or discards any compaction that was interrupted.
+     *
+     * @throws IOException error accessing the segments
+     */
+    private void recover()
+        throws IOException
+    {
+        for (int segment : listSegments(TEMP_EXTENSION))
+        {
+            Files.delete(getSegment(segment, TEMP_EXTENSION));
+        }
+        for (int segment : listSegments(COMPACT_EXTENSION))
+        {
+            finishCompaction(segment);
+        }
+    }
+
+    /**
+     * Replays the given segment into the index.
+     *
+     * @param segment the segment number
+     * @param channel the segment's file
+     *
+     * @return The size of the valid portion of the segment.
+     *
+     * @throws IOException error reading the segment
+     */
+    private long replay(int segment, FileChannel channel)
+        throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        long size = channel.size();
+        long position = 0;
+        while (position < size)
+        {
+            header.clear();
+            if (size - position < HEADER_SIZE)
+            {
+                break;
+            }
+            readFully(channel, header, position);
+            header.flip();
+            byte type = header.get();
+            int id = header.getInt();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if ((length < 0) || (size - position - HEADER_SIZE < length))
+            {
+                break;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(length);
+            readFully(channel, payload, position + HEADER_SIZE);
+            if (checksum(payload.array()) != checksum)
+            {
+                break;
+            }
+            apply(type, id, new Location(segment, position + HEADER_SIZE, length));
+            position += HEADER_SIZE + length;
+        }
+        if (position < size)
+        {
+            // Discard the torn record at the end of the log.
+            channel.truncate(position);
+        }
+        return position;
+    }
+
+    /**
+     * Appends a record to the active segment and updates the index.
+     *
+     * @param type the record type
+     * @param id the entity ID
+     * @param payload the encoded entity
+     *
+     * @throws IOException error writing the record
+     */
+    private void append(byte type, int id, byte[] payload)
+        throws IOException
+    {
+        FileChannel channel = mSegments.get(mActive);
+        long position = write(channel, mActiveSize, type, id, payload);
+        apply(type, id, new Location(mActive, mActiveSize + HEADER_SIZE, payload.length));
+        mActiveSize = position;
+        if (mActiveSize >= mSegmentSize)
+        {
+            channel.force(false);
+            startSegment(mActive + 1);
+            if ((mSegments.size() - 1 >= mCompactionThreshold) && !mCompacting && (mCompactor != null))
+            {
+                mCompacting = true;
+                try
+                {
+                    mCompactor.execute(this::compactInBackground);
+                }
+                catch (RejectedExecutionException e)
+                {
+                    // The store is closing; the next store to open compacts instead.
+                    mCompacting = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies a record to the index.
+     *
+     * @param type the record type
+     * @param id the entity ID
+     * @param location the location of the record's payload
+     */
+    private void apply(byte type, int id, Location location)
+    {
+        if (type == DELETE)
+        {
+            mIndex.remove(id);
+        }
+        else
+        {
+            mIndex.put(id, location);
+        }
+        mMaxId = Math.max(mMaxId, id);
+    }
+
+    /**
+     * Creates a new, empty active segment.
+     *
+     * @param segment the segment number
+     *
+     * @throws IOException error creating the segment
+     */
+    private void startSegment(int segment)
+        throws IOException
+    {
+        FileChannel channel = FileChannel.open(getSegment(segment, LOG_EXTENSION),
+                                               StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        mSegments.put(segment, channel);
+        mActive = segment;
+        mActiveSize = 0;
+    }
+
+    /**
+     * Runs a compaction on the background thread.
+     */
+    private void compactInBackground()
+    {
+        try
+        {
+            doCompact();
+            mCompactionError = null;
+        }
+        catch (IOException e)
+        {
+            // The segments are left as they were, so we just try again next time.
+            mCompactionError = e;
+        }
+        finally
+        {
+            mLock.writeLock().lock();
+            mCompacting = false;
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Compacts the sealed segments. The live records are copied without
+     * holding the lock since sealed segments are never modified.
+     * Only one compaction runs at a time.
+     *
+     * @throws IOException error compacting the segments
+     */
+    private synchronized void doCompact()
+        throws IOException
+    {
+        List<Integer> ids = new ArrayList<>();
+        List<Location> sources = new ArrayList<>();
+        TreeMap<Integer, FileChannel> sealed;
+        int maxId;
+        mLock.readLock().lock();
+        try
+        {
+            if (!mOpen)
+            {
+                return;
+            }
+            sealed = new TreeMap<>(mSegments.headMap(mActive));
+            maxId = mMaxId;
+            new TreeMap<>(mIndex).forEach((id, location) -> {
+                if (location.mSegment < mActive)
+                {
+                    ids.add(id);
+                    sources.add(location);
+                }
+            });
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+        if (sealed.size() < 2)
+        {
+            return;
+        }
+
+        int target = sealed.lastKey();
+        Path temp = getSegment(target, TEMP_EXTENSION);
+        List<Location> targets = new ArrayList<>(ids.size());
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE))
+        {
+            long position = 0;
+            for (int i = 0; i < ids.size(); i++)
+            {
+                Location source = sources.get(i);
+                ByteBuffer payload = ByteBuffer.allocate(source.mLength);
+                readFully(sealed.get(source.mSegment), payload, source.mOffset);
+                position = write(out, position, CREATE, ids.get(i), payload.array());
+                targets.add(new Location(target, position - source.mLength, source.mLength));
+            }
+            if (!ids.contains(maxId))
+            {
+                // Retain the highest ID so that it is never re-allocated.
+                write(out, position, DELETE, maxId, new byte[0]);
+            }
+            out.force(true);
+        }
+        Files.move(temp, getSegment(target, COMPACT_EXTENSION), StandardCopyOption.ATOMIC_MOVE);
+
+        mLock.writeLock().lock();
+        try
+        {
+            if (!mOpen)
+            {
+                // Closed meanwhile: the compacted segment is adopted when the store is next opened.
+                return;
+            }
+            for (int i = 0; i < ids.size(); i++)
+            {
+                if (mIndex.get(ids.get(i)) == sources.get(i))
+                {
+                    mIndex.put(ids.get(i), targets.get(i));
+                }
+            }
+            for (int segment : sealed.keySet())
+            {
+                mSegments.remove(segment).close();
+            }
+            finishCompaction(target);
+            mSegments.put(target, FileChannel.open(getSegment(target, LOG_EXTENSION), StandardOpenOption.READ));
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the compacted segments with the compaction output.
+     * The output is complete, so this can be safely repeated.
+     *
+     * @param target the segment number of the compaction output
+     *
+     * @throws IOException error replacing the segments
+     */
+    private void finishCompaction(int target)
+        throws IOException
+    {
+        for (int segment : listSegments(LOG_EXTENSION))
+        {
+            if (segment < target)
+            {
+                Files.delete(getSegment(segment, LOG_EXTENSION));
+            }
+        }
+        Files.move(getSegment(target, COMPACT_EXTENSION), getSegment(target, LOG_EXTENSION),
+                   StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Writes a record to the given file.
+     *
+     * @param channel the file to write to
+     * @param position the position to write at
+     * @param type the record type
+     * @param id the entity ID
+     * @param payload the encoded entity
+     *
+     * @return The position after the record.
+     *
+     * @throws IOException error writing the record
+     */
+    private static long write(FileChannel channel, long position, byte type, int id, byte[] payload)
+        throws IOException
+    {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length);
+        record.put(type).putInt(id).putInt(payload.length).putInt(checksum(payload)).put(payload);
+        record.flip();
+        long end = position;
+        while (record.hasRemaining())
+        {
+            end += channel.write(record, end);
+        }
+        return end;
+    }
+
+    /**
+     * Finds the location of the given entity's latest record.
+     *
+     * @param id the entity's ID
+     *
+     * @return The location.
+     *
+     * @throws PersistenceException unknown entity
+     */
+    private Location locate(int id)
+        throws PersistenceException
+    {
+        Location location = mIndex.get(id);
+        if (location == null)
+        {
+            throw new PersistenceException("Error accessing " + mEntityName + ": " + id); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        return location;
+    }
+
+    /**
+     * Reads and decodes the entity at the given location.
+     *
+     * @param id the entity's ID
+     * @param location the location of the entity's record
+     *
+     * @return The entity.
+     *
+     * @throws PersistenceException error reading the entity
+     */
+    private EntityType decode(int id, Location location)
+        throws PersistenceException
+    {
+        try
+        {
+            ByteBuffer payload = ByteBuffer.allocate(location.mLength);
+            readFully(mSegments.get(location.mSegment), payload, location.mOffset);
+            return mReader.readValue(payload.array());
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Lists the numbers of the segment files with the given extension.
+     *
+     * @param extension the file extension
+     *
+     * @return The segment numbers in ascending order.
+     *
+     * @throws IOException error listing the directory
+     */
+    private TreeSet<Integer> listSegments(String extension)
+        throws IOException
+    {
+        TreeSet<Integer> segments = new TreeSet<>();
+        try (Stream<Path> files = Files.list(mDirectory))
+        {
+            files.map(Path::getFileName)
+                 .map(Path::toString)
+                 .filter(name -> name.startsWith(mPrefix) && name.endsWith(extension))
+                 .map(name -> name.substring(mPrefix.length(), name.length() - extension.length()))
+                 .filter(number -> !number.isEmpty() && number.chars().allMatch(Character::isDigit))
+                 .forEach(number -> segments.add(Integer.parseInt(number)));
+        }
+        return segments;
+    }
+
+    /**
+     * Calculates the path of the given segment file.
+     *
+     * @param segment the segment number
+     * @param extension the file extension
+     *
+     * @return The corresponding path.
+     */
+    private Path getSegment(int segment, String extension)
+    {
+        return mDirectory.resolve(mPrefix + String.format(SEGMENT_FORMAT, segment) + extension);
+    }
+
+    /**
+     * Reads from the given file until the buffer is full.
+     *
+     * @param channel the file to read from
+     * @param buffer the buffer to fill
+     * @param position the position to read from
+     *
+     * @throws IOException error reading the file
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+        throws IOException
+    {
+        long offset = position;
+        while (buffer.hasRemaining())
+        {
+            int read = channel.read(buffer, offset);
+            if (read < 0)
+            {
+                throw new EOFException();
+            }
+            offset += read;
+        }
+    }
+
+    /**
+     * Calculates the checksum of the given data.
+     *
+     * @param data the data
+     *
+     * @return The checksum.
+     */
+    private static int checksum(byte[] data)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        return (int)crc.getValue();
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mEntityName, mDirectory);
+    }
+
+    /**
+     * The location of a record's payload within the log.
+     */
+    private static final class Location
+    {
+        /** The segment number. */
+        final int mSegment;
+        /** The offset of the payload within the segment. */
+        final long mOffset;
+        /** The length of the payload. */
+        final int mLength;
+
+        /**
+         * Constructs a new location.
+         *
+         * @param segment the segment number
+         * @param offset the offset of the payload
+         * @param length the length of the payload
+         */
+        Location(int segment, long offset, int length)
+        {
+            mSegment = segment;
+            mOffset  = offset;
+            mLength  = length;
+        }
+    }
+}
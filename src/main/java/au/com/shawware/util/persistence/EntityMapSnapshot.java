@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * A snapshot that simply holds a copy of every entity in the store.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+@SuppressWarnings("boxing")
+class EntityMapSnapshot<EntityType extends AbstractEntity<?>> implements IEntitySnapshot<EntityType>
+{
+    /** The entities in the snapshot, in ID order. */
+    private final TreeMap<Integer, EntityType> mEntities;
+
+    /**
+     * Constructs a new snapshot.
+     *
+     * @param entities the entities in the snapshot
+     */
+    EntityMapSnapshot(Map<Integer, EntityType> entities)
+    {
+        mEntities = new TreeMap<>(entities);
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll()
+    {
+        return new HashMap<>(mEntities);
+    }
+
+    @Override
+    public EntityType get(int id)
+        throws PersistenceException
+    {
+        EntityType entity = mEntities.get(id);
+        if (entity == null)
+        {
+            throw new PersistenceException("Error accessing entity: " + id); //$NON-NLS-1$
+        }
+        return entity;
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+    {
+        return mEntities.values().stream();
+    }
+
+    @Override
+    public void close()
+    {
+        // Nothing to release.
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mEntities.size());
+    }
+}
@@ -0,0 +1,667 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.util.ByteBufferBackedInputStream;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Persists entities as JSON in a single memory-mapped file. The file
+ * starts with a header, followed by a fixed-width index that maps each
+ * ID to the offset and length of its entity in the data region that
+ * follows. Retrieving an entity is an index lookup and a decode from
+ * the mapped file; no files are opened, read or closed.
+ * <p>
+ * Updates are appended to the data region, so the old values become
+ * garbage. The file is rewritten without the garbage when it would
+ * otherwise need to grow and at least half the data region is garbage.
+ * As the whole file is mapped at once, it is limited to 2GB.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+public class EntityMappedStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>, Closeable
+{
+    /** The file extension to use for the store. */
+    private static final String DATA_EXTENSION = ".dat"; //$NON-NLS-1$
+    /** The file extension to use while rewriting the store. */
+    private static final String TEMP_EXTENSION = ".tmp"; //$NON-NLS-1$
+    /** Identifies the file as an entity store. */
+    private static final int MAGIC = 0x53574D53;
+    /** The header: magic, index capacity, highest ID and the end of the data region. */
+    private static final int HEADER_SIZE = 4 + 4 + 4 + 4 + 8;
+    /** The position of the index capacity in the header. */
+    private static final int CAPACITY_POSITION = 4;
+    /** The position of the highest ID in the header. */
+    private static final int MAX_ID_POSITION = 8;
+    /** The position of the end of the data region in the header. */
+    private static final int DATA_END_POSITION = 16;
+    /** The size of an index slot: data offset and length. */
+    private static final int SLOT_SIZE = 8 + 4;
+    /** The initial number of index slots. */
+    private static final int INITIAL_CAPACITY = 1024;
+    /** The initial size of the data region. */
+    private static final int INITIAL_DATA_SIZE = 64 * 1024;
+
+    /** The file the entities are stored in. */
+    private final Path mFile;
+    /** The entity's name - mostly for error messages. */
+    private final String mEntityName;
+    /** The JSON writer to use. */
+    private final ObjectWriter mWriter;
+    /** The JSON reader to use. */
+    private final ObjectReader mReader;
+    /** Guards the mapped file. */
+    private final ReadWriteLock mLock;
+    /** Whether the file has been mapped yet. */
+    private volatile boolean mOpen;
+    /** The mapped file. */
+    private MappedByteBuffer mBuffer;
+    /** The number of index slots. */
+    private int mCapacity;
+    /** The highest ID allocated so far. */
+    private int mMaxId;
+    /** The end of the data in use (relative to the data region). */
+    private long mDataEnd;
+    /** The amount of data belonging to live entities. */
+    private long mLiveBytes;
+
+    /**
+     * Constructs a new data store for the given class.
+     *
+     * @param directory the directory to store entities in
+     * @param name the name of the entity
+     * @param prefix the prefix to use for the entity
+     * @param clazz the entity's class
+     */
+    public EntityMappedStore(String directory, String name, String prefix, Class<EntityType> clazz)
+    {
+        if (StringUtil.isEmpty(directory) ||
+            StringUtil.isEmpty(name) ||
+            StringUtil.isEmpty(prefix))
+        {
+            throw new IllegalArgumentException("Empty parameter"); //$NON-NLS-1$
+        }
+        mFile = Paths.get(directory, prefix + DATA_EXTENSION);
+        mEntityName = name;
+        mWriter = EntityCodecs.JSON_WRITER;
+        mReader = EntityCodecs.readerFor(clazz);
+        mLock = new ReentrantReadWriteLock();
+        mOpen = false;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public Map<Integer, EntityType> getAll()
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            Map<Integer, EntityType> entities = new HashMap<>();
+            int last = Math.min(mMaxId, mCapacity - 1);
+            for (int id = 1; id <= last; id++)
+            {
+                if (getLength(id) > 0)
+                {
+                    entities.put(id, decode(id));
+                }
+            }
+            return entities;
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+        throws PersistenceException
+    {
+        return getIds(1).mapToObj(this::getForStream).filter(Objects::nonNull);
+    }
+
+    @Override
+    public int[] getAllIds()
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            return IntStream.rangeClosed(1, Math.min(mMaxId, mCapacity - 1)).filter(this::exists).toArray();
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public Stream<EntityProjection> project(String... fields)
+        throws PersistenceException
+    {
+        EntityProjector projector = new EntityProjector(fields);
+        return getIds(1).mapToObj(id -> project(id, projector)).filter(Objects::nonNull);
+    }
+
+    @Override
+    public List<EntityType> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException("Invalid limit: " + limit); //$NON-NLS-1$
+        }
+        try
+        {
+            return getIds(fromId)
+                    .mapToObj(this::getForStream)
+                    .filter(Objects::nonNull)
+                    .limit(limit)
+                    .collect(Collectors.toList());
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+    }
+
+    @Override
+    public EntityType create(EntityType entity)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            entity.setId(mMaxId + 1);
+            entity.setVersion(AbstractEntity.INITIAL_VERSION);
+            write(entity.getId(), mWriter.writeValueAsBytes(entity));
+            mMaxId = entity.getId();
+            mBuffer.putInt(MAX_ID_POSITION, mMaxId);
+            return entity;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error creating " + mEntityName, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public EntityType get(int id)
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            if (!exists(id))
+            {
+                throw new PersistenceException("Error accessing " + mEntityName + ": " + id); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            return decode(id);
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void update(EntityType entity)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            if (!exists(entity.getId()))
+            {
+                throw new PersistenceException("Error accessing " + mEntityName + ": " + entity.getId()); //$NON-NLS-1$ //$NON-NLS-2$
+            }
+            long previous = entity.getVersion();
+            entity.setVersion(ConcurrentUpdateException.nextVersion(mEntityName, decode(entity.getId()), entity));
+            try
+            {
+                write(entity.getId(), mWriter.writeValueAsBytes(entity));
+            }
+            catch (IOException e)
+            {
+                entity.setVersion(previous);
+                throw e;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error updating " + mEntityName + ": " + entity.getId(), e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void delete(int id)
+        throws PersistenceException
+    {
+        open();
+        mLock.writeLock().lock();
+        try
+        {
+            if (exists(id))
+            {
+                mLiveBytes -= getLength(id);
+                setSlot(id, 0, 0);
+            }
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Flushes the mapped file to disk.
+     *
+     * @throws IOException error closing the store
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        mLock.writeLock().lock();
+        try
+        {
+            if (mOpen)
+            {
+                mBuffer.force();
+                mBuffer = null;
+                mOpen = false;
+            }
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Builds the range of IDs that may be in use, starting at the given ID.
+     *
+     * @param fromId the lowest ID of interest
+     *
+     * @return The range of IDs.
+     *
+     * @throws PersistenceException error opening the store
+     */
+    private IntStream getIds(int fromId)
+        throws PersistenceException
+    {
+        open();
+        mLock.readLock().lock();
+        try
+        {
+            return IntStream.rangeClosed(Math.max(fromId, 1), Math.min(mMaxId, mCapacity - 1));
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Loads the entity with the given ID for streams, ie. with no checked exception.
+     *
+     * @param id the entity's ID
+     *
+     * @return The corresponding entity or null if there is none.
+     *
+     * @throws UncheckedPersistenceException error reading the entity
+     */
+    private EntityType getForStream(int id)
+        throws UncheckedPersistenceException
+    {
+        mLock.readLock().lock();
+        try
+        {
+            return exists(id) ? decode(id) : null;
+        }
+        catch (PersistenceException e)
+        {
+            throw new UncheckedPersistenceException(e.getMessage(), e.getCause());
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Extracts fields from the entity with the given ID for use in a stream.
+     * The entity is parsed directly from the mapped file.
+     *
+     * @param id the entity's ID
+     * @param projector extracts the fields
+     *
+     * @return The projection or null if the entity does not exist.
+     *
+     * @throws UncheckedPersistenceException error parsing the entity
+     */
+    private EntityProjection project(int id, EntityProjector projector)
+        throws UncheckedPersistenceException
+    {
+        mLock.readLock().lock();
+        try
+        {
+            return exists(id) ? projector.project(mReader.getFactory().createParser(new ByteBufferBackedInputStream(getData(id)))) : null;
+        }
+        catch (IOException e)
+        {
+            throw new UncheckedPersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        finally
+        {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Maps the store's file, creating it if need be.
+     *
+     * @throws PersistenceException error mapping the file
+     */
+    private void open()
+        throws PersistenceException
+    {
+        if (mOpen)
+        {
+            return;
+        }
+        mLock.writeLock().lock();
+        try
+        {
+            if (!mOpen)
+            {
+                if (!Files.exists(mFile))
+                {
+                    rebuild(INITIAL_CAPACITY, INITIAL_DATA_SIZE);
+                }
+                else
+                {
+                    map(Files.size(mFile));
+                    if ((mBuffer.capacity() < HEADER_SIZE) || (mBuffer.getInt(0) != MAGIC))
+                    {
+                        throw new IOException("Not an entity store: " + mFile); //$NON-NLS-1$
+                    }
+                    mCapacity = mBuffer.getInt(CAPACITY_POSITION);
+                    mMaxId = mBuffer.getInt(MAX_ID_POSITION);
+                    mDataEnd = mBuffer.getLong(DATA_END_POSITION);
+                    mLiveBytes = 0;
+                    for (int id = 1; id < mCapacity; id++)
+                    {
+                        mLiveBytes += getLength(id);
+                    }
+                }
+                mOpen = true;
+            }
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error opening " + mEntityName, e); //$NON-NLS-1$
+        }
+        finally
+        {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the given entity to the end of the data region and points
+     * the entity's index slot at it.
+     *
+     * @param id the entity's ID
+     * @param payload the encoded entity
+     *
+     * @throws IOException error growing the file
+     */
+    private void write(int id, byte[] payload)
+        throws IOException
+    {
+        long oldLength = exists(id) ? getLength(id) : 0;
+        if (id >= mCapacity)
+        {
+            rebuild(Math.max(mCapacity * 2, id + 1), payload.length);
+        }
+        else if (getDataStart() + mDataEnd + payload.length > mBuffer.capacity())
+        {
+            if (mDataEnd - mLiveBytes >= mDataEnd / 2)
+            {
+                rebuild(mCapacity, payload.length);
+            }
+            if (getDataStart() + mDataEnd + payload.length > mBuffer.capacity())
+            {
+                map(Math.max(mBuffer.capacity() * 2L, getDataStart() + mDataEnd + payload.length));
+            }
+        }
+        long offset = mDataEnd;
+        ByteBuffer data = mBuffer.duplicate();
+        data.position((int)(getDataStart() + offset));
+        data.put(payload);
+        mDataEnd += payload.length;
+        mBuffer.putLong(DATA_END_POSITION, mDataEnd);
+        setSlot(id, offset, payload.length);
+        mLiveBytes += payload.length - oldLength;
+    }
+
+    /**
+     * Rewrites the store with the given index capacity, discarding any
+     * garbage in the data region. The new file replaces the old one
+     * atomically, so a failure leaves the old file intact.
+     *
+     * @param capacity the number of index slots
+     * @param spare the amount of spare room to leave in the data region
+     *
+     * @throws IOException error rewriting the file
+     */
+    private void rebuild(int capacity, long spare)
+        throws IOException
+    {
+        Path temp = mFile.resolveSibling(mFile.getFileName() + TEMP_EXTENSION);
+        long dataStart = HEADER_SIZE + (long)capacity * SLOT_SIZE;
+        long dataEnd = 0;
+        try (FileChannel out = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+            int last = (mBuffer == null) ? 0 : Math.min(mMaxId, mCapacity - 1);
+            for (int id = 1; id <= last; id++)
+            {
+                int length = getLength(id);
+                if (length > 0)
+                {
+                    ByteBuffer data = getData(id);
+                    long position = dataStart + dataEnd;
+                    while (data.hasRemaining())
+                    {
+                        position += out.write(data, position);
+                    }
+                    slot.clear();
+                    slot.putLong(dataEnd).putInt(length).flip();
+                    out.write(slot, HEADER_SIZE + (long)id * SLOT_SIZE);
+                    dataEnd += length;
+                }
+            }
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(capacity).putInt(mMaxId).putInt(0).putLong(dataEnd).flip();
+            out.write(header, 0);
+            long size = dataStart + Math.max(dataEnd + spare, INITIAL_DATA_SIZE);
+            if (out.size() < size)
+            {
+                out.write(ByteBuffer.allocate(1), size - 1);
+            }
+            out.force(true);
+        }
+        Files.move(temp, mFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        map(Files.size(mFile));
+        mCapacity = capacity;
+        mDataEnd = dataEnd;
+        mLiveBytes = dataEnd;
+    }
+
+    /**
+     * Maps the store's file, growing it to the given size if need be.
+     *
+     * @param size the size to map
+     *
+     * @throws IOException error mapping the file
+     */
+    private void map(long size)
+        throws IOException
+    {
+        if (size > Integer.MAX_VALUE)
+        {
+            throw new IOException("Store too large: " + mFile); //$NON-NLS-1$
+        }
+        try (FileChannel channel = FileChannel.open(mFile, StandardOpenOption.READ, StandardOpenOption.WRITE))
+        {
+            // The mapping remains valid after the channel is closed.
+            mBuffer = channel.map(MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    /**
+     * Decodes the given entity from the mapped file.
+     *
+     * @param id the entity's ID
+     *
+     * @return The entity.
+     *
+     * @throws PersistenceException error decoding the entity
+     */
+    private EntityType decode(int id)
+        throws PersistenceException
+    {
+        try
+        {
+            return mReader.readValue(new ByteBufferBackedInputStream(getData(id)));
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error accessing " + mEntityName + ": " + id, e); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+    }
+
+    /**
+     * Builds a view of the given entity's data in the mapped file.
+     *
+     * @param id the entity's ID
+     *
+     * @return The entity's data.
+     */
+    private ByteBuffer getData(int id)
+    {
+        ByteBuffer data = mBuffer.duplicate();
+        int start = (int)(getDataStart() + mBuffer.getLong(getSlot(id)));
+        data.limit(start + getLength(id));
+        data.position(start);
+        return data;
+    }
+
+    /**
+     * Determines whether the given entity exists.
+     *
+     * @param id the entity's ID
+     *
+     * @return Whether it exists.
+     */
+    private boolean exists(int id)
+    {
+        return (id > AbstractEntity.DEFAULT_ID) && (id < mCapacity) && (getLength(id) > 0);
+    }
+
+    /**
+     * @param id the entity's ID
+     *
+     * @return The length of the given entity's data, zero if there is none.
+     */
+    private int getLength(int id)
+    {
+        return mBuffer.getInt(getSlot(id) + 8);
+    }
+
+    /**
+     * Updates the given entity's index slot.
+     *
+     * @param id the entity's ID
+     * @param offset the offset of its data
+     * @param length the length of its data
+     */
+    private void setSlot(int id, long offset, int length)
+    {
+        int slot = getSlot(id);
+        mBuffer.putLong(slot, offset);
+        mBuffer.putInt(slot + 8, length);
+    }
+
+    /**
+     * @param id the entity's ID
+     *
+     * @return The position of the given entity's index slot.
+     */
+    private static int getSlot(int id)
+    {
+        return HEADER_SIZE + id * SLOT_SIZE;
+    }
+
+    /**
+     * @return The position of the data region.
+     */
+    private long getDataStart()
+    {
+        return HEADER_SIZE + (long)mCapacity * SLOT_SIZE;
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mEntityName, mFile);
+    }
+}
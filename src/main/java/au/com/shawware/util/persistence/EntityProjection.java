@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.Arrays;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * A lightweight, read-only view of a few fields of a stored entity,
+ * extracted without decoding the whole entity. Scalar fields hold a
+ * {@link String}, {@link Number} or {@link Boolean}; object and array
+ * fields hold a Jackson tree node. Fields that were absent or null in
+ * the stored entity hold null.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public final class EntityProjection
+{
+    /** The projector that created this projection - it knows the fields. */
+    private final EntityProjector mProjector;
+    /** The entity's ID. */
+    private final int mId;
+    /** The fields' values in the order the fields were requested. */
+    private final Object[] mValues;
+
+    /**
+     * Constructs a new projection.
+     *
+     * @param projector the projector creating the projection
+     * @param id the entity's ID
+     * @param values the fields' values
+     */
+    EntityProjection(EntityProjector projector, int id, Object[] values)
+    {
+        mProjector = projector;
+        mId        = id;
+        mValues    = values;
+    }
+
+    /**
+     * @return The entity's ID.
+     */
+    public int getId()
+    {
+        return mId;
+    }
+
+    /**
+     * Retrieves the value of the given field.
+     *
+     * @param field the field's name
+     *
+     * @return The field's value, which may be null.
+     */
+    public Object get(String field)
+    {
+        int index = mProjector.indexOf(field);
+        if (index < 0)
+        {
+            throw new IllegalArgumentException("Field not projected: " + field); //$NON-NLS-1$
+        }
+        return mValues[index];
+    }
+
+    /**
+     * Retrieves the value of the given field as a string.
+     *
+     * @param field the field's name
+     *
+     * @return The field's value or null if the field is null.
+     */
+    public String getString(String field)
+    {
+        Object value = get(field);
+        return (value == null) ? null : value.toString();
+    }
+
+    /**
+     * Retrieves the value of the given numeric field as a long.
+     *
+     * @param field the field's name
+     *
+     * @return The field's value or zero if the field is null.
+     */
+    public long getLong(String field)
+    {
+        Object value = get(field);
+        if ((value != null) && !(value instanceof Number))
+        {
+            throw new IllegalStateException("Field is not numeric: " + field); //$NON-NLS-1$
+        }
+        return (value == null) ? 0 : ((Number)value).longValue();
+    }
+
+    /**
+     * Retrieves the value of the given boolean field.
+     *
+     * @param field the field's name
+     *
+     * @return The field's value or false if the field is null.
+     */
+    public boolean getBoolean(String field)
+    {
+        Object value = get(field);
+        if ((value != null) && !(value instanceof Boolean))
+        {
+            throw new IllegalStateException("Field is not boolean: " + field); //$NON-NLS-1$
+        }
+        return (value != null) && ((Boolean)value).booleanValue();
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mId, Arrays.toString(mValues));
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Extracts a fixed set of top-level fields from encoded entities by
+ * streaming through their tokens. Only the entity's ID and the requested
+ * fields are read: other values are skipped without being decoded and
+ * parsing stops as soon as every requested field has been found.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+final class EntityProjector
+{
+    /** The name of the field holding an entity's ID. */
+    private static final String ID_FIELD = "id"; //$NON-NLS-1$
+
+    /** The fields to extract. */
+    private final String[] mFields;
+    /** The index of each field to extract. */
+    private final Map<String, Integer> mIndexes;
+
+    /**
+     * Constructs a new projector.
+     *
+     * @param fields the names of the fields to extract
+     */
+    @SuppressWarnings("boxing")
+    EntityProjector(String... fields)
+    {
+        if ((fields == null) || (fields.length == 0))
+        {
+            throw new IllegalArgumentException("No fields"); //$NON-NLS-1$
+        }
+        mFields  = fields.clone();
+        mIndexes = new HashMap<>(fields.length * 4 / 3 + 1);
+        for (int i = 0; i < mFields.length; i++)
+        {
+            if (StringUtil.isEmpty(mFields[i]) || (mIndexes.put(mFields[i], i) != null))
+            {
+                throw new IllegalArgumentException("Invalid field: " + mFields[i]); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Finds the position of the given field amongst those extracted.
+     *
+     * @param field the field's name
+     *
+     * @return The field's index or -1 if it is not extracted.
+     */
+    @SuppressWarnings("boxing")
+    int indexOf(String field)
+    {
+        Integer index = mIndexes.get(field);
+        return (index == null) ? -1 : index;
+    }
+
+    /**
+     * Extracts the fields from the given self-describing data.
+     *
+     * @param data the encoded entity (see {@link EntityCodecs})
+     *
+     * @return The projection.
+     *
+     * @throws IOException error parsing the entity
+     */
+    EntityProjection project(byte[] data)
+        throws IOException
+    {
+        return project(EntityCodecs.createParser(data));
+    }
+
+    /**
+     * Extracts the fields from an entity that has already been decoded,
+     * eg. by a store that only holds decoded entities.
+     *
+     * @param entity the entity
+     *
+     * @return The projection.
+     *
+     * @throws IOException error encoding the entity
+     */
+    EntityProjection project(AbstractEntity<?> entity)
+        throws IOException
+    {
+        return project(EntityCodecs.encode(EntityCodecs.COMPACT_JSON, entity));
+    }
+
+    /**
+     * Extracts the fields from the entity the given parser is positioned
+     * before. The parser is closed.
+     *
+     * @param parser the parser
+     *
+     * @return The projection.
+     *
+     * @throws IOException error parsing the entity
+     */
+    @SuppressWarnings("boxing")
+    EntityProjection project(JsonParser parser)
+        throws IOException
+    {
+        try (JsonParser tokens = parser)
+        {
+            if (tokens.nextToken() != JsonToken.START_OBJECT)
+            {
+                throw new IOException("Not an entity"); //$NON-NLS-1$
+            }
+            Object[] values = new Object[mFields.length];
+            Integer id = null;
+            int remaining = mFields.length;
+            while ((tokens.nextToken() == JsonToken.FIELD_NAME) && ((id == null) || (remaining > 0)))
+            {
+                String name = tokens.getCurrentName();
+                JsonToken token = tokens.nextToken();
+                Integer index = mIndexes.get(name);
+                if (ID_FIELD.equals(name))
+                {
+                    id = tokens.getIntValue();
+                }
+                if (index != null)
+                {
+                    values[index] = readValue(tokens, token);
+                    remaining--;
+                }
+                else
+                {
+                    tokens.skipChildren();
+                }
+            }
+            if (id == null)
+            {
+                throw new IOException("Entity has no ID"); //$NON-NLS-1$
+            }
+            return new EntityProjection(this, id, values);
+        }
+    }
+
+    /**
+     * Reads the value the given parser is positioned at.
+     *
+     * @param parser the parser
+     * @param token the value's first token
+     *
+     * @return The value.
+     *
+     * @throws IOException error reading the value
+     */
+    @SuppressWarnings("boxing")
+    private static Object readValue(JsonParser parser, JsonToken token)
+        throws IOException
+    {
+        switch (token)
+        {
+            case VALUE_STRING:
+                return parser.getText();
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getNumberValue();
+            case VALUE_TRUE:
+            case VALUE_FALSE:
+                return parser.getBooleanValue();
+            case VALUE_NULL:
+                return null;
+            case VALUE_EMBEDDED_OBJECT:
+                return parser.getEmbeddedObject();
+            case START_OBJECT:
+            case START_ARRAY:
+                return parser.readValueAsTree();
+            default:
+                throw new IOException("Unexpected token: " + token); //$NON-NLS-1$
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return Arrays.toString(mFields);
+    }
+}
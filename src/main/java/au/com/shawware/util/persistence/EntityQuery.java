@@ -0,0 +1,350 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * A query for a page of entities, optionally filtered and sorted by ID
+ * or key. Queries are run by {@link IEntityStore#query(EntityQuery)}.
+ * <p>
+ * A query only reads the entities it needs: it works out the order of
+ * the candidate entities from their IDs (and keys, if sorting by key)
+ * and then reads them a page at a time until the requested page has been
+ * filled. A query for a particular key only considers the entities found
+ * by {@link IEntityStore#findByKey(Object)}, which an
+ * {@link IndexedEntityStore} answers from its index.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the type of entity being queried
+ */
+public class EntityQuery<EntityType extends AbstractEntity<?>>
+{
+    /**
+     * The orders entities can be sorted in.
+     */
+    public enum Order
+    {
+        /** By ID. */
+        ID,
+        /** By key, then ID. */
+        KEY;
+    }
+
+    /** The fewest entities to read at a time when filtering. */
+    private static final int MIN_CHUNK = 64;
+    /** The most entities to read at a time when filtering. */
+    private static final int MAX_CHUNK = 1024;
+    /** The name of the field holding an entity's key. */
+    private static final String KEY_FIELD = "key"; //$NON-NLS-1$
+    /** The most times to read a chunk whose entities are being deleted. */
+    private static final int MAX_ATTEMPTS = 3;
+
+    /** The filter entities must pass (if any). */
+    private Predicate<? super EntityType> mFilter;
+    /** Whether only entities with a particular key are wanted. */
+    private boolean mKeyed;
+    /** The key wanted (if any). */
+    private Object mKey;
+    /** The order to sort the entities in. */
+    private Order mOrder;
+    /** Whether to sort in descending order. */
+    private boolean mDescending;
+    /** The number of matching entities to skip. */
+    private int mOffset;
+    /** The maximum number of entities to return. */
+    private int mLimit;
+
+    /**
+     * Constructs a new query for every entity, in ascending ID order.
+     */
+    public EntityQuery()
+    {
+        mFilter     = null;
+        mKeyed      = false;
+        mKey        = null;
+        mOrder      = Order.ID;
+        mDescending = false;
+        mOffset     = 0;
+        mLimit      = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Adds a filter that entities must pass. Filters that are added
+     * later are applied after those added earlier.
+     *
+     * @param filter the filter
+     *
+     * @return This query.
+     */
+    public EntityQuery<EntityType> filter(Predicate<? super EntityType> filter)
+    {
+        if (filter == null)
+        {
+            throw new IllegalArgumentException("Null filter"); //$NON-NLS-1$
+        }
+        if (mFilter == null)
+        {
+            mFilter = filter;
+        }
+        else
+        {
+            Predicate<? super EntityType> previous = mFilter;
+            mFilter = entity -> previous.test(entity) && filter.test(entity);
+        }
+        return this;
+    }
+
+    /**
+     * Restricts the query to the entities with the given key.
+     *
+     * @param key the key
+     *
+     * @return This query.
+     */
+    public EntityQuery<EntityType> withKey(Object key)
+    {
+        mKeyed = true;
+        mKey   = key;
+        return this;
+    }
+
+    /**
+     * Sets the order to sort the entities in.
+     *
+     * @param order the order
+     * @param descending whether to sort in descending order
+     *
+     * @return This query.
+     */
+    public EntityQuery<EntityType> orderBy(Order order, boolean descending)
+    {
+        if (order == null)
+        {
+            throw new IllegalArgumentException("Null order"); //$NON-NLS-1$
+        }
+        mOrder      = order;
+        mDescending = descending;
+        return this;
+    }
+
+    /**
+     * Sets the page of matching entities to return.
+     *
+     * @param offset the number of matching entities to skip
+     * @param limit the maximum number of entities to return
+     *
+     * @return This query.
+     */
+    public EntityQuery<EntityType> page(int offset, int limit)
+    {
+        if ((offset < 0) || (limit < 0))
+        {
+            throw new IllegalArgumentException("Invalid page: " + offset + ", " + limit); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+        mOffset = offset;
+        mLimit  = limit;
+        return this;
+    }
+
+    /**
+     * Runs this query against the given store.
+     *
+     * @param store the store to query
+     *
+     * @return The requested page of entities, in order.
+     *
+     * @throws PersistenceException error accessing the store
+     */
+    @SuppressWarnings("boxing")
+    List<EntityType> run(IEntityStore<EntityType> store)
+        throws PersistenceException
+    {
+        if (mLimit == 0)
+        {
+            return new ArrayList<>();
+        }
+        if (mKeyed)
+        {
+            // The key index (if any) has already done the hard work.
+            Stream<EntityType> matches = store.findByKey(mKey).stream();
+            if (mFilter != null)
+            {
+                matches = matches.filter(mFilter);
+            }
+            Comparator<EntityType> byId = Comparator.comparingInt(AbstractEntity::getId);
+            return matches.sorted(mDescending ? byId.reversed() : byId)
+                          .skip(mOffset)
+                          .limit(mLimit)
+                          .collect(Collectors.toList());
+        }
+
+        int[] ids = (mOrder == Order.ID) ? store.getAllIds() : getIdsByKey(store);
+        if (mDescending && (mOrder == Order.ID))
+        {
+            reverse(ids);
+        }
+        Predicate<? super EntityType> filter = mFilter;
+        int skip = mOffset;
+        if (filter == null)
+        {
+            // Only the entities on the page need be read.
+            int from = Math.min(mOffset, ids.length);
+            ids = Arrays.copyOfRange(ids, from, (int)Math.min((long)from + mLimit, ids.length));
+            filter = entity -> true;
+            skip = 0;
+        }
+
+        // Read the candidates a chunk at a time until the page is full.
+        int chunk = Math.min(Math.max(mLimit, MIN_CHUNK), MAX_CHUNK);
+        List<EntityType> page = new ArrayList<>();
+        for (int from = 0; (from < ids.length) && (page.size() < mLimit); from += chunk)
+        {
+            int[] candidates = Arrays.copyOfRange(ids, from, Math.min(from + chunk, ids.length));
+            Map<Integer, EntityType> entities = getMany(store, candidates);
+            for (int id : candidates)
+            {
+                EntityType entity = entities.get(id);
+                if ((entity == null) || !filter.test(entity))
+                {
+                    continue;
+                }
+                if (skip > 0)
+                {
+                    skip--;
+                    continue;
+                }
+                page.add(entity);
+                if (page.size() == mLimit)
+                {
+                    break;
+                }
+            }
+        }
+        return page;
+    }
+
+    /**
+     * Retrieves those of the given entities that are still in the given
+     * store. An entity may be deleted after the query has listed the IDs,
+     * which fails the whole retrieval, so the retrieval is retried
+     * without the entities that have gone. Other errors are thrown.
+     *
+     * @param store the store
+     * @param ids the entities' IDs
+     * @param <EntityType> the type of entity
+     *
+     * @return The entities that are still in the store.
+     *
+     * @throws PersistenceException error accessing the store
+     */
+    private static <EntityType extends AbstractEntity<?>> Map<Integer, EntityType> getMany(IEntityStore<EntityType> store, int[] ids)
+        throws PersistenceException
+    {
+        int[] wanted = ids;
+        for (int attempt = 1; ; attempt++)
+        {
+            try
+            {
+                return store.getMany(wanted);
+            }
+            catch (PersistenceException e)
+            {
+                int[] present = store.getAllIds();
+                int[] remaining = Arrays.stream(wanted).filter(id -> Arrays.binarySearch(present, id) >= 0).toArray();
+                if ((remaining.length == wanted.length) || (attempt == MAX_ATTEMPTS))
+                {
+                    throw e;
+                }
+                wanted = remaining;
+            }
+        }
+    }
+
+    /**
+     * Determines the IDs of every entity in the given store, ordered by
+     * key and then ID. Only the keys are extracted from the entities.
+     *
+     * @param store the store
+     *
+     * @return The ordered IDs.
+     *
+     * @throws PersistenceException error accessing the store
+     */
+    private int[] getIdsByKey(IEntityStore<EntityType> store)
+        throws PersistenceException
+    {
+        Comparator<EntityProjection> order = Comparator.comparing((EntityProjection projection) -> projection.get(KEY_FIELD), EntityQuery::compareKeys)
+                                                       .thenComparingInt(EntityProjection::getId);
+        try (Stream<EntityProjection> projections = store.project(KEY_FIELD))
+        {
+            return projections.sorted(mDescending ? order.reversed() : order)
+                              .mapToInt(EntityProjection::getId)
+                              .toArray();
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Compares two projected keys. Numbers compare numerically, other
+     * values by their string forms, and null keys come first.
+     *
+     * @param key1 the first key
+     * @param key2 the second key
+     *
+     * @return The comparison.
+     */
+    private static int compareKeys(Object key1, Object key2)
+    {
+        if ((key1 == null) || (key2 == null))
+        {
+            return (key1 == null) ? ((key2 == null) ? 0 : -1) : 1;
+        }
+        if ((key1 instanceof Number) && (key2 instanceof Number))
+        {
+            return Double.compare(((Number)key1).doubleValue(), ((Number)key2).doubleValue());
+        }
+        return key1.toString().compareTo(key2.toString());
+    }
+
+    /**
+     * Reverses the given array in place.
+     *
+     * @param values the array
+     */
+    private static void reverse(int[] values)
+    {
+        for (int i = 0, j = values.length - 1; i < j; i++, j--)
+        {
+            int value = values[i];
+            values[i] = values[j];
+            values[j] = value;
+        }
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mKeyed ? Objects.toString(mKey) : null, mOrder, mDescending, mOffset, mLimit);
+    }
+}
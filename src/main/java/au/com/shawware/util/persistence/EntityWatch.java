@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import au.com.shawware.util.IntObjectMap;
+import au.com.shawware.util.StringUtil;
+
+/**
+ * The basis of a watch on a store: it holds the mirror and, as the
+ * changed entities are reloaded, updates the mirror and tells the
+ * listener. Subclasses work out which entities have changed. An entity
+ * is only considered updated if its version has changed, so duplicate
+ * notifications of the same change are reported once.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity being watched
+ */
+abstract class EntityWatch<EntityType extends AbstractEntity<?>> implements IEntityWatch<EntityType>
+{
+    /** The default time between polls of a store. */
+    static final long DEFAULT_POLL_MILLIS = 1000;
+
+    /** Told of each change. */
+    private final Consumer<EntityChange> mListener;
+    /** The mirrored entities. */
+    private final Map<Integer, EntityType> mMirror;
+    /** Whether this watch has been closed. */
+    private volatile boolean mClosed;
+    /** The last exception thrown by the listener (if any). */
+    private volatile RuntimeException mListenerFailure;
+    /** The number of changes the listener has failed to handle. */
+    private volatile int mListenerFailures;
+    /** The error met reading the latest changes (if any). */
+    private volatile Exception mReadFailure;
+
+    /**
+     * Constructs a new watch with an empty mirror.
+     *
+     * @param listener told of each change
+     */
+    EntityWatch(Consumer<EntityChange> listener)
+    {
+        if (listener == null)
+        {
+            throw new IllegalArgumentException("Null listener"); //$NON-NLS-1$
+        }
+        mListener = listener;
+        mMirror   = new ConcurrentHashMap<>();
+        mClosed   = false;
+        mListenerFailure  = null;
+        mListenerFailures = 0;
+        mReadFailure      = null;
+    }
+
+    /**
+     * Creates a watch that polls the given store for changes. Each poll
+     * only extracts the entities' versions: just the entities that have
+     * been created or updated since the last poll are retrieved.
+     *
+     * @param store the store to watch
+     * @param listener told of each change
+     * @param intervalMillis the time between polls
+     * @param <EntityType> the entity being watched
+     *
+     * @return The watch.
+     *
+     * @throws PersistenceException error loading the mirror
+     */
+    static <EntityType extends AbstractEntity<?>> IEntityWatch<EntityType> poll(IEntityStore<EntityType> store,
+                                                                                 Consumer<EntityChange> listener,
+                                                                                 long intervalMillis)
+        throws PersistenceException
+    {
+        return poll(store, () -> getVersions(store), listener, intervalMillis);
+    }
+
+    /**
+     * Creates a watch that polls the given store for changes, for stores
+     * that can tell cheaply which entities may have changed, eg. from the
+     * entities' file stamps, without reading the entities. Just the
+     * entities whose stamps have changed since the last poll are
+     * retrieved.
+     *
+     * @param store the store to watch
+     * @param stamps reads the store's stamps
+     * @param listener told of each change
+     * @param intervalMillis the time between polls
+     * @param <EntityType> the entity being watched
+     *
+     * @return The watch.
+     *
+     * @throws PersistenceException error loading the mirror
+     */
+    static <EntityType extends AbstractEntity<?>> IEntityWatch<EntityType> poll(IEntityStore<EntityType> store,
+                                                                                 StampReader stamps,
+                                                                                 Consumer<EntityChange> listener,
+                                                                                 long intervalMillis)
+        throws PersistenceException
+    {
+        if (intervalMillis <= 0)
+        {
+            throw new IllegalArgumentException("Invalid interval: " + intervalMillis); //$NON-NLS-1$
+        }
+        PollingWatch<EntityType> watch = new PollingWatch<>(store, stamps, listener);
+        watch.start(intervalMillis);
+        return watch;
+    }
+
+    /**
+     * Extracts the version of every entity in the given store, which
+     * serves as a stamp for stores that have nothing cheaper.
+     *
+     * @param store the store
+     *
+     * @return The versions keyed by entity ID.
+     *
+     * @throws PersistenceException error reading the versions
+     */
+    @SuppressWarnings("boxing")
+    private static Map<Integer, Long> getVersions(IEntityStore<?> store)
+        throws PersistenceException
+    {
+        Map<Integer, Long> versions = new HashMap<>();
+        try (Stream<EntityProjection> projections = store.project(AbstractEntity.VERSION_PROPERTY))
+        {
+            projections.forEach(projection -> versions.put(projection.getId(), projection.getLong(AbstractEntity.VERSION_PROPERTY)));
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+        return versions;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getMirror()
+    {
+        return Collections.unmodifiableMap(mMirror);
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public EntityType get(int id)
+    {
+        return mMirror.get(id);
+    }
+
+    @Override
+    public RuntimeException getListenerFailure()
+    {
+        return mListenerFailure;
+    }
+
+    @Override
+    public int getListenerFailures()
+    {
+        return mListenerFailures;
+    }
+
+    @Override
+    public Exception getReadFailure()
+    {
+        return mReadFailure;
+    }
+
+    /**
+     * Records the outcome of reading the latest changes.
+     *
+     * @param failure the error met or null if every change was read
+     */
+    void setReadFailure(Exception failure)
+    {
+        mReadFailure = failure;
+    }
+
+    @Override
+    public void close()
+    {
+        synchronized (this)
+        {
+            if (mClosed)
+            {
+                return;
+            }
+            mClosed = true;
+        }
+        stop();
+    }
+
+    /**
+     * @return Whether this watch has been closed.
+     */
+    boolean isClosed()
+    {
+        return mClosed;
+    }
+
+    /**
+     * Fills the mirror without reporting any changes.
+     *
+     * @param entities the store's entities
+     */
+    @SuppressWarnings("boxing")
+    void load(IntObjectMap<EntityType> entities)
+    {
+        entities.forEach(mMirror::put);
+    }
+
+    /**
+     * Brings the mirror up to date with the given entity as it is now
+     * and reports the change (if any). Exceptions thrown by the listener
+     * are recorded rather than thrown so that they cannot stop the watch.
+     *
+     * @param id the entity's ID
+     * @param entity the entity or null if it is not in the store
+     */
+    @SuppressWarnings("boxing")
+    synchronized void apply(int id, EntityType entity)
+    {
+        if (mClosed)
+        {
+            return;
+        }
+        EntityType mirrored = mMirror.get(id);
+        EntityChange.Type type;
+        if (entity == null)
+        {
+            if (mirrored == null)
+            {
+                return;
+            }
+            mMirror.remove(id);
+            type = EntityChange.Type.DELETED;
+        }
+        else if (mirrored == null)
+        {
+            mMirror.put(id, entity);
+            type = EntityChange.Type.CREATED;
+        }
+        else if (mirrored.getVersion() != entity.getVersion())
+        {
+            mMirror.put(id, entity);
+            type = EntityChange.Type.UPDATED;
+        }
+        else
+        {
+            return;
+        }
+        try
+        {
+            mListener.accept(new EntityChange(type, id));
+        }
+        catch (RuntimeException e)
+        {
+            mListenerFailure = e;
+            mListenerFailures++;
+        }
+    }
+
+    /**
+     * Stops looking for changes. Called once, when the watch is closed.
+     */
+    abstract void stop();
+
+    /**
+     * Reads a stamp for each entity in a store which changes whenever the
+     * entity is written. A stamp may also change when the entity has not.
+     */
+    @FunctionalInterface
+    interface StampReader
+    {
+        /**
+         * Reads the stamps.
+         *
+         * @return The stamps keyed by entity ID.
+         *
+         * @throws PersistenceException error reading the stamps
+         */
+        Map<Integer, Long> read()
+            throws PersistenceException;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mMirror.size(), mClosed, mListenerFailures);
+    }
+
+    /**
+     * A watch that polls a store for changes.
+     *
+     * @param <EntityType> the entity being watched
+     */
+    private static final class PollingWatch<EntityType extends AbstractEntity<?>> extends EntityWatch<EntityType>
+    {
+        /** The store being watched. */
+        private final IEntityStore<EntityType> mStore;
+        /** Reads the store's stamps. */
+        private final StampReader mStamps;
+        /** Polls the store. */
+        private final ScheduledExecutorService mPoller;
+        /** The stamps of the entities the mirror is up to date with. */
+        private Map<Integer, Long> mLastStamps;
+
+        /**
+         * Constructs a new watch.
+         *
+         * @param store the store to watch
+         * @param stamps reads the store's stamps
+         * @param listener told of each change
+         */
+        PollingWatch(IEntityStore<EntityType> store, StampReader stamps, Consumer<EntityChange> listener)
+        {
+            super(listener);
+            mStore = store;
+            mStamps = stamps;
+            mPoller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "watch-" + store); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        /**
+         * Loads the mirror and starts polling.
+         *
+         * @param intervalMillis the time between polls
+         *
+         * @throws PersistenceException error loading the mirror
+         */
+        void start(long intervalMillis)
+            throws PersistenceException
+        {
+            // Read the stamps before loading so that no change is missed.
+            mLastStamps = new HashMap<>(mStamps.read());
+            load(mStore.getAllById());
+            mPoller.scheduleWithFixedDelay(this::poll, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Compares the store's stamps with those from the last poll and
+         * reloads the entities that differ. If they cannot be read
+         * together, they are read one at a time so that one bad entity
+         * does not hold up the rest. Errors are recorded rather than
+         * thrown, which would cancel every later poll: the changes that
+         * could not be read are found again by the next poll.
+         */
+        @SuppressWarnings("boxing")
+        private void poll()
+        {
+            Map<Integer, Long> stamps;
+            try
+            {
+                stamps = new HashMap<>(mStamps.read());
+            }
+            catch (PersistenceException | RuntimeException e)
+            {
+                setReadFailure(e);
+                return;
+            }
+            for (Integer id : getMirror().keySet())
+            {
+                if (!stamps.containsKey(id))
+                {
+                    apply(id, null);
+                }
+            }
+            int[] changed = stamps.entrySet().stream()
+                    .filter(stamp -> !stamp.getValue().equals(mLastStamps.get(stamp.getKey())))
+                    .mapToInt(Map.Entry::getKey)
+                    .toArray();
+            Exception failure = null;
+            if (changed.length > 0)
+            {
+                Map<Integer, EntityType> entities;
+                try
+                {
+                    entities = mStore.getMany(changed);
+                }
+                catch (PersistenceException | RuntimeException e)
+                {
+                    entities = null;
+                }
+                for (int id : changed)
+                {
+                    if (entities != null)
+                    {
+                        apply(id, entities.get(id));
+                        continue;
+                    }
+                    try
+                    {
+                        apply(id, mStore.get(id));
+                    }
+                    catch (PersistenceException | RuntimeException e)
+                    {
+                        // Found again by the next poll.
+                        failure = e;
+                        stamps.remove(id);
+                    }
+                }
+            }
+            setReadFailure(failure);
+            mLastStamps = stamps;
+        }
+
+        @Override
+        void stop()
+        {
+            mPoller.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The asynchronous persistence API for all entities. Each operation
+ * returns straight away with a future that completes when the operation
+ * does. A failed operation completes its future exceptionally, usually
+ * with a {@link PersistenceException}.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ * 
+ * @param <Entity> the type of entity being persisted
+ */
+public interface IAsyncEntityStore<Entity extends AbstractEntity<?>>
+{
+    /**
+     * Retrieves all the entities in the store.
+     * 
+     * @return The future map of entities.
+     */
+    CompletableFuture<Map<Integer, Entity>> getAll();
+
+    /**
+     * Creates the given entity in the store.
+     * 
+     * @param entity the new entity
+     * 
+     * @return The future entity with its ID assigned.
+     */
+    CompletableFuture<Entity> create(Entity entity);
+
+    /**
+     * Retrieves the entity with the given ID.
+     * 
+     * @param id the ID of the entity to retrieve
+     * 
+     * @return The future entity.
+     */
+    CompletableFuture<Entity> get(int id);
+
+    /**
+     * Updates the given entity in the store.
+     * 
+     * @param entity the updated entity
+     * 
+     * @return The future that completes when the entity is updated.
+     */
+    CompletableFuture<Void> update(Entity entity);
+
+    /**
+     * Deletes the entity with the given ID.
+     * 
+     * @param id the ID of the entity to delete
+     * 
+     * @return The future that completes when the entity is deleted.
+     */
+    CompletableFuture<Void> delete(int id);
+
+    /**
+     * Retrieves the entities with the given key.
+     * 
+     * @param key the key to find
+     * 
+     * @return The future list of matching entities in ID order.
+     */
+    CompletableFuture<List<Entity>> findByKey(Object key);
+
+    /**
+     * Creates the given entities in the store.
+     * 
+     * @param entities the new entities
+     * 
+     * @return The future list of created entities with their IDs assigned.
+     */
+    CompletableFuture<List<Entity>> createAll(Collection<Entity> entities);
+
+    /**
+     * Retrieves the entities with the given IDs.
+     * 
+     * @param ids the IDs of the entities to retrieve
+     * 
+     * @return The future map of entities.
+     */
+    CompletableFuture<Map<Integer, Entity>> getMany(int[] ids);
+
+    /**
+     * Updates the given entities in the store.
+     * 
+     * @param entities the updated entities
+     * 
+     * @return The future that completes when the entities are updated.
+     */
+    CompletableFuture<Void> updateAll(Collection<Entity> entities);
+
+    /**
+     * Deletes the entities with the given IDs.
+     * 
+     * @param ids the IDs of the entities to delete
+     * 
+     * @return The future that completes when the entities are deleted.
+     */
+    CompletableFuture<Void> deleteAll(int[] ids);
+}
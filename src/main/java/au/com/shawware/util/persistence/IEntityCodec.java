@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+
+/**
+ * Encodes entities to, and decodes them from, their persisted form.
+ * Each codec has a unique ID which is written at the start of the
+ * encoded data (see {@link EntityCodecs}) so that the persisted form
+ * is self-describing and can be decoded whichever codec wrote it.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public interface IEntityCodec
+{
+    /**
+     * @return This codec's unique ID.
+     */
+    byte getId();
+
+    /**
+     * Encodes the given entity.
+     * 
+     * @param entity the entity to encode
+     * 
+     * @return The encoded entity.
+     * 
+     * @throws IOException error encoding the entity
+     */
+    byte[] encode(Object entity)
+        throws IOException;
+
+    /**
+     * Decodes an entity from the given data.
+     * 
+     * @param data the data to decode
+     * @param offset the start of the encoded entity
+     * @param length the length of the encoded entity
+     * @param clazz the entity's class
+     * @param <EntityType> the type of entity to decode
+     * 
+     * @return The decoded entity.
+     * 
+     * @throws IOException error decoding the entity
+     */
+    <EntityType> EntityType decode(byte[] data, int offset, int length, Class<EntityType> clazz)
+        throws IOException;
+
+    /**
+     * Creates a parser over the tokens of the given encoded entity, so that
+     * individual fields can be read without decoding the whole entity.
+     * By default, codecs cannot be parsed.
+     * 
+     * @param data the data to parse
+     * @param offset the start of the encoded entity
+     * @param length the length of the encoded entity
+     * 
+     * @return The parser.
+     * 
+     * @throws IOException error creating the parser
+     */
+    default JsonParser createParser(byte[] data, int offset, int length)
+        throws IOException
+    {
+        throw new IOException("Codec cannot be parsed: " + this); //$NON-NLS-1$
+    }
+}
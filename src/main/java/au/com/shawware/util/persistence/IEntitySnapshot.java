@@ -0,0 +1,65 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.Closeable;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * A read-only, point-in-time view of the entities in a store. Reads
+ * through a snapshot see the entities as they were when the snapshot was
+ * taken, whatever has been written to the store since. A snapshot should
+ * be closed as soon as it is no longer needed, since the store may be
+ * retaining old versions of entities on its behalf.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <Entity> the type of entity being persisted
+ */
+public interface IEntitySnapshot<Entity extends AbstractEntity<?>> extends Closeable
+{
+    /**
+     * Retrieves all the entities in the snapshot.
+     * 
+     * @return The map of entities. Can be empty, but is never null.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    Map<Integer, Entity> getAll()
+        throws PersistenceException;
+
+    /**
+     * Retrieves the entity with the given ID as it was in the snapshot.
+     * 
+     * @param id the ID of the entity to retrieve
+     * 
+     * @return The entity.
+     * 
+     * @throws PersistenceException the entity did not exist or error accessing the store
+     */
+    Entity get(int id)
+        throws PersistenceException;
+
+    /**
+     * Streams all the entities in the snapshot in ID order. The stream
+     * must be consumed before the snapshot is closed.
+     * 
+     * @return The stream of entities.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    Stream<Entity> stream()
+        throws PersistenceException;
+
+    /**
+     * Releases the snapshot.
+     */
+    @Override
+    void close();
+}
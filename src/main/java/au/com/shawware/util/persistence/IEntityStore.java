@@ -7,7 +7,21 @@
 
 package au.com.shawware.util.persistence;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import au.com.shawware.util.IntObjectMap;
 
 /**
  * The persistence API for all entities.
@@ -28,6 +42,262 @@ public interface IEntityStore<Entity extends AbstractEntity<?>>
     Map<Integer, Entity> getAll()
         throws PersistenceException;
 
+    /**
+     * Retrieves all the entities in the store, loading them in parallel
+     * using the given executor, eg. a fork-join pool, a fixed thread pool
+     * or (on a recent JVM) a virtual thread per task executor. Stores that
+     * cannot load in parallel simply load sequentially.
+     * 
+     * @param executor the executor to load the entities with
+     * 
+     * @return The list of entities. Can be empty, but is never null.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default Map<Integer, Entity> getAll(Executor executor)
+        throws PersistenceException
+    {
+        return getAll();
+    }
+
+    /**
+     * Retrieves all the entities in the store keyed by their primitive
+     * IDs, which avoids boxing every ID and uses less memory than
+     * {@link #getAll()} for large stores. Stores that know how many
+     * entities they hold size the map up front.
+     * 
+     * @return The map of entities. Can be empty, but is never null.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default IntObjectMap<Entity> getAllById()
+        throws PersistenceException
+    {
+        IntObjectMap<Entity> entities = new IntObjectMap<>();
+        forEach(entity -> entities.put(entity.getId(), entity));
+        return entities;
+    }
+
+    /**
+     * Takes a point-in-time snapshot of the store, eg. for a report that
+     * must see a consistent view of every entity while the store is being
+     * written to. By default, the snapshot is a copy of every entity, so
+     * it is only as consistent as {@link #getAll()}. Stores that can do
+     * better take snapshots without copying or blocking writers.
+     * 
+     * @return The snapshot, which must be closed.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default IEntitySnapshot<Entity> snapshot()
+        throws PersistenceException
+    {
+        return new EntityMapSnapshot<>(getAll());
+    }
+
+    /**
+     * Watches the store for changes, including those made by other
+     * processes sharing the store, eg. instead of repeatedly calling
+     * {@link #getAll()}. The watch keeps a mirror of the store's entities
+     * up to date and tells the listener the ID of each entity created,
+     * updated or deleted, in the thread that detected the change. By
+     * default, the store is polled every second and only the entities
+     * whose versions have changed are reloaded. Stores that can do better
+     * are notified of changes by the file system.
+     * 
+     * @param listener told of each change
+     * 
+     * @return The watch, which must be closed.
+     * 
+     * @throws PersistenceException error loading the mirror
+     */
+    default IEntityWatch<Entity> watch(Consumer<EntityChange> listener)
+        throws PersistenceException
+    {
+        return EntityWatch.poll(this, listener, EntityWatch.DEFAULT_POLL_MILLIS);
+    }
+
+    /**
+     * Streams all the entities in the store in ID order. Entities are
+     * retrieved one at a time as the stream is consumed, so the whole
+     * store need not be held in memory. Entities deleted while the stream
+     * is being consumed are skipped. Errors retrieving an individual
+     * entity are thrown as {@link UncheckedPersistenceException}s.
+     * <p>
+     * By default, the entities are retrieved by {@link #get(int)} from
+     * the IDs listed by {@link #getAllIds()}, so this only avoids holding
+     * the whole store in memory if that does.
+     * 
+     * @return The stream of entities.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default Stream<Entity> stream()
+        throws PersistenceException
+    {
+        return Arrays.stream(getAllIds()).mapToObj(id -> {
+            try
+            {
+                return get(id);
+            }
+            catch (PersistenceException e)
+            {
+                UncheckedPersistenceException failure = new UncheckedPersistenceException(e.getMessage(), e.getCause());
+                try
+                {
+                    if (Arrays.binarySearch(getAllIds(), id) < 0)
+                    {
+                        // Deleted since the IDs were listed.
+                        return null;
+                    }
+                }
+                catch (PersistenceException listing)
+                {
+                    failure.addSuppressed(listing);
+                }
+                throw failure;
+            }
+        }).filter(Objects::nonNull);
+    }
+
+    /**
+     * Streams a few fields of every entity in the store in ID order,
+     * eg. for a scan that only needs each entity's key and status. Stores
+     * that hold encoded entities extract the fields by parsing only as
+     * far as they need to, rather than decoding whole entities. Errors
+     * retrieving an individual entity are thrown as
+     * {@link UncheckedPersistenceException}s.
+     * 
+     * @param fields the names of the (top-level) fields to extract
+     * 
+     * @return The stream of projections.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default Stream<EntityProjection> project(String... fields)
+        throws PersistenceException
+    {
+        EntityProjector projector = new EntityProjector(fields);
+        return stream().map(entity -> {
+            try
+            {
+                return projector.project(entity);
+            }
+            catch (IOException e)
+            {
+                throw new UncheckedPersistenceException("Error projecting entity: " + entity.getId(), e); //$NON-NLS-1$
+            }
+        });
+    }
+
+    /**
+     * Retrieves the IDs of every entity in the store without reading the
+     * entities themselves (if the store can). By default, the IDs are
+     * taken from {@link #getAll()}, which does read every entity.
+     * 
+     * @return The IDs in ascending order.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default int[] getAllIds()
+        throws PersistenceException
+    {
+        return getAll().keySet().stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    /**
+     * Retrieves a page of the entities that match the given query. Only
+     * the entities needed to fill the page are read, where possible.
+     * 
+     * @param query the query
+     * 
+     * @return The page of entities, in the query's order. Can be empty, but is never null.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default List<Entity> query(EntityQuery<Entity> query)
+        throws PersistenceException
+    {
+        return query.run(this);
+    }
+
+    /**
+     * Performs the given action on each entity in the store in ID order.
+     * Entities are retrieved one at a time.
+     * 
+     * @param action the action to perform
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default void forEach(Consumer<? super Entity> action)
+        throws PersistenceException
+    {
+        try (Stream<Entity> entities = stream())
+        {
+            entities.forEach(action);
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Retrieves a page of entities, in ID order, starting at the given ID.
+     * Only the entities on the page are held in memory. By default, the
+     * entities before the page are also read (and discarded); stores
+     * that can find the page from their IDs alone should do better.
+     * 
+     * @param fromId the lowest ID to retrieve
+     * @param limit the maximum number of entities to retrieve
+     * 
+     * @return The entities. Can be empty, but is never null.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default List<Entity> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException("Invalid limit: " + limit); //$NON-NLS-1$
+        }
+        try (Stream<Entity> entities = stream())
+        {
+            return entities.filter(entity -> entity.getId() >= fromId)
+                           .limit(limit)
+                           .collect(Collectors.toList());
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Finds the entities with the given key. By default, this reads
+     * every entity; stores with an index on the key can do better.
+     * 
+     * @param key the key to find
+     * 
+     * @return The matching entities in ID order. Can be empty, but is never null.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default List<Entity> findByKey(Object key)
+        throws PersistenceException
+    {
+        try (Stream<Entity> entities = stream())
+        {
+            return entities.filter(entity -> Objects.equals(entity.getKey(), key))
+                           .collect(Collectors.toList());
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+    }
+
     /**
      * Creates a new entity and returns it with its ID.
      * 
@@ -71,4 +341,118 @@ public interface IEntityStore<Entity extends AbstractEntity<?>>
      */
     void delete(int id)
         throws PersistenceException;
+
+    /**
+     * Creates the given entities and returns them with their IDs.
+     * Stores may allocate the IDs in a block and make the whole
+     * batch durable at once.
+     * 
+     * @param entities the entities to create (sans IDs)
+     *
+     * @return The created entities, in the same order.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default List<Entity> createAll(Collection<Entity> entities)
+        throws PersistenceException
+    {
+        List<Entity> created = new ArrayList<>(entities.size());
+        for (Entity entity : entities)
+        {
+            created.add(create(entity));
+        }
+        return created;
+    }
+
+    /**
+     * Retrieves the given entities from the store.
+     * 
+     * @param ids the entities' IDs
+     *
+     * @return The corresponding entities.
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    @SuppressWarnings("boxing")
+    default Map<Integer, Entity> getMany(int[] ids)
+        throws PersistenceException
+    {
+        Map<Integer, Entity> entities = new HashMap<>(ids.length * 4 / 3 + 1);
+        for (int id : ids)
+        {
+            entities.put(id, get(id));
+        }
+        return entities;
+    }
+
+    /**
+     * Updates the given entities in the store. Stores may
+     * make the whole batch durable at once.
+     * 
+     * @param entities the entities to update
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default void updateAll(Collection<Entity> entities)
+        throws PersistenceException
+    {
+        for (Entity entity : entities)
+        {
+            update(entity);
+        }
+    }
+
+    /**
+     * Deletes the given entities from the store. Stores may
+     * make the whole batch durable at once.
+     * 
+     * @param ids the entities' IDs
+     * 
+     * @throws PersistenceException error accessing the store
+     */
+    default void deleteAll(int[] ids)
+        throws PersistenceException
+    {
+        for (int id : ids)
+        {
+            delete(id);
+        }
+    }
+
+    /**
+     * Writes every entity in the store to a single archive file, eg. to
+     * back the store up. The entities are read through a snapshot.
+     * 
+     * @param archive the archive to write (replaced if it exists)
+     * @param compress whether to compress the archive
+     * @param checksum whether to checksum the archive
+     * 
+     * @return The number of entities exported.
+     * 
+     * @throws PersistenceException error accessing the store or writing the archive
+     */
+    default int exportTo(Path archive, boolean compress, boolean checksum)
+        throws PersistenceException
+    {
+        return EntityArchive.export(this, archive, compress, checksum);
+    }
+
+    /**
+     * Writes every entity in the given archive to the store in batches,
+     * eg. to restore or seed the store. A checksummed archive is verified
+     * before anything is written. By default, the entities are created
+     * with new IDs; stores that can, keep the archived IDs instead.
+     * 
+     * @param archive the archive to read
+     * @param clazz the entities' class
+     * 
+     * @return The number of entities imported.
+     * 
+     * @throws PersistenceException error reading the archive or accessing the store
+     */
+    default int importFrom(Path archive, Class<Entity> clazz)
+        throws PersistenceException
+    {
+        return EntityArchive.load(archive, clazz, this::createAll);
+    }
 }
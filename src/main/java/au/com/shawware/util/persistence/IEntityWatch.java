@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.Closeable;
+import java.util.Map;
+
+/**
+ * A watch on a store, created by {@link IEntityStore#watch(java.util.function.Consumer)}.
+ * The watch keeps an in-memory mirror of the store's entities which is
+ * brought up to date as the store changes, including changes made by
+ * other processes sharing the store. Only the entities that change are
+ * reloaded. Each change is also reported to the watch's listener once
+ * the mirror reflects it.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <Entity> the type of entity being persisted
+ */
+public interface IEntityWatch<Entity extends AbstractEntity<?>> extends Closeable
+{
+    /**
+     * Retrieves the mirror of the store's entities. The mirror is a live,
+     * read-only view which changes as the store does.
+     *
+     * @return The mirrored entities keyed by ID.
+     */
+    Map<Integer, Entity> getMirror();
+
+    /**
+     * Retrieves the mirrored entity with the given ID.
+     *
+     * @param id the entity's ID
+     *
+     * @return The entity or null if it is not in the store.
+     */
+    Entity get(int id);
+
+    /**
+     * Retrieves the last exception thrown by the listener. The listener's
+     * exceptions must not stop the watch, so they are recorded here
+     * rather than thrown.
+     *
+     * @return The exception or null if the listener has never thrown one.
+     */
+    RuntimeException getListenerFailure();
+
+    /**
+     * @return The number of changes the listener has failed to handle.
+     */
+    int getListenerFailures();
+
+    /**
+     * Retrieves the error met reading the store's latest changes. The
+     * changes that could not be read are retried, so the watch carries
+     * on, and the error is reported here rather than thrown.
+     *
+     * @return The error or null if the latest changes were all read.
+     */
+    Exception getReadFailure();
+
+    /**
+     * Stops watching the store. The mirror is no longer updated.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,606 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectReader;
+
+import au.com.shawware.util.IntObjectMap;
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Maintains in-memory secondary indexes over the entities in another
+ * store. Every entity is indexed by its key and further indexes can be
+ * added using functions that extract the indexed value from an entity.
+ * The indexes are built the first time they are needed and kept current
+ * by the writes through this store.
+ * <p>
+ * Optionally, the indexes are persisted when this store is closed and
+ * re-loaded (rather than rebuilt) when it is next used. The persisted
+ * indexes are deleted once loaded so that they are never used if this
+ * store is not closed cleanly. They are only valid if this store is the
+ * only writer to the underlying store.
+ * <p>
+ * Each write to the underlying store and the matching change to the
+ * indexes are made under a lock on the entity's ID, so concurrent
+ * updates and deletes of an entity cannot leave it mis-indexed. Indexed
+ * entities that have since gone from the underlying store (say, deleted
+ * by another writer) are dropped from the indexes when found.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+public class IndexedEntityStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>, Closeable
+{
+    /** The name of the index on the entities' keys. */
+    public static final String KEY_INDEX = "key"; //$NON-NLS-1$
+
+    /** The number of locks to stripe the entities across (a power of two). */
+    private static final int LOCK_STRIPES = 64;
+    /** Reads the persisted indexes. */
+    private static final ObjectReader INDEX_READER = EntityCodecs.readerFor(new TypeReference<Map<String, Map<String, int[]>>>() {});
+
+    /** The store being indexed. */
+    private final IEntityStore<EntityType> mStore;
+    /** Where to persist the indexes (if anywhere). */
+    private final Path mIndexFile;
+    /** The indexes, keyed by name. */
+    private final Map<String, EntityIndex<EntityType>> mIndexes;
+    /** The locks guarding each entity's write and index change, striped by ID. */
+    private final Lock[] mLocks;
+    /** Whether the indexes have been built or loaded yet. */
+    private volatile boolean mOpen;
+
+    /**
+     * Constructs a new indexed store whose indexes are not persisted.
+     *
+     * @param store the store to index
+     */
+    public IndexedEntityStore(IEntityStore<EntityType> store)
+    {
+        this(store, null);
+    }
+
+    /**
+     * Constructs a new indexed store.
+     *
+     * @param store the store to index
+     * @param indexFile where to persist the indexes (null for nowhere)
+     */
+    public IndexedEntityStore(IEntityStore<EntityType> store, Path indexFile)
+    {
+        if (store == null)
+        {
+            throw new IllegalArgumentException("Null store"); //$NON-NLS-1$
+        }
+        mStore     = store;
+        mIndexFile = indexFile;
+        mIndexes   = new LinkedHashMap<>();
+        mOpen      = false;
+        mLocks     = new Lock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++)
+        {
+            mLocks[i] = new ReentrantLock();
+        }
+        mIndexes.put(KEY_INDEX, new EntityIndex<>(KEY_INDEX, AbstractEntity::getKey, EntityCodecs.JSON_WRITER));
+    }
+
+    /**
+     * Adds a secondary index. If the indexes have already been built, the
+     * new index is built straight away, which means reading every entity.
+     *
+     * @param name the index's name
+     * @param extractor extracts the indexed value from an entity
+     *
+     * @throws PersistenceException error building the index
+     */
+    public synchronized void addIndex(String name, Function<? super EntityType, ?> extractor)
+        throws PersistenceException
+    {
+        if (mIndexes.containsKey(name))
+        {
+            throw new IllegalArgumentException("Duplicate index: " + name); //$NON-NLS-1$
+        }
+        EntityIndex<EntityType> index = new EntityIndex<>(name, extractor, EntityCodecs.JSON_WRITER);
+        if (mOpen)
+        {
+            build(Collections.singletonList(index));
+        }
+        mIndexes.put(name, index);
+    }
+
+    /**
+     * Finds the entities with the given value in the given index.
+     *
+     * @param name the index's name
+     * @param value the value to find
+     *
+     * @return The matching entities in ID order. Can be empty, but is never null.
+     *
+     * @throws PersistenceException error accessing the store
+     */
+    public List<EntityType> find(String name, Object value)
+        throws PersistenceException
+    {
+        int[] ids = findIds(name, value);
+        if (ids.length == 0)
+        {
+            return new ArrayList<>();
+        }
+        Map<Integer, EntityType> entities;
+        try
+        {
+            entities = mStore.getMany(ids);
+        }
+        catch (PersistenceException e)
+        {
+            // Some may have gone, so read them one at a time.
+            entities = getIndexed(ids);
+        }
+        return new ArrayList<>(new TreeMap<>(entities).values());
+    }
+
+    /**
+     * Retrieves the given indexed entities one at a time, dropping any
+     * that are no longer in the underlying store from the indexes.
+     *
+     * @param ids the entities' IDs
+     *
+     * @return The entities still in the underlying store.
+     *
+     * @throws PersistenceException error accessing the store
+     */
+    @SuppressWarnings("boxing")
+    private Map<Integer, EntityType> getIndexed(int[] ids)
+        throws PersistenceException
+    {
+        Map<Integer, EntityType> entities = new HashMap<>(ids.length * 4 / 3 + 1);
+        Set<Integer> stored = null;
+        for (int id : ids)
+        {
+            Lock lock = getLock(id);
+            lock.lock();
+            try
+            {
+                entities.put(id, mStore.get(id));
+            }
+            catch (PersistenceException e)
+            {
+                if (stored == null)
+                {
+                    stored = new HashSet<>();
+                    Arrays.stream(mStore.getAllIds()).forEach(stored::add);
+                }
+                if (stored.contains(id))
+                {
+                    throw e;
+                }
+                unindex(id);
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+        return entities;
+    }
+
+    /**
+     * Finds the IDs of the entities with the given value in the given index.
+     *
+     * @param name the index's name
+     * @param value the value to find
+     *
+     * @return The IDs of the matching entities in ascending order.
+     *
+     * @throws PersistenceException error accessing the store
+     */
+    public int[] findIds(String name, Object value)
+        throws PersistenceException
+    {
+        open();
+        EntityIndex<EntityType> index;
+        synchronized (this)
+        {
+            index = mIndexes.get(name);
+        }
+        if (index == null)
+        {
+            throw new IllegalArgumentException("Unknown index: " + name); //$NON-NLS-1$
+        }
+        return index.find(value);
+    }
+
+    @Override
+    public List<EntityType> findByKey(Object key)
+        throws PersistenceException
+    {
+        return find(KEY_INDEX, key);
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll()
+        throws PersistenceException
+    {
+        return mStore.getAll();
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll(Executor executor)
+        throws PersistenceException
+    {
+        return mStore.getAll(executor);
+    }
+
+    @Override
+    public IntObjectMap<EntityType> getAllById()
+        throws PersistenceException
+    {
+        return mStore.getAllById();
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+        throws PersistenceException
+    {
+        return mStore.stream();
+    }
+
+    @Override
+    public int[] getAllIds()
+        throws PersistenceException
+    {
+        return mStore.getAllIds();
+    }
+
+    @Override
+    public Stream<EntityProjection> project(String... fields)
+        throws PersistenceException
+    {
+        return mStore.project(fields);
+    }
+
+    @Override
+    public void forEach(Consumer<? super EntityType> action)
+        throws PersistenceException
+    {
+        mStore.forEach(action);
+    }
+
+    @Override
+    public List<EntityType> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        return mStore.getRange(fromId, limit);
+    }
+
+    @Override
+    public EntityType create(EntityType entity)
+        throws PersistenceException
+    {
+        open();
+        EntityType created = mStore.create(entity);
+        index(created);
+        return created;
+    }
+
+    @Override
+    public EntityType get(int id)
+        throws PersistenceException
+    {
+        return mStore.get(id);
+    }
+
+    @Override
+    public void update(EntityType entity)
+        throws PersistenceException
+    {
+        open();
+        Lock lock = getLock(entity.getId());
+        lock.lock();
+        try
+        {
+            mStore.update(entity);
+            index(entity);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(int id)
+        throws PersistenceException
+    {
+        open();
+        Lock lock = getLock(id);
+        lock.lock();
+        try
+        {
+            mStore.delete(id);
+            unindex(id);
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public List<EntityType> createAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        open();
+        List<EntityType> created = mStore.createAll(entities);
+        for (EntityType entity : created)
+        {
+            index(entity);
+        }
+        return created;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getMany(int[] ids)
+        throws PersistenceException
+    {
+        return mStore.getMany(ids);
+    }
+
+    @Override
+    public void updateAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        open();
+        int[] stripes = lock(entities.stream().mapToInt(AbstractEntity::getId));
+        try
+        {
+            mStore.updateAll(entities);
+            for (EntityType entity : entities)
+            {
+                index(entity);
+            }
+        }
+        finally
+        {
+            unlock(stripes);
+        }
+    }
+
+    @Override
+    public void deleteAll(int[] ids)
+        throws PersistenceException
+    {
+        open();
+        int[] stripes = lock(Arrays.stream(ids));
+        try
+        {
+            mStore.deleteAll(ids);
+            for (int id : ids)
+            {
+                unindex(id);
+            }
+        }
+        finally
+        {
+            unlock(stripes);
+        }
+    }
+
+    /**
+     * Finds the lock guarding the entity with the given ID.
+     *
+     * @param id the entity's ID
+     *
+     * @return The corresponding lock.
+     */
+    private Lock getLock(int id)
+    {
+        return mLocks[id & (LOCK_STRIPES - 1)];
+    }
+
+    /**
+     * Locks the given entities (in a fixed order, to avoid deadlock).
+     *
+     * @param ids the entities' IDs
+     *
+     * @return The indexes of the locks taken.
+     */
+    private int[] lock(IntStream ids)
+    {
+        int[] stripes = ids.map(id -> id & (LOCK_STRIPES - 1)).distinct().sorted().toArray();
+        for (int stripe : stripes)
+        {
+            mLocks[stripe].lock();
+        }
+        return stripes;
+    }
+
+    /**
+     * Releases the given locks.
+     *
+     * @param stripes the indexes of the locks
+     */
+    private void unlock(int[] stripes)
+    {
+        for (int stripe : stripes)
+        {
+            mLocks[stripe].unlock();
+        }
+    }
+
+    /**
+     * Persists the indexes (if configured to).
+     *
+     * @throws IOException error persisting the indexes
+     */
+    @Override
+    public synchronized void close()
+        throws IOException
+    {
+        if ((mIndexFile != null) && mOpen)
+        {
+            Map<String, Map<String, int[]>> indexes = new LinkedHashMap<>();
+            mIndexes.forEach((name, index) -> indexes.put(name, index.export()));
+            Path temp = mIndexFile.resolveSibling(mIndexFile.getFileName() + ".tmp"); //$NON-NLS-1$
+            EntityCodecs.JSON_WRITER.writeValue(temp.toFile(), indexes);
+            Files.move(temp, mIndexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        mOpen = false;
+    }
+
+    /**
+     * Loads or builds the indexes if this has not already been done.
+     *
+     * @throws PersistenceException error building the indexes
+     */
+    private void open()
+        throws PersistenceException
+    {
+        if (mOpen)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if (mOpen)
+            {
+                return;
+            }
+            if (!load())
+            {
+                for (EntityIndex<EntityType> index : mIndexes.values())
+                {
+                    index.clear();
+                }
+                build(mIndexes.values());
+            }
+            mOpen = true;
+        }
+    }
+
+    /**
+     * Loads the persisted indexes (if any) and then deletes them.
+     *
+     * @return Whether every index was loaded.
+     *
+     * @throws PersistenceException error loading the indexes
+     */
+    private boolean load()
+        throws PersistenceException
+    {
+        if ((mIndexFile == null) || !Files.exists(mIndexFile))
+        {
+            return false;
+        }
+        try
+        {
+            Map<String, Map<String, int[]>> indexes = INDEX_READER.readValue(mIndexFile.toFile());
+            Files.delete(mIndexFile);
+            if (!indexes.keySet().containsAll(mIndexes.keySet()))
+            {
+                return false;
+            }
+            mIndexes.forEach((name, index) -> index.load(indexes.get(name)));
+            return true;
+        }
+        catch (IOException e)
+        {
+            throw new PersistenceException("Error loading indexes: " + mIndexFile, e); //$NON-NLS-1$
+        }
+    }
+
+    /**
+     * Builds the given indexes by reading every entity.
+     *
+     * @param indexes the indexes to build
+     *
+     * @throws PersistenceException error reading the entities
+     */
+    private void build(Collection<EntityIndex<EntityType>> indexes)
+        throws PersistenceException
+    {
+        try (Stream<EntityType> entities = mStore.stream())
+        {
+            Iterator<EntityType> iterator = entities.iterator();
+            while (iterator.hasNext())
+            {
+                EntityType entity = iterator.next();
+                for (EntityIndex<EntityType> index : indexes)
+                {
+                    index.add(entity);
+                }
+            }
+        }
+        catch (UncheckedPersistenceException e)
+        {
+            throw new PersistenceException(e.getMessage(), e.getCause());
+        }
+    }
+
+    /**
+     * Adds or replaces the given entity in every index.
+     *
+     * @param entity the entity
+     *
+     * @throws PersistenceException error indexing the entity
+     */
+    private synchronized void index(EntityType entity)
+        throws PersistenceException
+    {
+        for (EntityIndex<EntityType> index : mIndexes.values())
+        {
+            index.add(entity);
+        }
+    }
+
+    /**
+     * Removes the given entity from every index.
+     *
+     * @param id the entity's ID
+     */
+    private synchronized void unindex(int id)
+    {
+        for (EntityIndex<EntityType> index : mIndexes.values())
+        {
+            index.remove(id);
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mStore, mIndexes.values());
+    }
+}
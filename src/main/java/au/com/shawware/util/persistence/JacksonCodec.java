@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.fasterxml.jackson.databind.ObjectWriter;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Encodes entities using a Jackson object mapper, eg. JSON or Smile.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class JacksonCodec implements IEntityCodec
+{
+    /** The codec's ID. */
+    private final byte mId;
+    /** The codec's name - mostly for debugging. */
+    private final String mName;
+    /** The reader to decode with. */
+    private final ObjectReader mReader;
+    /** The writer to encode with. */
+    private final ObjectWriter mWriter;
+
+    /**
+     * Constructs a new codec.
+     * 
+     * @param id the codec's ID
+     * @param name the codec's name
+     * @param reader the reader to use
+     * @param writer the writer to use (created from the same mapper)
+     */
+    JacksonCodec(byte id, String name, ObjectReader reader, ObjectWriter writer)
+    {
+        mId     = id;
+        mName   = name;
+        mReader = reader;
+        mWriter = writer;
+    }
+
+    @Override
+    public byte getId()
+    {
+        return mId;
+    }
+
+    @Override
+    public byte[] encode(Object entity)
+        throws IOException
+    {
+        return mWriter.writeValueAsBytes(entity);
+    }
+
+    @Override
+    public <EntityType> EntityType decode(byte[] data, int offset, int length, Class<EntityType> clazz)
+        throws IOException
+    {
+        return mReader.forType(clazz).readValue(data, offset, length);
+    }
+
+    @Override
+    public JsonParser createParser(byte[] data, int offset, int length)
+        throws IOException
+    {
+        return mReader.getFactory().createParser(data, offset, length);
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mId, mName);
+    }
+}
@@ -7,13 +7,28 @@
 
 package au.com.shawware.util.persistence;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 import au.com.shawware.util.StringUtil;
 
 /**
- * Factory for creating persistence stores.
+ * Factory for creating persistence stores. A factory can have several
+ * root directories, eg. on separate devices, in which case disk stores
+ * spread their entities across the roots (see {@link StripedEntityStore})
+ * while other stores use the first root.
+ * <p>
+ * A factory creates at most one store of each type for each entity
+ * class and returns the same store every time it is asked for it, so
+ * that every user of a class shares the store's state (eg. its locks and
+ * ID allocation). All stores share the same Jackson mapper, readers and
+ * writers, whose serializers can be built in advance with
+ * {@link #prewarm(Class...)}.
  *
  * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
  */
@@ -21,21 +36,40 @@ public class PersistenceFactory
 {
     /** The singleton instance. */
     private static Map<String, PersistenceFactory> sFactories = new HashMap<>();
-    /** The root directory for entity sub-directories. */
-    private final String mRoot;
+    /** The root directories for entity sub-directories. */
+    private final List<String> mRoots;
+    /** The codec for disk stores to write entities with. */
+    private IEntityCodec mCodec;
+    /** How durably disk stores write entities. */
+    private Durability mDurability;
+    /** How disk stores lay their files out. */
+    private DiskLayout mLayout;
+    /** The stores created so far, keyed by type, class and name. */
+    private final Map<String, IEntityStore<?>> mStores;
 
     /**
      * Construct a new instance.
      * 
-     * @param root the root directory to store entities in
+     * @param roots the root directories to store entities in
      */
-    private PersistenceFactory(String root)
+    private PersistenceFactory(List<String> roots)
     {
-        if (StringUtil.isEmpty(root))
+        if (roots.isEmpty())
+        {
+            throw new IllegalArgumentException("No root directories"); //$NON-NLS-1$
+        }
+        for (String root : roots)
         {
-            throw new IllegalArgumentException("Empty root directory"); //$NON-NLS-1$
+            if (StringUtil.isEmpty(root))
+            {
+                throw new IllegalArgumentException("Empty root directory"); //$NON-NLS-1$
+            }
         }
-        mRoot = root;
+        mRoots = new ArrayList<>(roots);
+        mCodec = EntityCodecs.PRETTY_JSON;
+        mDurability = Durability.NONE;
+        mLayout = DiskLayout.FLAT;
+        mStores = new HashMap<>();
     }
 
     /**
@@ -45,25 +79,148 @@ public class PersistenceFactory
      * 
      * @return The factory.
      */
-    public static synchronized PersistenceFactory getFactory(String root)
+    public static PersistenceFactory getFactory(String root)
+    {
+        return getFactory(Collections.singletonList(root));
+    }
+
+    /**
+     * Retrieves a single instance of this factory for the given roots.
+     * The roots must be the same (and in the same order) every time the
+     * same entities are accessed, since each entity's root is determined
+     * by its ID.
+     * 
+     * @param roots the root directories to store entities in
+     * 
+     * @return The factory.
+     */
+    public static synchronized PersistenceFactory getFactory(List<String> roots)
     {
-        if (!sFactories.containsKey(root))
+        if (roots == null)
         {
-            sFactories.put(root, new PersistenceFactory(root));
+            throw new IllegalArgumentException("Null root directories"); //$NON-NLS-1$
         }
-        return sFactories.get(root);
+        String key = String.join(File.pathSeparator, roots);
+        if (!sFactories.containsKey(key))
+        {
+            sFactories.put(key, new PersistenceFactory(roots));
+        }
+        return sFactories.get(key);
     }
 
     /**
-     * @return This factory's root directory.
+     * @return This factory's (first) root directory.
      */
     public String getRoot()
     {
-        return mRoot;
+        return mRoots.get(0);
+    }
+
+    /**
+     * @return This factory's root directories.
+     */
+    public List<String> getRoots()
+    {
+        return Collections.unmodifiableList(mRoots);
+    }
+
+    /**
+     * @return The codec disk stores write entities with.
+     */
+    public IEntityCodec getCodec()
+    {
+        return mCodec;
+    }
+
+    /**
+     * Sets the codec that subsequently created disk stores write entities
+     * with. Existing entities can still be read, whichever codec wrote them.
+     * 
+     * @param codec the new codec
+     */
+    public void setCodec(IEntityCodec codec)
+    {
+        if (codec == null)
+        {
+            throw new IllegalArgumentException("Null codec"); //$NON-NLS-1$
+        }
+        mCodec = codec;
+    }
+
+    /**
+     * @return How durably disk stores write entities.
+     */
+    public Durability getDurability()
+    {
+        return mDurability;
+    }
+
+    /**
+     * Sets how durably subsequently created disk stores write entities.
+     * 
+     * @param durability the new durability
+     */
+    public void setDurability(Durability durability)
+    {
+        if (durability == null)
+        {
+            throw new IllegalArgumentException("Null durability"); //$NON-NLS-1$
+        }
+        mDurability = durability;
+    }
+
+    /**
+     * @return How disk stores lay their files out.
+     */
+    public DiskLayout getLayout()
+    {
+        return mLayout;
+    }
+
+    /**
+     * Sets how subsequently created disk stores lay their files out.
+     * Existing stores must be migrated to the new layout - see
+     * {@link EntityDiskStore#migrate(String, String, DiskLayout)}.
+     * 
+     * @param layout the new layout
+     */
+    public void setLayout(DiskLayout layout)
+    {
+        if (layout == null)
+        {
+            throw new IllegalArgumentException("Null layout"); //$NON-NLS-1$
+        }
+        mLayout = layout;
     }
 
     /**
-     * Creates an entity store for the given class.
+     * Builds the serializers and deserializers for the given entity
+     * classes now, rather than when the first entity of each class is
+     * written or read.
+     * 
+     * @param classes the entity classes to prepare
+     * 
+     * @throws PersistenceException error preparing a class
+     */
+    @SafeVarargs
+    public final void prewarm(Class<? extends AbstractEntity<?>>... classes)
+        throws PersistenceException
+    {
+        for (Class<? extends AbstractEntity<?>> clazz : classes)
+        {
+            try
+            {
+                EntityCodecs.prewarm(clazz);
+            }
+            catch (IOException e)
+            {
+                throw new PersistenceException("Error preparing " + clazz.getSimpleName(), e); //$NON-NLS-1$
+            }
+        }
+    }
+
+    /**
+     * Retrieves the entity store for the given class.
      * 
      * @param clazz the entity type to store
      * @param <EntityType> the type of entity for the store
@@ -76,7 +233,7 @@ public class PersistenceFactory
     }
 
     /**
-     * Creates an entity store for the given class.
+     * Retrieves the entity store for the given class.
      * 
      * @param clazz the entity type to store
      * @param prefixToRemove the prefix to remove from the class name when naming the store directory
@@ -86,18 +243,83 @@ public class PersistenceFactory
      */
     public <EntityType extends AbstractEntity<?>> IEntityStore<EntityType> getStore(Class<EntityType> clazz, String prefixToRemove)
     {
+        return getStore(clazz, prefixToRemove, StoreType.DISK);
+    }
+
+    /**
+     * Retrieves the entity store of the given type for the given class,
+     * creating it the first time it is requested. A store is created with
+     * this factory's settings at that time.
+     * 
+     * @param clazz the entity type to store
+     * @param prefixToRemove the prefix to remove from the class name when naming the store directory
+     * @param type the type of store to create
+     * @param <EntityType> the type of entity for the store
+     * 
+     * @return The store.
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized <EntityType extends AbstractEntity<?>> IEntityStore<EntityType> getStore(Class<EntityType> clazz, String prefixToRemove, StoreType type)
+    {
+        if (type == null)
+        {
+            throw new IllegalArgumentException("Null store type"); //$NON-NLS-1$
+        }
         String name = clazz.getSimpleName();
         if (StringUtil.isNotEmpty(prefixToRemove) && name.startsWith(prefixToRemove))
         {
             name = name.substring(prefixToRemove.length());
         }
-        String directory = mRoot + '/' + name.toLowerCase();
-        return new EntityDiskStore<EntityType>(directory, name, name.substring(0, 1), clazz);
+        String key = type + ":" + clazz.getName() + ":" + name; //$NON-NLS-1$ //$NON-NLS-2$
+        IEntityStore<EntityType> store = (IEntityStore<EntityType>)mStores.get(key);
+        if (store == null)
+        {
+            store = createStore(clazz, name, type);
+            mStores.put(key, store);
+        }
+        return store;
+    }
+
+    /**
+     * Creates an entity store of the given type for the given class.
+     * 
+     * @param clazz the entity type to store
+     * @param name the name of the entity
+     * @param type the type of store to create
+     * @param <EntityType> the type of entity for the store
+     * 
+     * @return The new store.
+     */
+    private <EntityType extends AbstractEntity<?>> IEntityStore<EntityType> createStore(Class<EntityType> clazz, String name, StoreType type)
+    {
+        String subDirectory = '/' + name.toLowerCase();
+        String directory = getRoot() + subDirectory;
+        String prefix = name.substring(0, 1);
+        switch (type)
+        {
+            case LOG:
+                return new EntityLogStore<EntityType>(directory, name, prefix, clazz);
+            case MAPPED:
+                return new EntityMappedStore<EntityType>(directory, name, prefix, clazz);
+            case DISK:
+            default:
+                DiskStoreOptions options = new DiskStoreOptions().codec(mCodec).durability(mDurability).layout(mLayout);
+                if (mRoots.size() == 1)
+                {
+                    return new EntityDiskStore<EntityType>(directory, name, prefix, clazz, options);
+                }
+                List<EntityDiskStore<EntityType>> stripes = new ArrayList<>(mRoots.size());
+                for (String root : mRoots)
+                {
+                    stripes.add(new EntityDiskStore<EntityType>(root + subDirectory, name, prefix, clazz, options));
+                }
+                return new StripedEntityStore<EntityType>(name, stripes);
+        }
     }
 
     @Override
     public String toString()
     {
-        return StringUtil.toString(mRoot, sFactories);
+        return StringUtil.toString(mRoots, sFactories);
     }
 }
@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+/**
+ * The types of entity store available from the {@link PersistenceFactory}.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+public enum StoreType
+{
+    /** One JSON file per entity - see {@link EntityDiskStore}. */
+    DISK,
+    /** An append-only log of entity records - see {@link EntityLogStore}. */
+    LOG,
+    /** A single memory-mapped file - see {@link EntityMappedStore}. */
+    MAPPED;
+}
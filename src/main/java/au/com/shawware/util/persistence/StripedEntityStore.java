@@ -0,0 +1,736 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import au.com.shawware.util.IntObjectMap;
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Spreads entities across several disk stores, typically each on its own
+ * device, so that every device's bandwidth is used. IDs are allocated by
+ * this store and each entity is placed on the stripe given by its ID
+ * modulo the number of stripes. Bulk operations run on every stripe
+ * concurrently. Since placement depends on the number of stripes, the
+ * stripes must not be changed once entities have been stored.
+ * <p>
+ * Batch updates check that the entities exist stripe by stripe, so a
+ * batch that fails can have been partially applied to other stripes.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+@SuppressWarnings("boxing")
+public class StripedEntityStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>, Closeable
+{
+    /** Orders entities by ID. */
+    private static final Comparator<AbstractEntity<?>> BY_ID = Comparator.comparingInt(AbstractEntity::getId);
+
+    /** The stores the entities are spread across. */
+    private final List<EntityDiskStore<EntityType>> mStripes;
+    /** Runs operations on the stripes concurrently. */
+    private final ExecutorService mExecutor;
+    /** The highest ID allocated so far. */
+    private int mMaxId;
+    /** Whether the highest ID has been loaded yet. */
+    private boolean mMaxIdLoaded;
+
+    /**
+     * Constructs a new striped store.
+     *
+     * @param name the entity's name - used to name the worker threads
+     * @param stripes the stores to spread the entities across
+     */
+    public StripedEntityStore(String name, List<EntityDiskStore<EntityType>> stripes)
+    {
+        if ((stripes == null) || stripes.isEmpty())
+        {
+            throw new IllegalArgumentException("No stripes"); //$NON-NLS-1$
+        }
+        mStripes     = new ArrayList<>(stripes);
+        mExecutor    = Executors.newFixedThreadPool(stripes.size(), runnable -> {
+            Thread thread = new Thread(runnable, "stripe-" + name); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        });
+        mMaxId       = AbstractEntity.DEFAULT_ID;
+        mMaxIdLoaded = false;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll()
+        throws PersistenceException
+    {
+        Map<Integer, EntityType> entities = new HashMap<>();
+        for (Map<Integer, EntityType> stripe : onEachStripe(IEntityStore::getAll))
+        {
+            entities.putAll(stripe);
+        }
+        return entities;
+    }
+
+    @Override
+    public IntObjectMap<EntityType> getAllById()
+        throws PersistenceException
+    {
+        List<IntObjectMap<EntityType>> stripes = onEachStripe(IEntityStore::getAllById);
+        IntObjectMap<EntityType> entities = new IntObjectMap<>(stripes.stream().mapToInt(IntObjectMap::size).sum());
+        for (IntObjectMap<EntityType> stripe : stripes)
+        {
+            entities.putAll(stripe);
+        }
+        return entities;
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+        throws PersistenceException
+    {
+        return merge(onEachStripe(IEntityStore::stream), AbstractEntity::getId);
+    }
+
+    @Override
+    public int[] getAllIds()
+        throws PersistenceException
+    {
+        return onEachStripe(IEntityStore::getAllIds).stream().flatMapToInt(Arrays::stream).sorted().toArray();
+    }
+
+    @Override
+    public Stream<EntityProjection> project(String... fields)
+        throws PersistenceException
+    {
+        return merge(onEachStripe(stripe -> stripe.project(fields)), EntityProjection::getId);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each poll compares the stamps of the entities' files on every stripe
+     * and only the entities whose files have changed are read.
+     */
+    @Override
+    public IEntityWatch<EntityType> watch(Consumer<EntityChange> listener)
+        throws PersistenceException
+    {
+        return EntityWatch.poll(this, this::getFileStamps, listener, EntityWatch.DEFAULT_POLL_MILLIS);
+    }
+
+    @Override
+    public List<EntityType> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        if (limit < 0)
+        {
+            throw new IllegalArgumentException("Invalid limit: " + limit); //$NON-NLS-1$
+        }
+        // Each stripe supplies its first page, from which the overall first page is taken.
+        List<EntityType> entities = new ArrayList<>();
+        for (List<EntityType> stripe : onEachStripe(store -> store.getRange(fromId, limit)))
+        {
+            entities.addAll(stripe);
+        }
+        entities.sort(BY_ID);
+        return (entities.size() > limit) ? new ArrayList<>(entities.subList(0, limit)) : entities;
+    }
+
+    @Override
+    public List<EntityType> findByKey(Object key)
+        throws PersistenceException
+    {
+        List<EntityType> entities = new ArrayList<>();
+        for (List<EntityType> stripe : onEachStripe(store -> store.findByKey(key)))
+        {
+            entities.addAll(stripe);
+        }
+        entities.sort(BY_ID);
+        return entities;
+    }
+
+    @Override
+    public EntityType create(EntityType entity)
+        throws PersistenceException
+    {
+        entity.setId(allocateIds(1));
+        entity.setVersion(AbstractEntity.INITIAL_VERSION);
+        getStripe(entity.getId()).put(entity);
+        return entity;
+    }
+
+    @Override
+    public EntityType get(int id)
+        throws PersistenceException
+    {
+        return getStripe(id).get(id);
+    }
+
+    @Override
+    public void update(EntityType entity)
+        throws PersistenceException
+    {
+        getStripe(entity.getId()).update(entity);
+    }
+
+    @Override
+    public void delete(int id)
+        throws PersistenceException
+    {
+        getStripe(id).delete(id);
+    }
+
+    @Override
+    public List<EntityType> createAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        List<EntityType> created = new ArrayList<>(entities);
+        if (created.isEmpty())
+        {
+            return created;
+        }
+        int id = allocateIds(created.size());
+        for (EntityType entity : created)
+        {
+            entity.setId(id++);
+            entity.setVersion(AbstractEntity.INITIAL_VERSION);
+        }
+        List<List<EntityType>> partitions = partition(created, AbstractEntity::getId);
+        onEachStripe(index -> {
+            mStripes.get(index).putAll(partitions.get(index));
+            return null;
+        }, partitions);
+        return created;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getMany(int[] ids)
+        throws PersistenceException
+    {
+        List<List<Integer>> partitions = partition(toList(ids), Integer::intValue);
+        Map<Integer, EntityType> entities = new HashMap<>(ids.length * 4 / 3 + 1);
+        for (Map<Integer, EntityType> stripe : onEachStripe(index -> mStripes.get(index).getMany(toArray(partitions.get(index))), partitions))
+        {
+            entities.putAll(stripe);
+        }
+        return entities;
+    }
+
+    @Override
+    public void updateAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        List<List<EntityType>> partitions = partition(entities, AbstractEntity::getId);
+        onEachStripe(index -> {
+            mStripes.get(index).updateAll(partitions.get(index));
+            return null;
+        }, partitions);
+    }
+
+    @Override
+    public void deleteAll(int[] ids)
+        throws PersistenceException
+    {
+        List<List<Integer>> partitions = partition(toList(ids), Integer::intValue);
+        onEachStripe(index -> {
+            mStripes.get(index).deleteAll(toArray(partitions.get(index)));
+            return null;
+        }, partitions);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Each stripe's entities are transferred directly into the archive
+     * from a snapshot of that stripe, so the archive is only consistent
+     * within each stripe.
+     */
+    @Override
+    public int exportTo(Path archive, boolean compress, boolean checksum)
+        throws PersistenceException
+    {
+        return EntityArchive.export(archive, compress, checksum, records -> {
+            int count = 0;
+            for (EntityDiskStore<EntityType> stripe : mStripes)
+            {
+                count += stripe.transferTo(records);
+            }
+            return count;
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The entities keep their archived IDs and each batch is written to
+     * the stripes concurrently. The archive is rejected before anything is
+     * imported if any of its IDs is already in use in this store.
+     */
+    @Override
+    public int importFrom(Path archive, Class<EntityType> clazz)
+        throws PersistenceException
+    {
+        return EntityArchive.restore(archive, clazz, getAllIds(), this::putAll);
+    }
+
+    /**
+     * Closes every stripe, even if closing one of them fails, and stops
+     * the worker threads.
+     *
+     * @throws IOException error closing a stripe (the first, with any
+     *         others suppressed)
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        IOException failure = null;
+        try
+        {
+            for (EntityDiskStore<EntityType> stripe : mStripes)
+            {
+                try
+                {
+                    stripe.close();
+                }
+                catch (IOException e)
+                {
+                    if (failure == null)
+                    {
+                        failure = e;
+                    }
+                    else
+                    {
+                        failure.addSuppressed(e);
+                    }
+                }
+            }
+        }
+        finally
+        {
+            mExecutor.shutdown();
+        }
+        if (failure != null)
+        {
+            throw failure;
+        }
+    }
+
+    /**
+     * Allocates a block of consecutive entity IDs. The stripes are only
+     * examined the first time this is called.
+     *
+     * @param count the number of IDs to allocate
+     *
+     * @return The first ID in the block.
+     *
+     * @throws PersistenceException error reading the stripes
+     */
+    private synchronized int allocateIds(int count)
+        throws PersistenceException
+    {
+        ensureMaxIdLoaded();
+        int id = mMaxId + 1;
+        mMaxId += count;
+        return id;
+    }
+
+    /**
+     * Ensures that IDs up to the given one are never allocated by this store.
+     *
+     * @param id the highest ID to reserve
+     *
+     * @throws PersistenceException error reading the stripes
+     */
+    private synchronized void reserveIds(int id)
+        throws PersistenceException
+    {
+        ensureMaxIdLoaded();
+        mMaxId = Math.max(mMaxId, id);
+    }
+
+    /**
+     * Loads the highest ID allocated from the stripes if this has not
+     * already been done. Must be called while synchronized.
+     *
+     * @throws PersistenceException error reading the stripes
+     */
+    private void ensureMaxIdLoaded()
+        throws PersistenceException
+    {
+        if (!mMaxIdLoaded)
+        {
+            for (int maxId : onEachStripe(EntityDiskStore::getMaxId))
+            {
+                mMaxId = Math.max(mMaxId, maxId);
+            }
+            mMaxIdLoaded = true;
+        }
+    }
+
+    /**
+     * Writes the given entities with the IDs they already have to their
+     * stripes concurrently.
+     *
+     * @param entities the entities to write
+     *
+     * @throws PersistenceException error writing the entities
+     */
+    private void putAll(List<EntityType> entities)
+        throws PersistenceException
+    {
+        reserveIds(entities.stream().mapToInt(AbstractEntity::getId).max().orElse(AbstractEntity.DEFAULT_ID));
+        List<List<EntityType>> partitions = partition(entities, AbstractEntity::getId);
+        onEachStripe(index -> {
+            mStripes.get(index).putAll(partitions.get(index));
+            return null;
+        }, partitions);
+    }
+
+    /**
+     * Finds the stripe holding the entity with the given ID.
+     *
+     * @param id the entity's ID
+     *
+     * @return The corresponding stripe.
+     */
+    private EntityDiskStore<EntityType> getStripe(int id)
+    {
+        if (id < 0)
+        {
+            throw new IllegalArgumentException("Invalid ID:"  + id); //$NON-NLS-1$
+        }
+        return mStripes.get(id % mStripes.size());
+    }
+
+    /**
+     * Merges streams of values in ID order, one from each stripe, into a
+     * single stream in ID order. Closing it closes every stripe's stream.
+     *
+     * @param streams the streams to merge
+     * @param ids extracts a value's ID
+     * @param <T> the type of value being merged
+     *
+     * @return The merged stream.
+     */
+    private static <T> Stream<T> merge(List<Stream<T>> streams, ToIntFunction<T> ids)
+    {
+        List<Iterator<T>> iterators = new ArrayList<>(streams.size());
+        for (Stream<T> stream : streams)
+        {
+            iterators.add(stream.iterator());
+        }
+        Iterator<T> merged = new MergingIterator<>(iterators, ids);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(merged, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                            .onClose(() -> streams.forEach(Stream::close));
+    }
+
+    /**
+     * Divides the given values by the stripe their ID maps to.
+     *
+     * @param values the values to divide
+     * @param ids extracts a value's ID
+     * @param <T> the value type
+     *
+     * @return The values for each stripe.
+     */
+    private <T> List<List<T>> partition(Collection<T> values, ToIntFunction<T> ids)
+    {
+        List<List<T>> partitions = new ArrayList<>(mStripes.size());
+        for (int i = 0; i < mStripes.size(); i++)
+        {
+            partitions.add(new ArrayList<>());
+        }
+        for (T value : values)
+        {
+            int id = ids.applyAsInt(value);
+            if (id < 0)
+            {
+                throw new IllegalArgumentException("Invalid ID:"  + id); //$NON-NLS-1$
+            }
+            partitions.get(id % mStripes.size()).add(value);
+        }
+        return partitions;
+    }
+
+    /**
+     * Reads the stamps of the entities' files on every stripe.
+     *
+     * @return The stamps keyed by entity ID.
+     *
+     * @throws PersistenceException error reading the stamps
+     */
+    private Map<Integer, Long> getFileStamps()
+        throws PersistenceException
+    {
+        Map<Integer, Long> stamps = new HashMap<>();
+        onEachStripe(EntityDiskStore::getFileStamps).forEach(stamps::putAll);
+        return stamps;
+    }
+
+    /**
+     * Runs the given operation on every stripe concurrently.
+     *
+     * @param operation the operation to run
+     * @param <T> the operation's result type
+     *
+     * @return The results in stripe order.
+     *
+     * @throws PersistenceException error running the operation
+     */
+    private <T> List<T> onEachStripe(StripeOperation<EntityType, T> operation)
+        throws PersistenceException
+    {
+        return onEachStripe(index -> operation.run(mStripes.get(index)), null);
+    }
+
+    /**
+     * Runs the given operation on every stripe concurrently, skipping those
+     * stripes with nothing to do.
+     *
+     * @param operation the operation to run, given the stripe's index
+     * @param partitions the work for each stripe (null if every stripe has work to do)
+     * @param <T> the operation's result type
+     *
+     * @return The results of the stripes that ran the operation, in stripe order.
+     *
+     * @throws PersistenceException error running the operation
+     */
+    private <T> List<T> onEachStripe(IndexedOperation<T> operation, List<? extends List<?>> partitions)
+        throws PersistenceException
+    {
+        List<CompletableFuture<T>> futures = new ArrayList<>(mStripes.size());
+        for (int i = 0; i < mStripes.size(); i++)
+        {
+            if ((partitions != null) && partitions.get(i).isEmpty())
+            {
+                continue;
+            }
+            int index = i;
+            futures.add(CompletableFuture.supplyAsync(() -> {
+                try
+                {
+                    return operation.run(index);
+                }
+                catch (PersistenceException e)
+                {
+                    throw new CompletionException(e);
+                }
+            }, mExecutor));
+        }
+        List<T> results = new ArrayList<>(futures.size());
+        PersistenceException error = null;
+        for (CompletableFuture<T> future : futures)
+        {
+            try
+            {
+                results.add(future.join());
+            }
+            catch (CompletionException e)
+            {
+                if (!(e.getCause() instanceof PersistenceException))
+                {
+                    throw e;
+                }
+                // Wait for every stripe before reporting the first error.
+                if (error == null)
+                {
+                    error = (PersistenceException)e.getCause();
+                }
+            }
+        }
+        if (error != null)
+        {
+            throw error;
+        }
+        return results;
+    }
+
+    /**
+     * Converts the given IDs to a list.
+     *
+     * @param ids the IDs
+     *
+     * @return The list of IDs.
+     */
+    private static List<Integer> toList(int[] ids)
+    {
+        List<Integer> list = new ArrayList<>(ids.length);
+        for (int id : ids)
+        {
+            list.add(id);
+        }
+        return list;
+    }
+
+    /**
+     * Converts the given IDs to an array.
+     *
+     * @param ids the IDs
+     *
+     * @return The array of IDs.
+     */
+    private static int[] toArray(List<Integer> ids)
+    {
+        return ids.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * An operation on a single stripe.
+     *
+     * @param <E> the entity type
+     * @param <T> the operation's result type
+     */
+    @FunctionalInterface
+    private interface StripeOperation<E extends AbstractEntity<?>, T>
+    {
+        /**
+         * Runs the operation.
+         *
+         * @param stripe the stripe to run on
+         *
+         * @return The operation's result.
+         *
+         * @throws PersistenceException error accessing the stripe
+         */
+        T run(EntityDiskStore<E> stripe)
+            throws PersistenceException;
+    }
+
+    /**
+     * An operation on a single stripe, identified by its index.
+     *
+     * @param <T> the operation's result type
+     */
+    @FunctionalInterface
+    private interface IndexedOperation<T>
+    {
+        /**
+         * Runs the operation.
+         *
+         * @param index the index of the stripe to run on
+         *
+         * @return The operation's result.
+         *
+         * @throws PersistenceException error accessing the stripe
+         */
+        T run(int index)
+            throws PersistenceException;
+    }
+
+    /**
+     * Merges iterators over values in ID order into a single
+     * iterator over values in ID order.
+     *
+     * @param <T> the type of value being merged
+     */
+    private static class MergingIterator<T> implements Iterator<T>
+    {
+        /** The next value from each non-exhausted iterator, lowest ID first. */
+        private final PriorityQueue<Head<T>> mHeads;
+
+        /**
+         * Constructs a new iterator.
+         *
+         * @param iterators the iterators to merge
+         * @param ids extracts a value's ID
+         */
+        MergingIterator(List<Iterator<T>> iterators, ToIntFunction<T> ids)
+        {
+            mHeads = new PriorityQueue<>(Math.max(1, iterators.size()), Comparator.comparingInt(head -> ids.applyAsInt(head.mValue)));
+            for (Iterator<T> iterator : iterators)
+            {
+                advance(iterator);
+            }
+        }
+
+        @Override
+        public boolean hasNext()
+        {
+            return !mHeads.isEmpty();
+        }
+
+        @Override
+        public T next()
+        {
+            Head<T> head = mHeads.poll();
+            if (head == null)
+            {
+                throw new NoSuchElementException();
+            }
+            advance(head.mIterator);
+            return head.mValue;
+        }
+
+        /**
+         * Queues the next value (if any) from the given iterator.
+         *
+         * @param iterator the iterator
+         */
+        private void advance(Iterator<T> iterator)
+        {
+            if (iterator.hasNext())
+            {
+                mHeads.add(new Head<>(iterator.next(), iterator));
+            }
+        }
+    }
+
+    /**
+     * The next value from one of the iterators being merged.
+     *
+     * @param <T> the type of value being merged
+     */
+    private static class Head<T>
+    {
+        /** The value. */
+        final T mValue;
+        /** The iterator it came from. */
+        final Iterator<T> mIterator;
+
+        /**
+         * Constructs a new head.
+         *
+         * @param value the value
+         * @param iterator the iterator it came from
+         */
+        Head(T value, Iterator<T> iterator)
+        {
+            mValue    = value;
+            mIterator = iterator;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mStripes);
+    }
+}
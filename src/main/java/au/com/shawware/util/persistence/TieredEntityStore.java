@@ -0,0 +1,704 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import au.com.shawware.util.StringUtil;
+import au.com.shawware.util.cache.FrequencySketch;
+
+/**
+ * Keeps the most frequently used entities of another store (the cold
+ * tier, typically an {@link EntityDiskStore}) in memory (the hot tier),
+ * within a bound on the heap they occupy.
+ * <p>
+ * Every retrieval is counted in a {@link FrequencySketch}. An entity read
+ * from the cold tier is offered to the hot tier in the background, so
+ * readers never wait for it. If the hot tier is full, its least used
+ * entities (from a small random sample) are demoted to make room, but
+ * only if the new entity has been used more often than them; otherwise
+ * it stays cold. Demoting an entity simply discards it, because every
+ * write goes straight through to the cold tier.
+ * <p>
+ * Hot entities are held decoded, so a hit costs only a copy rather than
+ * a decode, and each retrieval gets a copy of its own, so callers never
+ * share an entity. The copies are made by a {@link Copier}: entities
+ * that can copy themselves cheaply should supply one, otherwise each
+ * copy is a round trip through the entity's encoding, as in the
+ * {@link CachingEntityStore}. An entity is copied as it is offered to
+ * the hot tier, so later changes by the caller are not seen. The heap
+ * an entity occupies is estimated from the size of its encoding.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ *
+ * @param <EntityType> the entity to be persisted
+ */
+@SuppressWarnings("boxing")
+public class TieredEntityStore<EntityType extends AbstractEntity<?>> implements IEntityStore<EntityType>, Closeable
+{
+    /** The estimated heap used to hold an entity, beyond the size of its encoding. */
+    private static final long ENTRY_OVERHEAD = 64;
+    /** The estimated heap used by a typical entity, used to size the sketch. */
+    private static final long TYPICAL_ENTITY_BYTES = 256;
+    /** The number of hot entities to consider when choosing one to demote. */
+    private static final int VICTIM_SAMPLE = 8;
+    /** The number of write stamps, shared between entities. */
+    private static final int STAMPS = 64;
+
+    /** The cold tier. */
+    private final IEntityStore<EntityType> mCold;
+    /** Copies the hot entities. */
+    private final Copier<EntityType> mCopier;
+    /** The maximum estimated heap the hot tier may use (in bytes). */
+    private final long mMaximumBytes;
+    /** The hot tier. */
+    private final Map<Integer, HotEntry<EntityType>> mHot;
+    /** The hot entries, in no particular order, for sampling. Guards changes to the hot tier. */
+    private final List<HotEntry<EntityType>> mResidents;
+    /** The estimated heap used by the hot tier. */
+    private final AtomicLong mHotBytes;
+    /** How often each entity has been retrieved recently. */
+    private final FrequencySketch mSketch;
+    /** Counts the writes to entities, so that stale entities are not promoted. */
+    private final AtomicLongArray mStamps;
+    /** Chooses the hot entries to sample. */
+    private final Random mRandom;
+    /** Promotes entities. */
+    private final Executor mExecutor;
+    /** The executor created by this store (if any). */
+    private final ExecutorService mOwnExecutor;
+    /** The number of retrievals served by the hot tier. */
+    private final AtomicLong mHotHits;
+    /** The number of retrievals served by the cold tier. */
+    private final AtomicLong mColdHits;
+    /** The number of entities promoted to the hot tier. */
+    private final AtomicLong mPromotions;
+    /** The number of entities demoted to make room in the hot tier. */
+    private final AtomicLong mDemotions;
+
+    /**
+     * Constructs a new tiered store which promotes entities on a
+     * background thread of its own.
+     *
+     * @param cold the cold tier
+     * @param maximumBytes the maximum estimated heap the hot tier may use (in bytes)
+     */
+    public TieredEntityStore(IEntityStore<EntityType> cold, long maximumBytes)
+    {
+        this(cold, maximumBytes, null);
+    }
+
+    /**
+     * Constructs a new tiered store.
+     *
+     * @param cold the cold tier
+     * @param maximumBytes the maximum estimated heap the hot tier may use (in bytes)
+     * @param executor promotes entities (null to use a background thread of this store's own)
+     */
+    public TieredEntityStore(IEntityStore<EntityType> cold, long maximumBytes, Executor executor)
+    {
+        this(cold, maximumBytes, executor, null);
+    }
+
+    /**
+     * Constructs a new tiered store.
+     *
+     * @param cold the cold tier
+     * @param maximumBytes the maximum estimated heap the hot tier may use (in bytes)
+     * @param executor promotes entities (null to use a background thread of this store's own)
+     * @param copier copies the hot entities (null to copy them through their encoding)
+     */
+    public TieredEntityStore(IEntityStore<EntityType> cold, long maximumBytes, Executor executor, Copier<EntityType> copier)
+    {
+        if (cold == null)
+        {
+            throw new IllegalArgumentException("Null store"); //$NON-NLS-1$
+        }
+        if (maximumBytes <= 0)
+        {
+            throw new IllegalArgumentException("Invalid maximum size: " + maximumBytes); //$NON-NLS-1$
+        }
+        mCold         = cold;
+        mCopier       = (copier != null) ? copier : CachedEntity::copy;
+        mMaximumBytes = maximumBytes;
+        mHot          = new ConcurrentHashMap<>();
+        mResidents    = new ArrayList<>();
+        mHotBytes     = new AtomicLong();
+        mSketch       = new FrequencySketch((int)Math.min(Math.max(maximumBytes / TYPICAL_ENTITY_BYTES, 16), 1 << 20));
+        mStamps       = new AtomicLongArray(STAMPS);
+        mRandom       = new Random();
+        mOwnExecutor  = (executor != null) ? null : Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "tiering-" + cold); //$NON-NLS-1$
+            thread.setDaemon(true);
+            return thread;
+        });
+        mExecutor     = (executor != null) ? executor : mOwnExecutor;
+        mHotHits      = new AtomicLong();
+        mColdHits     = new AtomicLong();
+        mPromotions   = new AtomicLong();
+        mDemotions    = new AtomicLong();
+    }
+
+    /**
+     * @return The cold tier.
+     */
+    public IEntityStore<EntityType> getStore()
+    {
+        return mCold;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll()
+        throws PersistenceException
+    {
+        return mCold.getAll();
+    }
+
+    @Override
+    public Map<Integer, EntityType> getAll(Executor executor)
+        throws PersistenceException
+    {
+        return mCold.getAll(executor);
+    }
+
+    @Override
+    public IEntitySnapshot<EntityType> snapshot()
+        throws PersistenceException
+    {
+        return mCold.snapshot();
+    }
+
+    @Override
+    public Stream<EntityType> stream()
+        throws PersistenceException
+    {
+        return mCold.stream();
+    }
+
+    @Override
+    public Stream<EntityProjection> project(String... fields)
+        throws PersistenceException
+    {
+        return mCold.project(fields);
+    }
+
+    @Override
+    public void forEach(Consumer<? super EntityType> action)
+        throws PersistenceException
+    {
+        mCold.forEach(action);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The cold tier is watched and each changed entity is also discarded
+     * from the hot tier.
+     */
+    @Override
+    public IEntityWatch<EntityType> watch(Consumer<EntityChange> listener)
+        throws PersistenceException
+    {
+        return mCold.watch(change -> {
+            demote(change.getId());
+            listener.accept(change);
+        });
+    }
+
+    @Override
+    public int[] getAllIds()
+        throws PersistenceException
+    {
+        return mCold.getAllIds();
+    }
+
+    @Override
+    public List<EntityType> getRange(int fromId, int limit)
+        throws PersistenceException
+    {
+        return mCold.getRange(fromId, limit);
+    }
+
+    @Override
+    public List<EntityType> findByKey(Object key)
+        throws PersistenceException
+    {
+        return mCold.findByKey(key);
+    }
+
+    @Override
+    public EntityType create(EntityType entity)
+        throws PersistenceException
+    {
+        return mCold.create(entity);
+    }
+
+    @Override
+    public EntityType get(int id)
+        throws PersistenceException
+    {
+        mSketch.increment(id);
+        HotEntry<EntityType> hot = mHot.get(id);
+        if (hot != null)
+        {
+            mHotHits.incrementAndGet();
+            return mCopier.copy(hot.mEntity);
+        }
+        long stamp = stamp(id);
+        EntityType entity = mCold.get(id);
+        mColdHits.incrementAndGet();
+        offer(entity, stamp);
+        return entity;
+    }
+
+    @Override
+    public Map<Integer, EntityType> getMany(int[] ids)
+        throws PersistenceException
+    {
+        Map<Integer, EntityType> entities = new HashMap<>(ids.length * 4 / 3 + 1);
+        List<Integer> misses = new ArrayList<>();
+        Map<Integer, Long> stamps = new HashMap<>();
+        for (int id : ids)
+        {
+            mSketch.increment(id);
+            HotEntry<EntityType> hot = mHot.get(id);
+            if (hot == null)
+            {
+                misses.add(id);
+                stamps.put(id, stamp(id));
+            }
+            else
+            {
+                entities.put(id, mCopier.copy(hot.mEntity));
+            }
+        }
+        mHotHits.addAndGet(entities.size());
+        if (!misses.isEmpty())
+        {
+            Map<Integer, EntityType> loaded = mCold.getMany(misses.stream().mapToInt(Integer::intValue).toArray());
+            mColdHits.addAndGet(loaded.size());
+            for (EntityType entity : loaded.values())
+            {
+                offer(entity, stamps.get(entity.getId()));
+            }
+            entities.putAll(loaded);
+        }
+        return entities;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * If the entity is hot, it is replaced by the updated entity.
+     */
+    @Override
+    public void update(EntityType entity)
+        throws PersistenceException
+    {
+        mCold.update(entity);
+        if (demote(entity.getId()))
+        {
+            offer(entity, stamp(entity.getId()));
+        }
+    }
+
+    @Override
+    public void delete(int id)
+        throws PersistenceException
+    {
+        mCold.delete(id);
+        demote(id);
+    }
+
+    @Override
+    public List<EntityType> createAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        return mCold.createAll(entities);
+    }
+
+    @Override
+    public void updateAll(Collection<EntityType> entities)
+        throws PersistenceException
+    {
+        mCold.updateAll(entities);
+        for (EntityType entity : entities)
+        {
+            if (demote(entity.getId()))
+            {
+                offer(entity, stamp(entity.getId()));
+            }
+        }
+    }
+
+    @Override
+    public void deleteAll(int[] ids)
+        throws PersistenceException
+    {
+        mCold.deleteAll(ids);
+        for (int id : ids)
+        {
+            demote(id);
+        }
+    }
+
+    @Override
+    public int exportTo(Path archive, boolean compress, boolean checksum)
+        throws PersistenceException
+    {
+        return mCold.exportTo(archive, compress, checksum);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * The hot tier is emptied, since imported entities may replace hot ones.
+     */
+    @Override
+    public int importFrom(Path archive, Class<EntityType> clazz)
+        throws PersistenceException
+    {
+        try
+        {
+            return mCold.importFrom(archive, clazz);
+        }
+        finally
+        {
+            demoteAll();
+        }
+    }
+
+    /**
+     * @return The number of retrievals served by the hot tier.
+     */
+    public long getHotHits()
+    {
+        return mHotHits.get();
+    }
+
+    /**
+     * @return The number of retrievals served by the cold tier.
+     */
+    public long getColdHits()
+    {
+        return mColdHits.get();
+    }
+
+    /**
+     * @return The proportion of retrievals served by the hot tier (zero if there have been none).
+     */
+    public double getHotHitRate()
+    {
+        long hot = mHotHits.get();
+        long total = hot + mColdHits.get();
+        return (total == 0) ? 0 : (double)hot / total;
+    }
+
+    /**
+     * @return The number of entities promoted to the hot tier.
+     */
+    public long getPromotions()
+    {
+        return mPromotions.get();
+    }
+
+    /**
+     * @return The number of entities demoted to make room in the hot tier.
+     */
+    public long getDemotions()
+    {
+        return mDemotions.get();
+    }
+
+    /**
+     * @return The number of entities in the hot tier.
+     */
+    public int getHotSize()
+    {
+        return mHot.size();
+    }
+
+    /**
+     * @return The estimated heap used by the hot tier (in bytes).
+     */
+    public long getHotBytes()
+    {
+        return mHotBytes.get();
+    }
+
+    /**
+     * Discards every hot entity, eg. if the cold tier has been modified
+     * by another process.
+     */
+    public void demoteAll()
+    {
+        synchronized (mResidents)
+        {
+            for (int i = 0; i < STAMPS; i++)
+            {
+                mStamps.incrementAndGet(i);
+            }
+            mHot.clear();
+            mResidents.clear();
+            mHotBytes.set(0);
+        }
+    }
+
+    /**
+     * Stops promoting entities and closes the cold tier (if it can be closed).
+     *
+     * @throws IOException error closing the cold tier
+     */
+    @Override
+    public void close()
+        throws IOException
+    {
+        if (mOwnExecutor != null)
+        {
+            mOwnExecutor.shutdownNow();
+        }
+        demoteAll();
+        if (mCold instanceof Closeable)
+        {
+            ((Closeable)mCold).close();
+        }
+    }
+
+    /**
+     * Determines the current write stamp for the given entity. If the
+     * stamp has changed by the time the entity is promoted, the entity
+     * may have been written since it was read, so it is not promoted.
+     *
+     * @param id the entity's ID
+     *
+     * @return The stamp.
+     */
+    private long stamp(int id)
+    {
+        return mStamps.get(id & (STAMPS - 1));
+    }
+
+    /**
+     * Offers the given entity, just read from or written to the cold
+     * tier, for promotion to the hot tier in the background. The entity
+     * is copied straight away, so that the caller can go on to change it.
+     *
+     * @param entity the entity
+     * @param stamp the entity's write stamp before it was read
+     *
+     * @throws PersistenceException error copying the entity
+     */
+    private void offer(EntityType entity, long stamp)
+        throws PersistenceException
+    {
+        int id = entity.getId();
+        EntityType copy = mCopier.copy(entity);
+        try
+        {
+            mExecutor.execute(() -> promote(id, copy, stamp));
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The store is closed, so the entity stays cold.
+        }
+    }
+
+    /**
+     * Promotes the given entity to the hot tier, demoting the least used
+     * hot entities if there is not enough room, unless they have been
+     * used at least as often as the given entity.
+     *
+     * @param id the entity's ID
+     * @param entity the entity (a copy of its own)
+     * @param stamp the entity's write stamp before it was read
+     */
+    private void promote(int id, EntityType entity, long stamp)
+    {
+        long size;
+        try
+        {
+            size = ENTRY_OVERHEAD + EntityCodecs.encode(EntityCodecs.COMPACT_JSON, entity).length;
+        }
+        catch (IOException e)
+        {
+            // The entity cannot be measured, so it stays cold.
+            return;
+        }
+        if (size > mMaximumBytes)
+        {
+            return;
+        }
+        int frequency = mSketch.frequency(id);
+        synchronized (mResidents)
+        {
+            if ((stamp(id) != stamp) || mHot.containsKey(id))
+            {
+                return;
+            }
+            while (mHotBytes.get() + size > mMaximumBytes)
+            {
+                HotEntry<EntityType> victim = selectVictim();
+                if ((victim == null) || (mSketch.frequency(victim.mId) >= frequency))
+                {
+                    return;
+                }
+                demote(victim);
+                mDemotions.incrementAndGet();
+            }
+            HotEntry<EntityType> entry = new HotEntry<>(id, entity, size);
+            mHot.put(id, entry);
+            entry.mSlot = mResidents.size();
+            mResidents.add(entry);
+            mHotBytes.addAndGet(size);
+        }
+        mPromotions.incrementAndGet();
+    }
+
+    /**
+     * Discards the given entity from the hot tier (if it is there) and
+     * stops any earlier read of it from being promoted.
+     *
+     * @param id the entity's ID
+     *
+     * @return Whether the entity was hot.
+     */
+    private boolean demote(int id)
+    {
+        synchronized (mResidents)
+        {
+            mStamps.incrementAndGet(id & (STAMPS - 1));
+            HotEntry<EntityType> entry = mHot.get(id);
+            if (entry == null)
+            {
+                return false;
+            }
+            demote(entry);
+            return true;
+        }
+    }
+
+    /**
+     * Discards the given entry from the hot tier. Must be called while
+     * holding the lock on the residents.
+     *
+     * @param entry the entry
+     */
+    private void demote(HotEntry<EntityType> entry)
+    {
+        mHot.remove(entry.mId);
+        // Move the last resident into the demoted entry's slot.
+        HotEntry<EntityType> last = mResidents.remove(mResidents.size() - 1);
+        if (last != entry)
+        {
+            last.mSlot = entry.mSlot;
+            mResidents.set(last.mSlot, last);
+        }
+        mHotBytes.addAndGet(-entry.mSize);
+    }
+
+    /**
+     * Selects the least used of a random sample of the hot entries. Must
+     * be called while holding the lock on the residents.
+     *
+     * @return The entry or null if the hot tier is empty.
+     */
+    private HotEntry<EntityType> selectVictim()
+    {
+        HotEntry<EntityType> victim = null;
+        int lowest = Integer.MAX_VALUE;
+        for (int i = 0; (i < VICTIM_SAMPLE) && !mResidents.isEmpty(); i++)
+        {
+            HotEntry<EntityType> candidate = mResidents.get(mRandom.nextInt(mResidents.size()));
+            int frequency = mSketch.frequency(candidate.mId);
+            if (frequency < lowest)
+            {
+                victim = candidate;
+                lowest = frequency;
+            }
+        }
+        return victim;
+    }
+
+    @Override
+    public String toString()
+    {
+        return StringUtil.toString(mCold, mMaximumBytes, mHot.size(), mHotBytes.get(), mHotHits.get(), mColdHits.get());
+    }
+
+    /**
+     * Copies entities, so that callers never share a hot entity. A copy
+     * must be independent of the original, including its ID and version:
+     * changing either must not change the other.
+     *
+     * @param <EntityType> the entity to be copied
+     */
+    @FunctionalInterface
+    public interface Copier<EntityType extends AbstractEntity<?>>
+    {
+        /**
+         * Copies the given entity.
+         *
+         * @param entity the entity
+         *
+         * @return The copy.
+         *
+         * @throws PersistenceException error copying the entity
+         */
+        EntityType copy(EntityType entity)
+            throws PersistenceException;
+    }
+
+    /**
+     * A hot entity.
+     *
+     * @param <EntityType> the entity to be persisted
+     */
+    private static final class HotEntry<EntityType extends AbstractEntity<?>>
+    {
+        /** The entity's ID. */
+        final int mId;
+        /** The entity, which is only ever copied. */
+        final EntityType mEntity;
+        /** The estimated heap used to hold the entity. */
+        final long mSize;
+        /** The entry's position in the residents. */
+        int mSlot;
+
+        /**
+         * Constructs a new entry.
+         *
+         * @param id the entity's ID
+         * @param entity the entity
+         * @param size the estimated heap used to hold the entity
+         */
+        HotEntry(int id, EntityType entity, long size)
+        {
+            mId     = id;
+            mEntity = entity;
+            mSize   = size;
+            mSlot   = -1;
+        }
+    }
+}
@@ -0,0 +1,466 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import au.com.shawware.util.StringUtil;
+
+/**
+ * Records the entities that have been deleted from a disk store but whose
+ * files have not yet been removed. Deleting an entity only appends a
+ * small record to the journal, so deletes do not wait on the file
+ * system's metadata updates; the files are removed later, in batches.
+ * <p>
+ * The journal also remembers the highest ID ever deleted, so that the ID
+ * is never allocated again even once its file has gone.
+ * <p>
+ * The journal is an append-only sequence of fixed-size records, each a
+ * type and an ID. A torn record at the end is ignored. The journal is
+ * rewritten without the reclaimed entities once they have been removed.
+ * <p>
+ * Several stores, in this process or others, may share a journal. Each
+ * append and rewrite holds a lock on the journal's lock file, and a
+ * rewrite first merges the records the other stores have appended, so
+ * none of them are lost.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+class TombstoneJournal
+{
+    /** The record type for a deleted entity. */
+    private static final byte DELETE = 1;
+    /** The record type for a deleted entity that has been written again. */
+    private static final byte RESTORE = 2;
+    /** The record type for the highest ID deleted so far. */
+    private static final byte HIGHEST = 3;
+    /** The size of a record: type and ID. */
+    private static final int RECORD_SIZE = 1 + 4;
+    /** The file extension to use while rewriting the journal. */
+    private static final String TEMP_EXTENSION = ".tmp"; //$NON-NLS-1$
+    /** The file extension to use for the lock file. */
+    private static final String LOCK_EXTENSION = ".lock"; //$NON-NLS-1$
+    /** Serialises access to each journal file within this process, since file locks are held per process. */
+    private static final Map<Path, Object> sMonitors = new ConcurrentHashMap<>();
+
+    /** The journal file. */
+    private final Path mFile;
+    /** The file locked while the journal is written. */
+    private final Path mLockFile;
+    /** Serialises access to the journal file within this process. */
+    private final Object mMonitor;
+    /** Whether appended records must be forced to disk. */
+    private final boolean mDurable;
+    /** The IDs of the deleted entities whose files remain. */
+    private final Set<Integer> mPending;
+    /** The IDs of the entities reclaimed since the journal was last rewritten. */
+    private final Set<Integer> mReclaimed;
+    /** Whether the journal has been read yet. */
+    private volatile boolean mLoaded;
+    /** The highest ID deleted so far. */
+    private int mHighest;
+    /** The journal file, open for appending (if it has been opened). */
+    private FileChannel mChannel;
+    /** Identifies the file the channel is open on, to tell if it has since been replaced. */
+    private Object mChannelKey;
+
+    /**
+     * Constructs a new journal.
+     *
+     * @param file the journal file
+     * @param durable whether appended records must be forced to disk
+     */
+    TombstoneJournal(Path file, boolean durable)
+    {
+        mFile      = file;
+        mLockFile  = file.resolveSibling(file.getFileName() + LOCK_EXTENSION);
+        mMonitor   = sMonitors.computeIfAbsent(file.toAbsolutePath().normalize(), path -> new Object());
+        mDurable   = durable;
+        mPending   = ConcurrentHashMap.newKeySet();
+        mReclaimed = ConcurrentHashMap.newKeySet();
+        mLoaded    = false;
+        mHighest   = AbstractEntity.DEFAULT_ID;
+        mChannel   = null;
+        mChannelKey = null;
+    }
+
+    /**
+     * @return The journal file.
+     */
+    Path getFile()
+    {
+        return mFile;
+    }
+
+    /**
+     * Determines whether the given entity has been deleted but not yet reclaimed.
+     *
+     * @param id the entity's ID
+     *
+     * @return Whether the entity is deleted.
+     *
+     * @throws IOException error reading the journal
+     */
+    @SuppressWarnings("boxing")
+    boolean contains(int id)
+        throws IOException
+    {
+        load();
+        return mPending.contains(id);
+    }
+
+    /**
+     * @return Whether any deleted entities await reclamation.
+     *
+     * @throws IOException error reading the journal
+     */
+    boolean isEmpty()
+        throws IOException
+    {
+        load();
+        return mPending.isEmpty();
+    }
+
+    /**
+     * @return The IDs of the deleted entities awaiting reclamation, in ascending order.
+     *
+     * @throws IOException error reading the journal
+     */
+    int[] getPending()
+        throws IOException
+    {
+        load();
+        return mPending.stream().mapToInt(Integer::intValue).sorted().toArray();
+    }
+
+    /**
+     * @return The highest ID deleted so far.
+     *
+     * @throws IOException error reading the journal
+     */
+    synchronized int getHighest()
+        throws IOException
+    {
+        load();
+        return mHighest;
+    }
+
+    /**
+     * Records that the given entities have been deleted. Must be called
+     * while holding the entities' write locks.
+     *
+     * @param ids the entities' IDs
+     *
+     * @throws IOException error writing the journal
+     */
+    @SuppressWarnings("boxing")
+    synchronized void delete(int... ids)
+        throws IOException
+    {
+        load();
+        append(DELETE, ids);
+        for (int id : ids)
+        {
+            mPending.add(id);
+            mHighest = Math.max(mHighest, id);
+        }
+    }
+
+    /**
+     * Records that the given deleted entity is being written again, so it
+     * must no longer be reclaimed. Must be called while holding the
+     * entity's write lock. Does nothing if the entity is not deleted.
+     *
+     * @param id the entity's ID
+     *
+     * @throws IOException error writing the journal
+     */
+    @SuppressWarnings("boxing")
+    synchronized void restore(int id)
+        throws IOException
+    {
+        load();
+        // A reclaimed entity's deletion is still journalled until the journal is rewritten.
+        if (mPending.contains(id) || mReclaimed.contains(id))
+        {
+            append(RESTORE, id);
+            mPending.remove(id);
+            mReclaimed.remove(id);
+        }
+    }
+
+    /**
+     * Records that the given entity's file has been removed. This is only
+     * noted in memory: the journal is rewritten by {@link #compact()}.
+     * Must be called while holding the entity's write lock.
+     *
+     * @param id the entity's ID
+     */
+    @SuppressWarnings("boxing")
+    void reclaimed(int id)
+    {
+        if (mPending.remove(id))
+        {
+            mReclaimed.add(id);
+        }
+    }
+
+    /**
+     * Rewrites the journal so that it only holds the entities still
+     * awaiting reclamation and the highest ID deleted so far. The records
+     * appended by other stores sharing the journal are merged in first,
+     * so this store also learns of their deletes.
+     *
+     * @throws IOException error rewriting the journal
+     */
+    @SuppressWarnings("boxing")
+    synchronized void compact()
+        throws IOException
+    {
+        load();
+        locked(() -> {
+            if (!Files.exists(mFile))
+            {
+                return;
+            }
+            closeChannel();
+            Set<Integer> pending = new HashSet<>();
+            int highest = Math.max(mHighest, replay(Files.readAllBytes(mFile), pending));
+            pending.removeAll(mReclaimed);
+            ByteBuffer buffer = ByteBuffer.allocate((pending.size() + 1) * RECORD_SIZE);
+            for (int id : pending)
+            {
+                buffer.put(DELETE).putInt(id);
+            }
+            buffer.put(HIGHEST).putInt(highest);
+            buffer.flip();
+            Path temp = mFile.resolveSibling(mFile.getFileName() + TEMP_EXTENSION);
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+            {
+                while (buffer.hasRemaining())
+                {
+                    channel.write(buffer);
+                }
+                if (mDurable)
+                {
+                    channel.force(true);
+                }
+            }
+            Files.move(temp, mFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            if (mDurable)
+            {
+                DirectorySync.force(mFile.getParent());
+            }
+            mPending.retainAll(pending);
+            mPending.addAll(pending);
+            mHighest = highest;
+            mReclaimed.clear();
+        });
+    }
+
+    /**
+     * Closes the journal file. It is re-opened if more records are appended.
+     *
+     * @throws IOException error closing the file
+     */
+    synchronized void close()
+        throws IOException
+    {
+        closeChannel();
+    }
+
+    /**
+     * Reads the journal if this has not already been done.
+     *
+     * @throws IOException error reading the journal
+     */
+    @SuppressWarnings("boxing")
+    private void load()
+        throws IOException
+    {
+        if (mLoaded)
+        {
+            return;
+        }
+        synchronized (this)
+        {
+            if (mLoaded)
+            {
+                return;
+            }
+            if (Files.exists(mFile))
+            {
+                mHighest = Math.max(mHighest, replay(Files.readAllBytes(mFile), mPending));
+            }
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Replays the given records.
+     *
+     * @param data the records
+     * @param pending the IDs of the deleted entities, updated by the records
+     *
+     * @return The highest ID in the records.
+     *
+     * @throws IOException corrupt records
+     */
+    @SuppressWarnings("boxing")
+    private int replay(byte[] data, Set<Integer> pending)
+        throws IOException
+    {
+        int highest = AbstractEntity.DEFAULT_ID;
+        ByteBuffer records = ByteBuffer.wrap(data);
+        while (records.remaining() >= RECORD_SIZE)
+        {
+            byte type = records.get();
+            int id = records.getInt();
+            switch (type)
+            {
+                case DELETE:
+                    pending.add(id);
+                    break;
+                case RESTORE:
+                    pending.remove(id);
+                    break;
+                case HIGHEST:
+                    break;
+                default:
+                    throw new IOException("Corrupt tombstone journal: " + mFile); //$NON-NLS-1$
+            }
+            highest = Math.max(highest, id);
+        }
+        return highest;
+    }
+
+    /**
+     * Performs the given action while holding the journal's lock, which
+     * excludes the other stores sharing the journal.
+     *
+     * @param action the action
+     *
+     * @throws IOException error locking the journal or performing the action
+     */
+    private void locked(JournalAction action)
+        throws IOException
+    {
+        synchronized (mMonitor)
+        {
+            try (FileChannel channel = FileChannel.open(mLockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE))
+            {
+                FileLock lock = channel.lock();
+                try
+                {
+                    action.run();
+                }
+                finally
+                {
+                    lock.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Appends a record of the given type for each of the given IDs and,
+     * if required, forces them to disk.
+     *
+     * @param type the type of record
+     * @param ids the IDs
+     *
+     * @throws IOException error writing the journal
+     */
+    private void append(byte type, int... ids)
+        throws IOException
+    {
+        ByteBuffer buffer = ByteBuffer.allocate(ids.length * RECORD_SIZE);
+        for (int id : ids)
+        {
+            buffer.put(type).putInt(id);
+        }
+        buffer.flip();
+        locked(() -> {
+            // Another store may have rewritten the journal since it was opened.
+            Object key = Files.exists(mFile) ? Files.readAttributes(mFile, BasicFileAttributes.class).fileKey() : null;
+            if ((mChannel != null) && ((key == null) || !key.equals(mChannelKey)))
+            {
+                closeChannel();
+            }
+            if (mChannel == null)
+            {
+                boolean created = !Files.exists(mFile);
+                mChannel = FileChannel.open(mFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                mChannelKey = Files.readAttributes(mFile, BasicFileAttributes.class).fileKey();
+                if (created && mDurable)
+                {
+                    DirectorySync.force(mFile.getParent());
+                }
+            }
+            while (buffer.hasRemaining())
+            {
+                mChannel.write(buffer);
+            }
+            if (mDurable)
+            {
+                mChannel.force(false);
+            }
+        });
+    }
+
+    /**
+     * Closes the journal file if it is open.
+     *
+     * @throws IOException error closing the file
+     */
+    private void closeChannel()
+        throws IOException
+    {
+        if (mChannel != null)
+        {
+            FileChannel channel = mChannel;
+            mChannel = null;
+            mChannelKey = null;
+            channel.close();
+        }
+    }
+
+    /**
+     * An action on the journal file, which can throw an I/O exception.
+     */
+    @FunctionalInterface
+    private interface JournalAction
+    {
+        /**
+         * Performs the action.
+         *
+         * @throws IOException error accessing the journal
+         */
+        void run()
+            throws IOException;
+    }
+
+    @Override
+    @SuppressWarnings("boxing")
+    public String toString()
+    {
+        return StringUtil.toString(mFile, mPending.size());
+    }
+}
@@ -4,7 +4,7 @@
  */
 
 /**
- * Simple persistence APIs and a JSON/disk-based implementation.
+ * Simple persistence APIs and JSON/disk-based implementations.
  *
  * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
  */
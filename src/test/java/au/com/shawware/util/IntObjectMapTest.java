@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Unit tests for {@link IntObjectMap}.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "boxing", "nls", "static-method" })
+public class IntObjectMapTest
+{
+    /**
+     * Test the basic map operations.
+     */
+    @Test
+    public void basicTests()
+    {
+        IntObjectMap<String> map = new IntObjectMap<>(0);
+        Assert.assertEquals(true, map.isEmpty());
+        Assert.assertEquals(null, map.get(1));
+
+        Assert.assertEquals(null, map.put(1, "one"));
+        Assert.assertEquals(null, map.put(-7, "minus seven"));
+        Assert.assertEquals(null, map.put(0, "zero"));
+        Assert.assertEquals("one", map.put(1, "uno"));
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals("uno", map.get(1));
+        Assert.assertEquals(true, map.containsKey(-7));
+        Assert.assertEquals(false, map.containsKey(7));
+        Assert.assertEquals("[-7, 0, 1]", Arrays.toString(map.keys()));
+        Assert.assertEquals(3, map.values().size());
+
+        Assert.assertEquals("zero", map.remove(0));
+        Assert.assertEquals(null, map.remove(0));
+        Assert.assertEquals(2, map.size());
+        Map<Integer, String> copy = map.toMap();
+        Assert.assertEquals(2, copy.size());
+        Assert.assertEquals("minus seven", copy.get(-7));
+
+        IntObjectMap<String> other = new IntObjectMap<>();
+        other.put(2, "two");
+        other.putAll(map);
+        Assert.assertEquals("[-7, 1, 2]", Arrays.toString(other.keys()));
+
+        map.clear();
+        Assert.assertEquals(0, map.size());
+        Assert.assertEquals(null, map.get(1));
+
+        try
+        {
+            map.put(1, null);
+            Assert.fail("null value accepted");
+        }
+        catch (IllegalArgumentException e)
+        {
+            Assert.assertEquals("Null value", e.getMessage());
+        }
+    }
+
+    /**
+     * Test the map against a standard map under many random operations,
+     * which exercises growth and removal from runs of colliding keys.
+     */
+    @Test
+    public void randomTests()
+    {
+        Random random = new Random(42);
+        IntObjectMap<Integer> map = new IntObjectMap<>(4);
+        Map<Integer, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 100000; i++)
+        {
+            int key = random.nextInt(2000) - 100;
+            if (random.nextInt(3) == 0)
+            {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            }
+            else
+            {
+                Assert.assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        for (int key = -100; key < 1900; key++)
+        {
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        Assert.assertEquals(expected, map.toMap());
+    }
+}
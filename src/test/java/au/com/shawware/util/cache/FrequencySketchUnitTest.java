@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.cache;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import au.com.shawware.util.test.AbstractUnitTest;
+
+/**
+ * Exercises and verifies our {@link FrequencySketch}.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings("nls")
+public class FrequencySketchUnitTest extends AbstractUnitTest
+{
+    @Test
+    public void verifyCounting()
+    {
+        FrequencySketch sketch = new FrequencySketch(64);
+
+        Assert.assertEquals(0, sketch.frequency(1));
+        sketch.increment(1);
+        sketch.increment(1);
+        sketch.increment(2);
+        Assert.assertEquals(2, sketch.frequency(1));
+        Assert.assertEquals(1, sketch.frequency(2));
+
+        // Counts saturate.
+        for (int i = 0; i < 2 * FrequencySketch.MAXIMUM_FREQUENCY; i++)
+        {
+            sketch.increment(3);
+        }
+        Assert.assertEquals(FrequencySketch.MAXIMUM_FREQUENCY, sketch.frequency(3));
+    }
+
+    @Test
+    public void verifyAging()
+    {
+        // With one counter per row, every key shares the same counts.
+        FrequencySketch sketch = new FrequencySketch(1);
+
+        for (int i = 0; i < 8; i++)
+        {
+            sketch.increment(1);
+        }
+        sketch.increment(2);
+        Assert.assertEquals(9, sketch.frequency(1));
+
+        // Once enough uses have been recorded, the counts are halved.
+        sketch.increment(2);
+        Assert.assertEquals(5, sketch.frequency(1));
+        Assert.assertEquals(5, sketch.frequency(2));
+    }
+
+    @Test
+    public void verifyParameters()
+    {
+        verifyExceptionThrown(() -> new FrequencySketch(0), IllegalArgumentException.class, "Invalid width: 0");
+    }
+}
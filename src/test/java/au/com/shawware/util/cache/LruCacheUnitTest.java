@@ -0,0 +1,74 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * http://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.cache;
+
+import java.time.Duration;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import au.com.shawware.util.test.AbstractUnitTest;
+import au.com.shawware.util.time.TestTime;
+
+/**
+ * Exercises and verifies our {@link LruCache}.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({"nls", "boxing"})
+public class LruCacheUnitTest extends AbstractUnitTest
+{
+    @Test
+    public void verifyEviction()
+    {
+        LruCache<Integer, String> cache = new LruCache<>(2);
+
+        cache.put(1, "one");
+        cache.put(2, "two");
+        Assert.assertEquals("one", cache.get(1));
+        cache.put(3, "three");
+
+        // Two was the least recently used value.
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(null, cache.get(2));
+        Assert.assertEquals("one", cache.get(1));
+        Assert.assertEquals("three", cache.get(3));
+
+        cache.remove(1);
+        Assert.assertEquals(null, cache.get(1));
+        Assert.assertEquals(3, cache.getHits());
+        Assert.assertEquals(2, cache.getMisses());
+
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void verifyExpiry()
+    {
+        // Each call to the clock advances it by one minute.
+        LruCache<Integer, String> cache = new LruCache<>(10, Duration.ofMinutes(3), new TestTime(Duration.ofMinutes(1)));
+
+        cache.put(1, "one");
+        Assert.assertEquals("one", cache.get(1));
+        Assert.assertEquals("one", cache.get(1));
+        Assert.assertEquals(null, cache.get(1));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void verifyErrorHandling()
+    {
+        LruCache<Integer, String> cache = new LruCache<>(1);
+
+        verifyExceptionThrown(() -> new LruCache<>(0), IllegalArgumentException.class, "Invalid maximum size: 0");
+        verifyExceptionThrown(() -> new LruCache<>(1, Duration.ofMinutes(1), null), IllegalArgumentException.class, "Null clock");
+        verifyExceptionThrown(() -> cache.get(null), IllegalArgumentException.class, "null cache key");
+        verifyExceptionThrown(() -> cache.put(null, "a"), IllegalArgumentException.class, "null cache key");
+    }
+}
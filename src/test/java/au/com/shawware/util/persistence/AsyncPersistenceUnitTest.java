@@ -0,0 +1,127 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * https://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Exercise the asynchronous persistence adapter.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "nls", "boxing" })
+public class AsyncPersistenceUnitTest extends AbstractPersistenceUnitTest
+{
+    /** Asynchronous entity sub-directory. */
+    private static final String ASYNC_DIR = "async";
+
+    /**
+     * Setup test fixtures and the like before all tests.
+     * 
+     * @throws IOException file error
+     */
+    @BeforeClass
+    public static void setup()
+        throws IOException
+    {
+        Files.createDirectory(sRoot.resolve(ASYNC_DIR));
+    }
+
+    /**
+     * Verifies that operations can be pipelined and that
+     * errors complete the futures exceptionally.
+     * 
+     * @throws Exception error running the operations
+     */
+    @Test
+    public void asyncOperations()
+        throws Exception
+    {
+        String directory = sRoot.resolve(ASYNC_DIR).toString();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            IAsyncEntityStore<NamedEntity> store = new AsyncEntityStore<>(new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class), executor);
+
+            List<CompletableFuture<NamedEntity>> creates = new ArrayList<>();
+            for (int i = 1; i <= 20; i++)
+            {
+                creates.add(store.create(new NamedEntity("async" + i)));
+            }
+            CompletableFuture.allOf(creates.toArray(new CompletableFuture<?>[creates.size()])).get();
+
+            Map<Integer, NamedEntity> entities = store.getAll().get();
+            Assert.assertEquals(20, entities.size());
+
+            NamedEntity entity = store.get(7).get();
+            entity.setKey("updated");
+            String key = store.update(entity).thenCompose(ignored -> store.get(7)).get().getKey();
+            Assert.assertEquals("updated", key);
+            Assert.assertEquals(1, store.findByKey("updated").get().size());
+            Assert.assertEquals(2, entity.getVersion());
+
+            // Updates write the entity as it was when the update was issued.
+            NamedEntity other = store.get(8).get();
+            other.setKey("issued");
+            CompletableFuture<Void> update = store.update(other);
+            other.setKey("later");
+            update.get();
+            Assert.assertEquals(2, other.getVersion());
+            Assert.assertEquals("issued", store.get(8).get().getKey());
+
+            store.delete(7).get();
+            Assert.assertEquals(2, store.getMany(new int[] { 6, 8 }).get().size());
+            try
+            {
+                store.get(7).get();
+                Assert.fail("Deleted entity retrieved");
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof PersistenceException);
+            }
+
+            // Errors fail the future too.
+            IAsyncEntityStore<NamedEntity> broken = new AsyncEntityStore<>(new EntityDiskStore<NamedEntity>(directory, "Entity", "E", NamedEntity.class)
+            {
+                @Override
+                public NamedEntity get(int id)
+                {
+                    throw new AssertionError("Broken: " + id);
+                }
+            }, executor);
+            try
+            {
+                broken.get(8).get(10, TimeUnit.SECONDS);
+                Assert.fail("Error not reported");
+            }
+            catch (ExecutionException e)
+            {
+                Assert.assertTrue(e.getCause() instanceof AssertionError);
+                Assert.assertEquals("Broken: 8", e.getCause().getMessage());
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * https://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Exercise the caching persistence decorator.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "nls", "boxing" })
+public class CachingPersistenceUnitTest extends AbstractPersistenceUnitTest
+{
+    /** Cached entity sub-directory. */
+    private static final String CACHE_DIR = "cache";
+    /** Cached snapshot sub-directory. */
+    private static final String SNAPSHOT_DIR = "snapshot";
+    /** Versioned entity sub-directory. */
+    private static final String VERSION_DIR = "cache-version";
+    /** Stale read sub-directory. */
+    private static final String STALE_DIR = "stale";
+
+    /**
+     * Setup test fixtures and the like before all tests.
+     * 
+     * @throws IOException file error
+     */
+    @BeforeClass
+    public static void setup()
+        throws IOException
+    {
+        Files.createDirectory(sRoot.resolve(CACHE_DIR));
+        Files.createDirectory(sRoot.resolve(SNAPSHOT_DIR));
+        Files.createDirectory(sRoot.resolve(VERSION_DIR));
+        Files.createDirectory(sRoot.resolve(STALE_DIR));
+    }
+
+    /**
+     * Verifies that entities are cached and invalidated correctly.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void caching()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(CACHE_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        CachingEntityStore<NamedEntity> store = new CachingEntityStore<>(disk, 2);
+        verifyBasicStorage(store, new NamedEntity("cached"));
+
+        // Each retrieval gets a copy of its own.
+        NamedEntity e1 = store.get(1);
+        NamedEntity e2 = store.get(1);
+        Assert.assertNotSame(e1, e2);
+        Assert.assertEquals(e1.toString(), e2.toString());
+        e2.setKey("unsaved");
+        Assert.assertEquals("cached", store.get(1).getKey());
+        long hits = store.getHits();
+
+        store.update(new NamedEntity(1, "updated"));
+        Assert.assertEquals("updated", store.get(1).getKey());
+        Assert.assertEquals(hits, store.getHits());
+
+        store.create(new NamedEntity("two"));
+        store.create(new NamedEntity("three"));
+        Map<Integer, NamedEntity> many = store.getMany(new int[] { 1, 2, 3 });
+        Assert.assertEquals(3, many.size());
+        Assert.assertEquals("three", many.get(3).getKey());
+
+        store.delete(2);
+        verifyCheckedExceptionThrown(() -> store.get(2), PersistenceException.class, "Error accessing Entity: 2");
+    }
+
+    /**
+     * Verifies that stale copies of cached entities fail the version check.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void versioning()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(VERSION_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        verifyVersioning(new CachingEntityStore<>(disk, 10), () -> new NamedEntity("versioned"));
+    }
+
+    /**
+     * Verifies that the snapshot of every entity is kept current.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void snapshot()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(SNAPSHOT_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        disk.create(new NamedEntity("one"));
+        disk.create(new NamedEntity("two"));
+
+        CachingEntityStore<NamedEntity> store = new CachingEntityStore<>(disk, 10, null, null, true);
+        Assert.assertEquals(2, store.getAll().size());
+
+        store.create(new NamedEntity("three"));
+        store.update(new NamedEntity(1, "updated"));
+        store.delete(2);
+        Map<Integer, NamedEntity> all = store.getAll();
+        Assert.assertEquals(2, all.size());
+        Assert.assertEquals("updated", all.get(1).getKey());
+        Assert.assertEquals("three", all.get(3).getKey());
+
+        // Writes that bypass the cache are not seen until it is invalidated.
+        disk.delete(3);
+        Assert.assertEquals(2, store.getAll().size());
+        store.invalidateAll();
+        Assert.assertEquals(1, store.getAll().size());
+    }
+
+    /**
+     * Verifies that an entity updated while it is being read is not cached.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void staleReads()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(STALE_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        disk.create(new NamedEntity("original"));
+
+        List<CachingEntityStore<NamedEntity>> stores = new ArrayList<>();
+        // Updates the entity through the cache after it has been read but before it is cached.
+        IEntityStore<NamedEntity> racing = new IEntityStore<NamedEntity>()
+        {
+            @Override
+            public Map<Integer, NamedEntity> getAll()
+                throws PersistenceException
+            {
+                return disk.getAll();
+            }
+
+            @Override
+            public NamedEntity create(NamedEntity entity)
+                throws PersistenceException
+            {
+                return disk.create(entity);
+            }
+
+            @Override
+            public NamedEntity get(int id)
+                throws PersistenceException
+            {
+                NamedEntity entity = disk.get(id);
+                if (entity.getKey().equals("original"))
+                {
+                    NamedEntity update = disk.get(id);
+                    update.setKey("updated");
+                    stores.get(0).update(update);
+                }
+                return entity;
+            }
+
+            @Override
+            public void update(NamedEntity entity)
+                throws PersistenceException
+            {
+                disk.update(entity);
+            }
+
+            @Override
+            public void delete(int id)
+                throws PersistenceException
+            {
+                disk.delete(id);
+            }
+        };
+        CachingEntityStore<NamedEntity> store = new CachingEntityStore<>(racing, 10);
+        stores.add(store);
+
+        Assert.assertEquals("original", store.get(1).getKey());
+        NamedEntity current = store.get(1);
+        Assert.assertEquals("updated", current.getKey());
+        Assert.assertEquals(2, current.getVersion());
+        store.update(current);
+        Assert.assertEquals(3, store.get(1).getVersion());
+    }
+}
@@ -9,8 +9,22 @@ package au.com.shawware.util.persistence;
 
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
+import org.junit.Assert;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
@@ -19,13 +33,45 @@ import org.junit.Test;
  *
  * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
  */
-@SuppressWarnings("nls")
+@SuppressWarnings({ "nls", "boxing" })
 public class DiskPersistenceUnitTest extends AbstractPersistenceUnitTest
 {
     /** Persisted entity sub-directory. */
     private static final String ENTITY_DIR = "entity";
     /** Persisted address sub-directory. */
     private static final String ADDRESS_DIR = "address";
+    /** Persisted ID allocation sub-directory. */
+    private static final String ID_DIR = "ids";
+    /** Persisted codec sub-directory. */
+    private static final String CODEC_DIR = "codec";
+    /** Persisted parallel sub-directory. */
+    private static final String PARALLEL_DIR = "parallel";
+    /** Persisted bulk read sub-directory. */
+    private static final String BULK_DIR = "bulk";
+    /** Batch operation sub-directory. */
+    private static final String BATCH_DIR = "batch";
+    /** Durable write sub-directory. */
+    private static final String DURABLE_DIR = "durable";
+    /** Group commit sub-directory. */
+    private static final String GROUP_DIR = "group";
+    /** Concurrent access sub-directory. */
+    private static final String CONCURRENT_DIR = "concurrent";
+    /** Sharded layout sub-directory. */
+    private static final String SHARDED_DIR = "sharded";
+    /** Checkpoint sub-directory. */
+    private static final String CHECKPOINT_DIR = "checkpoint";
+    /** Versioning sub-directory. */
+    private static final String VERSION_DIR = "version";
+    /** Snapshot isolation sub-directory. */
+    private static final String ISOLATION_DIR = "isolation";
+    /** Archive sub-directory. */
+    private static final String ARCHIVE_DIR = "archive";
+    /** Tombstone sub-directory. */
+    private static final String TOMBSTONE_DIR = "tombstone";
+    /** Failed reclamation sub-directory. */
+    private static final String RECLAIM_DIR = "reclaim";
+    /** Watch sub-directory. */
+    private static final String WATCH_DIR = "watch";
 
     /**
      * Setup test fixtures and the like before all tests.
@@ -38,6 +84,23 @@ public class DiskPersistenceUnitTest extends AbstractPersistenceUnitTest
     {
         Files.createDirectory(sRoot.resolve(ENTITY_DIR));
         Files.createDirectory(sRoot.resolve(ADDRESS_DIR));
+        Files.createDirectory(sRoot.resolve(ID_DIR));
+        Files.createDirectory(sRoot.resolve(CODEC_DIR));
+        Files.createDirectory(sRoot.resolve(PARALLEL_DIR));
+        Files.createDirectory(sRoot.resolve(BULK_DIR));
+        Files.createDirectory(sRoot.resolve(BATCH_DIR));
+        Files.createDirectory(sRoot.resolve(DURABLE_DIR));
+        Files.createDirectory(sRoot.resolve(GROUP_DIR));
+        Files.createDirectory(sRoot.resolve(CONCURRENT_DIR));
+        Files.createDirectory(sRoot.resolve(SHARDED_DIR));
+        Files.createDirectory(sRoot.resolve(CHECKPOINT_DIR));
+        Files.createDirectory(sRoot.resolve(VERSION_DIR));
+        Files.createDirectory(sRoot.resolve(ISOLATION_DIR));
+        Files.createDirectory(sRoot.resolve(ARCHIVE_DIR));
+        Files.createDirectory(sRoot.resolve(TOMBSTONE_DIR));
+        Files.createDirectory(sRoot.resolve(RECLAIM_DIR));
+        Files.createDirectories(sRoot.resolve(WATCH_DIR).resolve("flat"));
+        Files.createDirectories(sRoot.resolve(WATCH_DIR).resolve("sharded"));
     }
 
     /**
@@ -65,4 +128,689 @@ public class DiskPersistenceUnitTest extends AbstractPersistenceUnitTest
         Map<Integer, Address> allAddresses = addressStore.getAll();
         verifyEntityMap(allAddresses, a1);
     }
+
+    /**
+     * Verifies that the factory hands out the same store each time one is
+     * requested and that entity classes can be prepared in advance.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void sharedStores()
+        throws PersistenceException
+    {
+        PersistenceFactory factory = PersistenceFactory.getFactory(PERSISTENCE_ROOT);
+        factory.prewarm(NamedEntity.class, Address.class);
+
+        IEntityStore<NamedEntity> entityStore = factory.getStore(NamedEntity.class, "Named");
+        Assert.assertSame(entityStore, factory.getStore(NamedEntity.class, "Named"));
+        Assert.assertSame(entityStore, factory.getStore(NamedEntity.class, "Named", StoreType.DISK));
+        Assert.assertSame(factory.getStore(Address.class), factory.getStore(Address.class, null, StoreType.DISK));
+        Assert.assertNotSame(entityStore, factory.getStore(NamedEntity.class));
+    }
+
+    /**
+     * Verifies that IDs are allocated correctly and that the
+     * persisted highest ID survives re-opening the store.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void idAllocation()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(ID_DIR).toString();
+        Path idFile = sRoot.resolve(ID_DIR).resolve("E.id");
+        EntityDiskStore<NamedEntity> store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class, new DiskStoreOptions().persistMaxId(true));
+
+        Assert.assertEquals(1, store.create(new NamedEntity("one")).getId());
+        Assert.assertEquals(2, store.create(new NamedEntity("two")).getId());
+        Assert.assertEquals(3, store.create(new NamedEntity("three")).getId());
+        store.delete(3);
+        Assert.assertEquals(false, Files.exists(idFile));
+        store.close();
+        Assert.assertEquals(true, Files.exists(idFile));
+
+        // A deleted ID is not re-used, even after re-opening the store.
+        store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class, new DiskStoreOptions().persistMaxId(true));
+        Assert.assertEquals(4, store.create(new NamedEntity("four")).getId());
+        Assert.assertEquals(false, Files.exists(idFile));
+        store.close();
+
+        // Entities created without persisting the highest ID invalidate the persisted value.
+        IEntityStore<NamedEntity> other = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        Assert.assertEquals(5, other.create(new NamedEntity("five")).getId());
+        store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class, new DiskStoreOptions().persistMaxId(true));
+        Assert.assertEquals(6, store.create(new NamedEntity("six")).getId());
+        Assert.assertEquals(5, store.getAll().size());
+
+        // Without a clean close, the highest ID is found by scanning.
+        store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class, new DiskStoreOptions().persistMaxId(true));
+        Assert.assertEquals(7, store.create(new NamedEntity("seven")).getId());
+        store.close();
+
+        // IDs deleted beyond the persisted value are not re-used either.
+        EntityDiskStore<NamedEntity> deleter = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        Assert.assertEquals(8, deleter.create(new NamedEntity("eight")).getId());
+        Assert.assertEquals(9, deleter.create(new NamedEntity("nine")).getId());
+        deleter.deleteAll(new int[] { 8, 9 });
+        deleter.reclaim();
+        store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class, new DiskStoreOptions().persistMaxId(true));
+        Assert.assertEquals(10, store.create(new NamedEntity("ten")).getId());
+        store.close();
+    }
+
+    /**
+     * Verifies that entities written by one codec can be read
+     * and migrated by stores using another codec.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void codecs()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(CODEC_DIR);
+        IEntityStore<Address> json = new EntityDiskStore<>(directory.toString(), "Address", "A", Address.class);
+        json.create(new Address(1, "First Street"));
+        json.create(new Address(2, "Second Street"));
+        json.create(new Address(3, "Third Street"));
+        Assert.assertEquals('{', Files.readAllBytes(directory.resolve("A-01.json"))[0]);
+
+        IEntityStore<Address> smile = new EntityDiskStore<>(directory.toString(), "Address", "A", Address.class,
+                                                            new DiskStoreOptions().codec(EntityCodecs.deflate(EntityCodecs.SMILE)));
+        Assert.assertEquals(3, smile.getAll().size());
+        smile.update(new Address(2, 22, "Second Avenue"));
+        Assert.assertEquals(EntityCodecs.DEFLATE_ID, Files.readAllBytes(directory.resolve("A-02.json"))[1]);
+
+        IEntityStore<Address> gzip = new EntityDiskStore<>(directory.toString(), "Address", "A", Address.class,
+                                                           new DiskStoreOptions().codec(EntityCodecs.gzip(EntityCodecs.COMPACT_JSON)));
+        gzip.create(new Address(4, "Fourth Street"));
+        Assert.assertEquals(EntityCodecs.GZIP_ID, Files.readAllBytes(directory.resolve("A-04.json"))[1]);
+
+        Map<Integer, Address> addresses = json.getAll();
+        Assert.assertEquals(4, addresses.size());
+        Assert.assertEquals("Second Avenue", addresses.get(2).getStreet());
+        Assert.assertEquals("Fourth Street", json.get(4).getStreet());
+
+        // Projections parse whichever codec wrote each entity.
+        try (Stream<EntityProjection> projections = json.project("street", "key"))
+        {
+            Assert.assertEquals("[First Street/1, Second Avenue/22, Third Street/3, Fourth Street/4]",
+                                projections.map(p -> p.getString("street") + "/" + p.getLong("key")).collect(Collectors.toList()).toString());
+        }
+    }
+
+    /**
+     * Verifies that loading in parallel matches loading sequentially,
+     * including how errors are reported.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void parallelLoad()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(PARALLEL_DIR);
+        IEntityStore<NamedEntity> store = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        for (int i = 1; i <= 50; i++)
+        {
+            store.create(new NamedEntity("entity" + i));
+        }
+        Map<Integer, NamedEntity> expected = store.getAll();
+        Assert.assertEquals(50, expected.size());
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try
+        {
+            verifySameEntities(expected, store.getAll(executor));
+            verifySameEntities(expected, store.getAll(ForkJoinPool.commonPool()));
+
+            Files.write(directory.resolve("E-25.json"), "corrupt".getBytes());
+            verifyCheckedExceptionThrown(() -> store.getAll(), PersistenceException.class, "Error retrieving every Entity");
+            verifyCheckedExceptionThrown(() -> store.getAll(executor), PersistenceException.class, "Error retrieving every Entity");
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Verifies that entities can be streamed and paged.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void bulkReads()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(BULK_DIR).toString();
+        verifyBulkReads(new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class), () -> new NamedEntity("bulk"));
+    }
+
+    /**
+     * Verifies the batch operations.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void batchOperations()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(BATCH_DIR).toString();
+        AtomicInteger count = new AtomicInteger();
+        verifyBatchOperations(new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class),
+                              () -> new NamedEntity("batch" + count.incrementAndGet()));
+    }
+
+    /**
+     * Verifies that atomic writes replace entities without leaving
+     * temporary files behind.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void durableWrites()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(DURABLE_DIR);
+        IEntityStore<NamedEntity> store = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class,
+                                                                new DiskStoreOptions().durability(Durability.ATOMIC));
+        verifyBasicStorage(store, new NamedEntity("durable"));
+        IEntityStore<NamedEntity> batch = new EntityDiskStore<>(directory.toString(), "Entity", "B", NamedEntity.class,
+                                                                new DiskStoreOptions().durability(Durability.ATOMIC));
+        AtomicInteger count = new AtomicInteger();
+        verifyBatchOperations(batch, () -> new NamedEntity("durable" + count.incrementAndGet()));
+        try (Stream<Path> files = Files.list(directory))
+        {
+            Assert.assertEquals(0, files.filter(file -> file.getFileName().toString().endsWith(".tmp")).count());
+        }
+    }
+
+    /**
+     * Verifies that concurrent writers share directory forces.
+     * 
+     * @throws Exception error creating the entities
+     */
+    @Test
+    public void groupCommit()
+        throws Exception
+    {
+        String directory = sRoot.resolve(GROUP_DIR).toString();
+        EntityDiskStore<NamedEntity> store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class,
+                                                                   new DiskStoreOptions().codec(EntityCodecs.COMPACT_JSON).durability(Durability.GROUP_COMMIT));
+        final int threads = 8;
+        final int perThread = 10;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+            {
+                writers.add(executor.submit(() -> {
+                    for (int j = 0; j < perThread; j++)
+                    {
+                        store.create(new NamedEntity("group"));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> writer : writers)
+            {
+                writer.get();
+            }
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        Assert.assertEquals(threads * perThread, store.getAll().size());
+        Assert.assertTrue(store.getGroupCommitCount() > 0);
+        Assert.assertTrue(store.getGroupCommitCount() < threads * perThread);
+
+        // A batch shares a single group commit.
+        long commits = store.getGroupCommitCount();
+        List<NamedEntity> batch = new ArrayList<>();
+        for (int i = 0; i < perThread; i++)
+        {
+            batch.add(new NamedEntity("batch"));
+        }
+        store.createAll(batch);
+        Assert.assertEquals(commits + 1, store.getGroupCommitCount());
+    }
+
+    /**
+     * Verifies that concurrent writers never share an ID and that readers
+     * never see a partially written entity, even when it is overwritten
+     * in place.
+     * 
+     * @throws Exception error accessing the entities
+     */
+    @Test
+    public void concurrentAccess()
+        throws Exception
+    {
+        String directory = sRoot.resolve(CONCURRENT_DIR).toString();
+        IEntityStore<NamedEntity> store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        NamedEntity shared = store.create(new NamedEntity("shared"));
+        final int threads = 8;
+        final int perThread = 50;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try
+        {
+            List<Future<Set<Integer>>> workers = new ArrayList<>();
+            for (int i = 0; i < threads; i++)
+            {
+                String name = "worker" + i;
+                workers.add(executor.submit(() -> {
+                    Set<Integer> ids = new HashSet<>();
+                    for (int j = 0; j < perThread; j++)
+                    {
+                        ids.add(store.create(new NamedEntity(name)).getId());
+                        store.update(new NamedEntity(shared.getId(), name));
+                        Assert.assertTrue(store.get(shared.getId()).getKey().startsWith("worker"));
+                    }
+                    return ids;
+                }));
+            }
+            Set<Integer> ids = new HashSet<>();
+            for (Future<Set<Integer>> worker : workers)
+            {
+                ids.addAll(worker.get());
+            }
+            Assert.assertEquals(threads * perThread, ids.size());
+        }
+        finally
+        {
+            executor.shutdown();
+        }
+        Assert.assertEquals(threads * perThread + 1, store.getAll().size());
+    }
+
+    /**
+     * Verifies that entities can be stored in shards and
+     * that stores can be migrated between layouts.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void shardedLayout()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(SHARDED_DIR);
+        IEntityStore<NamedEntity> flat = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        List<NamedEntity> entities = new ArrayList<>();
+        for (int i = 1; i <= 300; i++)
+        {
+            entities.add(new NamedEntity("sharded" + i));
+        }
+        flat.createAll(entities);
+
+        Assert.assertEquals(300, EntityDiskStore.migrate(directory.toString(), "E", DiskLayout.SHARDED));
+        Assert.assertEquals(true, Files.exists(directory.resolve("2c").resolve("01").resolve("E-300.json")));
+        Assert.assertEquals(false, Files.exists(directory.resolve("E-300.json")));
+
+        IEntityStore<NamedEntity> sharded = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class,
+                                                                  new DiskStoreOptions().durability(Durability.ATOMIC).layout(DiskLayout.SHARDED));
+        Assert.assertEquals(300, sharded.getAll().size());
+        Assert.assertEquals("sharded257", sharded.get(257).getKey());
+        Assert.assertEquals(301, sharded.create(new NamedEntity("sharded301")).getId());
+        sharded.delete(1);
+        Assert.assertEquals(2, sharded.getRange(1, 2).get(0).getId());
+
+        Assert.assertEquals(300, EntityDiskStore.migrate(directory.toString(), "E", DiskLayout.FLAT));
+        try (Stream<Path> files = Files.list(directory))
+        {
+            Assert.assertEquals(0, files.filter(Files::isDirectory).count());
+        }
+        Assert.assertEquals(300, flat.getAll().size());
+    }
+
+    /**
+     * Verifies that a valid checkpoint is used in place of scanning
+     * the store and that an invalid one is ignored.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void checkpoint()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(CHECKPOINT_DIR);
+        EntityDiskStore<NamedEntity> store = openCheckpointed(directory);
+        for (int i = 1; i <= 5; i++)
+        {
+            store.create(new NamedEntity("checkpoint" + i));
+        }
+        store.delete(5);
+        store.close();
+        Assert.assertEquals(true, Files.exists(directory.resolve("E.checkpoint")));
+
+        // Only the checkpoint knows that ID 5 was used.
+        store = openCheckpointed(directory);
+        Assert.assertEquals(4, store.getAll().size());
+        Assert.assertEquals(6, store.create(new NamedEntity("checkpoint6")).getId());
+        store.close();
+
+        // Changes made without checkpointing invalidate the checkpoint.
+        IEntityStore<NamedEntity> other = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        Assert.assertEquals(7, other.create(new NamedEntity("checkpoint7")).getId());
+        store = openCheckpointed(directory);
+        Assert.assertEquals(6, store.getAll().size());
+
+        // Checkpointed stores do not see other processes' changes, so cannot be watched.
+        EntityDiskStore<NamedEntity> unwatchable = store;
+        verifyCheckedExceptionThrown(() -> unwatchable.watch(change -> {}), IllegalStateException.class, "Checkpointed stores cannot be watched: Entity");
+
+        // A corrupt checkpoint is ignored.
+        Files.write(directory.resolve("E.checkpoint"), "corrupt".getBytes());
+        store = openCheckpointed(directory);
+        Assert.assertEquals(6, store.getAll().size());
+    }
+
+    /**
+     * Opens a checkpointed store in the given directory.
+     * 
+     * @param directory the store's directory
+     * 
+     * @return The store.
+     */
+    private static EntityDiskStore<NamedEntity> openCheckpointed(Path directory)
+    {
+        return new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class,
+                                     new DiskStoreOptions().checkpoint(true));
+    }
+
+    /**
+     * Verifies that updates are checked against the stored version.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void versioning()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(VERSION_DIR).toString();
+        verifyVersioning(new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class), () -> new NamedEntity("version"));
+    }
+
+    /**
+     * Verifies that snapshots are isolated from later writes.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void snapshots()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(ISOLATION_DIR).toString();
+        IEntityStore<NamedEntity> store = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        for (int i = 1; i <= 3; i++)
+        {
+            store.create(new NamedEntity("snapshot" + i));
+        }
+        Map<Integer, NamedEntity> before = store.getAll();
+
+        try (IEntitySnapshot<NamedEntity> snapshot = store.snapshot())
+        {
+            store.update(new NamedEntity(1, "updated"));
+            store.delete(2);
+            store.create(new NamedEntity("snapshot4"));
+
+            verifySameEntities(before, snapshot.getAll());
+            Assert.assertEquals("snapshot2", snapshot.get(2).getKey());
+            verifyCheckedExceptionThrown(() -> snapshot.get(4), PersistenceException.class, "Error accessing Entity: 4");
+            try (Stream<NamedEntity> entities = snapshot.stream())
+            {
+                Assert.assertEquals("snapshot1 snapshot2 snapshot3", entities.map(NamedEntity::getKey).reduce((a, b) -> a + " " + b).get());
+            }
+
+            // The store itself and newer snapshots see the writes.
+            Assert.assertEquals(3, store.getAll().size());
+            try (IEntitySnapshot<NamedEntity> later = store.snapshot())
+            {
+                store.delete(3);
+                Assert.assertEquals("updated", later.get(1).getKey());
+                Assert.assertEquals(3, later.getAll().size());
+                Assert.assertEquals(3, snapshot.getAll().size());
+            }
+        }
+        Map<Integer, NamedEntity> after = store.getAll();
+        Assert.assertEquals(2, after.size());
+        Assert.assertEquals("updated", after.get(1).getKey());
+        Assert.assertEquals("snapshot4", after.get(4).getKey());
+    }
+
+    /**
+     * Verifies that stores can be exported to and imported from archives.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void archives()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(ARCHIVE_DIR);
+        IEntityStore<NamedEntity> store = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        List<NamedEntity> entities = new ArrayList<>();
+        for (int i = 1; i <= EntityArchive.BATCH_SIZE + 5; i++)
+        {
+            entities.add(new NamedEntity("archive" + i));
+        }
+        store.createAll(entities);
+        store.deleteAll(new int[] { 2, 3 });
+        Map<Integer, NamedEntity> expected = store.getAll();
+
+        String[] options = { "plain", "compressed", "checksummed", "both" };
+        for (int i = 0; i < options.length; i++)
+        {
+            Path archive = directory.resolve(options[i] + ".archive");
+            boolean compress = (i & 1) != 0;
+            boolean checksum = (i & 2) != 0;
+            Assert.assertEquals(expected.size(), store.exportTo(archive, compress, checksum));
+
+            // Disk stores keep the archived IDs.
+            IEntityStore<NamedEntity> copy = new EntityDiskStore<>(directory.toString(), "Entity", "C" + i, NamedEntity.class);
+            Assert.assertEquals(expected.size(), copy.importFrom(archive, NamedEntity.class));
+            verifySameEntities(expected, copy.getAll());
+            Assert.assertEquals(EntityArchive.BATCH_SIZE + 6, copy.create(new NamedEntity("next")).getId());
+        }
+
+        // Other stores go through a snapshot and create the entities afresh.
+        Path archive = directory.resolve("generic.archive");
+        IEntityStore<NamedEntity> cached = new CachingEntityStore<>(store, 10);
+        Assert.assertEquals(expected.size(), cached.exportTo(archive, true, true));
+        IEntityStore<NamedEntity> copy = new CachingEntityStore<>(new EntityDiskStore<>(directory.toString(), "Entity", "G", NamedEntity.class), 10);
+        Assert.assertEquals(expected.size(), copy.importFrom(archive, NamedEntity.class));
+        Assert.assertEquals("archive4", copy.get(2).getKey());
+
+        // A corrupt archive is rejected before anything is imported.
+        byte[] data = Files.readAllBytes(directory.resolve("checksummed.archive"));
+        data[data.length / 2] ^= 0x01;
+        Files.write(archive, data);
+        IEntityStore<NamedEntity> target = new EntityDiskStore<>(directory.toString(), "Entity", "X", NamedEntity.class);
+        verifyCheckedExceptionThrown(() -> target.importFrom(archive, NamedEntity.class), PersistenceException.class, "Error importing from " + archive);
+        Assert.assertEquals(0, target.getAll().size());
+
+        Files.write(archive, "corrupt".getBytes());
+        verifyCheckedExceptionThrown(() -> target.importFrom(archive, NamedEntity.class), PersistenceException.class, "Error importing from " + archive);
+
+        // An archive whose IDs are already in use is rejected before anything is imported.
+        Path plain = directory.resolve("plain.archive");
+        IEntityStore<NamedEntity> occupied = new EntityDiskStore<>(directory.toString(), "Entity", "O", NamedEntity.class);
+        occupied.create(new NamedEntity("mine"));
+        occupied.create(new NamedEntity("theirs"));
+        occupied.delete(2);
+        verifyCheckedExceptionThrown(() -> occupied.importFrom(plain, NamedEntity.class), PersistenceException.class, "Error importing from " + plain + ", ID in use: 1");
+        Assert.assertEquals(1, occupied.getAll().size());
+        Assert.assertEquals("mine", occupied.get(1).getKey());
+
+        // A failed export leaves the existing archive as it was.
+        byte[] before = Files.readAllBytes(plain);
+        verifyCheckedExceptionThrown(() -> EntityArchive.export(plain, false, false, records -> {
+            EntityArchive.writeRecord(records, new byte[] { '{', '}' });
+            throw new IOException("failed");
+        }), PersistenceException.class, "Error exporting to " + plain);
+        Assert.assertArrayEquals(before, Files.readAllBytes(plain));
+        try (Stream<Path> files = Files.list(directory))
+        {
+            Assert.assertEquals(0, files.filter(file -> file.getFileName().toString().endsWith(".tmp")).count());
+        }
+    }
+
+    /**
+     * Verifies that deleted entities disappear at once, that their files
+     * are reclaimed later and that their IDs are never allocated again.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void tombstones()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(TOMBSTONE_DIR);
+        EntityDiskStore<NamedEntity> store = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        List<NamedEntity> entities = new ArrayList<>();
+        for (int i = 1; i <= 5; i++)
+        {
+            entities.add(new NamedEntity("tombstone" + i));
+        }
+        store.createAll(entities);
+
+        store.delete(5);
+        store.delete(5);
+        store.deleteAll(new int[] { 1, 2 });
+        Assert.assertEquals("[3, 4]", Arrays.toString(store.getAllIds()));
+        Assert.assertEquals(2, store.getAll().size());
+        verifyCheckedExceptionThrown(() -> store.get(5), PersistenceException.class, "Error accessing Entity: 5");
+
+        // Writing a deleted entity again restores it.
+        store.put(new NamedEntity(1, "restored"));
+        Assert.assertEquals("restored", store.get(1).getKey());
+
+        store.reclaim();
+        Assert.assertEquals(0, store.reclaim());
+        Assert.assertEquals(true, Files.exists(directory.resolve("E-01.json")));
+        Assert.assertEquals(false, Files.exists(directory.resolve("E-02.json")));
+        Assert.assertEquals(false, Files.exists(directory.resolve("E-05.json")));
+        store.close();
+
+        // The highest deleted ID is remembered after its file has gone.
+        IEntityStore<NamedEntity> reopened = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        Assert.assertEquals("[1, 3, 4]", Arrays.toString(reopened.getAllIds()));
+        Assert.assertEquals(6, reopened.create(new NamedEntity("tombstone6")).getId());
+    }
+
+    /**
+     * Verifies that rewriting a journal shared by several stores keeps the
+     * records the other stores have appended.
+     * 
+     * @throws IOException file error
+     */
+    @Test
+    public void sharedTombstones()
+        throws IOException
+    {
+        Path file = sRoot.resolve(TOMBSTONE_DIR).resolve("S.tombstones");
+        TombstoneJournal first = new TombstoneJournal(file, true);
+        TombstoneJournal second = new TombstoneJournal(file, true);
+        first.delete(1, 2);
+        Assert.assertEquals("[1, 2]", Arrays.toString(second.getPending()));
+
+        // The second store deletes after the first store has read the journal.
+        second.delete(9);
+        first.reclaimed(1);
+        first.compact();
+        Assert.assertEquals("[2, 9]", Arrays.toString(first.getPending()));
+        Assert.assertEquals(9, first.getHighest());
+
+        // Appends after the rewrite go to the new journal.
+        second.delete(4);
+        second.close();
+        first.close();
+        TombstoneJournal reopened = new TombstoneJournal(file, true);
+        Assert.assertEquals("[2, 4, 9]", Arrays.toString(reopened.getPending()));
+        Assert.assertEquals(9, reopened.getHighest());
+    }
+
+    /**
+     * Verifies that a failed background reclamation is reported and retried.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     * @throws InterruptedException interrupted while waiting for the reclaimer
+     */
+    @Test
+    public void reclaimRetries()
+        throws PersistenceException, IOException, InterruptedException
+    {
+        Path directory = sRoot.resolve(RECLAIM_DIR);
+        EntityDiskStore<NamedEntity> store = new EntityDiskStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        store.create(new NamedEntity("reclaim"));
+
+        // A non-empty directory in place of the entity's file cannot be removed.
+        Path file = directory.resolve("E-01.json");
+        store.delete(1);
+        Files.delete(file);
+        Files.createDirectory(file);
+        Files.createFile(file.resolve("blocker"));
+        for (int i = 0; (i < 100) && (store.getReclaimFailure() == null); i++)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertNotNull(store.getReclaimFailure());
+
+        Files.delete(file.resolve("blocker"));
+        for (int i = 0; (i < 100) && (store.getReclaimFailure() != null); i++)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(false, Files.exists(file));
+        Assert.assertEquals(null, store.getReclaimFailure());
+    }
+
+    /**
+     * Verifies that a watch sees the changes made by another store
+     * sharing the same directory, eg. in another process.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws InterruptedException interrupted while waiting for a change
+     */
+    @Test
+    public void watching()
+        throws PersistenceException, InterruptedException
+    {
+        String flat = sRoot.resolve(WATCH_DIR).resolve("flat").toString();
+        verifyWatch(new EntityDiskStore<>(flat, "Entity", "E", NamedEntity.class),
+                    new EntityDiskStore<>(flat, "Entity", "E", NamedEntity.class),
+                    () -> new NamedEntity("watch"));
+
+        // New shards are watched as they are created.
+        String sharded = sRoot.resolve(WATCH_DIR).resolve("sharded").toString();
+        DiskStoreOptions options = new DiskStoreOptions().codec(EntityCodecs.SMILE).durability(Durability.ATOMIC).layout(DiskLayout.SHARDED);
+        verifyWatch(new EntityDiskStore<>(sharded, "Entity", "E", NamedEntity.class, options),
+                    new EntityDiskStore<>(sharded, "Entity", "E", NamedEntity.class, options),
+                    () -> new NamedEntity("watch"));
+    }
+
+    /**
+     * Verifies the two given entity maps hold the same entities.
+     * 
+     * @param expected the expected entities
+     * @param actual the actual entities
+     */
+    private static void verifySameEntities(Map<Integer, NamedEntity> expected, Map<Integer, NamedEntity> actual)
+    {
+        Assert.assertEquals(expected.keySet(), actual.keySet());
+        expected.forEach((id, entity) -> Assert.assertEquals(entity.toString(), actual.get(id).toString()));
+    }
 }
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * https://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Exercise the secondary indexes.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "nls", "boxing" })
+public class IndexedPersistenceUnitTest extends AbstractPersistenceUnitTest
+{
+    /** Indexed entity sub-directory. */
+    private static final String INDEX_DIR = "index";
+    /** Concurrent delete sub-directory. */
+    private static final String DELETE_DIR = "query-delete";
+
+    /**
+     * Setup test fixtures and the like before all tests.
+     * 
+     * @throws IOException file error
+     */
+    @BeforeClass
+    public static void setup()
+        throws IOException
+    {
+        Files.createDirectory(sRoot.resolve(INDEX_DIR));
+        Files.createDirectory(sRoot.resolve(DELETE_DIR));
+    }
+
+    /**
+     * Verifies that queries return the requested page of entities and only
+     * read the entities they need.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void queries()
+        throws PersistenceException
+    {
+        Path directory = sRoot.resolve(INDEX_DIR);
+        IEntityStore<Address> disk = new EntityDiskStore<>(directory.toString(), "Address", "Q", Address.class);
+        int[] numbers = { 5, 10, 9, 1, 10, 3 };
+        for (int i = 0; i < numbers.length; i++)
+        {
+            disk.create(new Address(numbers[i], ((i % 2) == 0) ? "High Street" : "Low Street"));
+        }
+        IndexedEntityStore<Address> store = new IndexedEntityStore<>(disk);
+
+        Assert.assertEquals(Arrays.asList(1, 2), ids(store.query(new EntityQuery<Address>().page(0, 2))));
+        Assert.assertEquals(Arrays.asList(6, 5, 4), ids(store.query(new EntityQuery<Address>().orderBy(EntityQuery.Order.ID, true).page(0, 3))));
+        Assert.assertEquals(Arrays.asList(6, 1, 3), ids(store.query(new EntityQuery<Address>().orderBy(EntityQuery.Order.KEY, false).page(1, 3))));
+        Assert.assertEquals(Arrays.asList(5, 2), ids(store.query(new EntityQuery<Address>().orderBy(EntityQuery.Order.KEY, true).page(0, 2))));
+        Assert.assertEquals(Arrays.asList(3, 5), ids(store.query(new EntityQuery<Address>().filter(a -> a.getStreet().startsWith("High")).page(1, 5))));
+        Assert.assertEquals(Arrays.asList(5, 2), ids(store.query(new EntityQuery<Address>().withKey(10).orderBy(EntityQuery.Order.ID, true))));
+        Assert.assertEquals(Arrays.asList(5), ids(store.query(new EntityQuery<Address>().withKey(10).filter(a -> a.getStreet().startsWith("High")))));
+        Assert.assertEquals(0, store.query(new EntityQuery<Address>().page(6, 2)).size());
+        Assert.assertEquals(0, store.query(new EntityQuery<Address>().page(0, 0)).size());
+
+        // Only the entities on the page are read.
+        CachingEntityStore<Address> cached = new CachingEntityStore<>(disk, 100);
+        Assert.assertEquals(Arrays.asList(3, 4), ids(cached.query(new EntityQuery<Address>().page(2, 2))));
+        Assert.assertEquals(2, cached.getMisses());
+    }
+
+    /**
+     * Verifies that a query and the default stream skip an entity
+     * deleted while they run.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void deleteDuringQuery()
+        throws PersistenceException
+    {
+        Path directory = sRoot.resolve(DELETE_DIR);
+        IEntityStore<Address> disk = new EntityDiskStore<>(directory.toString(), "Address", "D", Address.class);
+        for (int i = 1; i <= 5; i++)
+        {
+            disk.create(new Address(i, "Side Street"));
+        }
+        // Deletes the third entity once five IDs have been listed.
+        IEntityStore<Address> store = new IEntityStore<Address>()
+        {
+            @Override
+            public int[] getAllIds()
+                throws PersistenceException
+            {
+                int[] ids = disk.getAllIds();
+                if (ids.length == 5)
+                {
+                    disk.delete(ids[2]);
+                }
+                return ids;
+            }
+
+            @Override
+            public Map<Integer, Address> getAll()
+                throws PersistenceException
+            {
+                return disk.getAll();
+            }
+
+            @Override
+            public Address create(Address entity)
+                throws PersistenceException
+            {
+                return disk.create(entity);
+            }
+
+            @Override
+            public Address get(int id)
+                throws PersistenceException
+            {
+                return disk.get(id);
+            }
+
+            @Override
+            public void update(Address entity)
+                throws PersistenceException
+            {
+                disk.update(entity);
+            }
+
+            @Override
+            public void delete(int id)
+                throws PersistenceException
+            {
+                disk.delete(id);
+            }
+        };
+
+        Assert.assertEquals(Arrays.asList(1, 2, 4, 5), ids(store.query(new EntityQuery<Address>().page(0, 10))));
+        Assert.assertArrayEquals(new int[] { 1, 2, 4, 5 }, disk.getAllIds());
+
+        disk.create(new Address(6, "Side Street"));
+        try (Stream<Address> entities = store.stream())
+        {
+            Assert.assertEquals(Arrays.asList(1, 2, 5, 6), entities.map(AbstractEntity::getId).collect(Collectors.toList()));
+        }
+    }
+
+    /**
+     * Verifies that an index ignores entities indexed out of order.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void versionOrder()
+        throws PersistenceException
+    {
+        EntityIndex<NamedEntity> index = new EntityIndex<>(IndexedEntityStore.KEY_INDEX, AbstractEntity::getKey, EntityCodecs.JSON_WRITER);
+        NamedEntity later = new NamedEntity(1, "later");
+        later.setVersion(3);
+        NamedEntity earlier = new NamedEntity(1, "earlier");
+        earlier.setVersion(2);
+
+        index.add(later);
+        index.add(earlier);
+        Assert.assertArrayEquals(new int[] { 1 }, index.find("later"));
+        Assert.assertEquals(0, index.find("earlier").length);
+
+        index.remove(1);
+        index.add(earlier);
+        Assert.assertArrayEquals(new int[] { 1 }, index.find("earlier"));
+    }
+
+    /**
+     * Verifies that the indexes are built, maintained and persisted correctly.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void indexes()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(INDEX_DIR);
+        Path indexFile = directory.resolve("A.idx");
+        IEntityStore<Address> disk = new EntityDiskStore<>(directory.toString(), "Address", "A", Address.class);
+        disk.create(new Address(1, "High Street"));
+        disk.create(new Address(2, "Low Street"));
+        disk.create(new Address(1, "Low Street"));
+        Assert.assertEquals(Arrays.asList(1, 3), ids(disk.findByKey(1)));
+
+        IndexedEntityStore<Address> store = new IndexedEntityStore<>(disk, indexFile);
+        store.addIndex("street", Address::getStreet);
+        Assert.assertEquals(Arrays.asList(1, 3), ids(store.findByKey(1)));
+        Assert.assertEquals(Arrays.asList(2, 3), ids(store.find("street", "Low Street")));
+
+        store.create(new Address(2, "High Street"));
+        store.update(new Address(3, 3, "Low Street"));
+        store.delete(1);
+        verifyIndexes(store);
+        verifyCheckedExceptionThrown(() -> store.findIds("missing", 1), IllegalArgumentException.class, "Unknown index: missing");
+
+        store.close();
+        Assert.assertTrue(Files.exists(indexFile));
+
+        IndexedEntityStore<Address> reopened = new IndexedEntityStore<>(disk, indexFile);
+        reopened.addIndex("street", Address::getStreet);
+        verifyIndexes(reopened);
+        Assert.assertFalse(Files.exists(indexFile));
+
+        // Entities deleted behind the indexes' back are dropped when found.
+        disk.delete(4);
+        Assert.assertEquals(Arrays.asList(2), ids(reopened.findByKey(2)));
+        Assert.assertArrayEquals(new int[] { 2 }, reopened.findIds(IndexedEntityStore.KEY_INDEX, 2));
+        Assert.assertEquals(Arrays.asList(), ids(reopened.find("street", "High Street")));
+        reopened.close();
+    }
+
+    /**
+     * Verifies the indexes after the updates in the test.
+     * 
+     * @param store the store to verify
+     * 
+     * @throws PersistenceException persistence error
+     */
+    private static void verifyIndexes(IndexedEntityStore<Address> store)
+        throws PersistenceException
+    {
+        Assert.assertEquals(Arrays.asList(), ids(store.findByKey(1)));
+        Assert.assertEquals(Arrays.asList(2, 4), ids(store.findByKey(2)));
+        Assert.assertEquals(Arrays.asList(3), ids(store.findByKey(3)));
+        Assert.assertEquals(Arrays.asList(4), ids(store.find("street", "High Street")));
+        Assert.assertEquals(Arrays.asList(2, 3), ids(store.find("street", "Low Street")));
+    }
+
+    /**
+     * Extracts the IDs of the given entities.
+     * 
+     * @param entities the entities
+     * 
+     * @return Their IDs.
+     */
+    private static List<Integer> ids(List<Address> entities)
+    {
+        return entities.stream().map(AbstractEntity::getId).collect(Collectors.toList());
+    }
+}
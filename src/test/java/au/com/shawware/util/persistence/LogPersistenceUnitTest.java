@@ -0,0 +1,352 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * https://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Exercise the log-based persistence.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "nls", "boxing" })
+public class LogPersistenceUnitTest extends AbstractPersistenceUnitTest
+{
+    /** Persisted log sub-directory. */
+    private static final String LOG_DIR = "log";
+    /** Compacted log sub-directory. */
+    private static final String COMPACT_DIR = "compact";
+    /** Re-opened log sub-directory. */
+    private static final String REOPEN_DIR = "reopen";
+    /** Torn log sub-directory. */
+    private static final String TORN_DIR = "torn";
+    /** Bulk read sub-directory. */
+    private static final String BULK_DIR = "bulk";
+    /** Batch operation sub-directory. */
+    private static final String BATCH_DIR = "batch";
+    /** Versioning sub-directory. */
+    private static final String VERSION_DIR = "version";
+    /** Watch sub-directory. */
+    private static final String WATCH_DIR = "watch";
+    /** Failing watch sub-directory. */
+    private static final String FAILING_DIR = "failing";
+
+    /**
+     * Setup test fixtures and the like before all tests.
+     * 
+     * @throws IOException file error
+     */
+    @BeforeClass
+    public static void setup()
+        throws IOException
+    {
+        Files.createDirectories(sRoot.resolve(LOG_DIR).resolve("entity"));
+        Files.createDirectory(sRoot.resolve(COMPACT_DIR));
+        Files.createDirectory(sRoot.resolve(REOPEN_DIR));
+        Files.createDirectory(sRoot.resolve(TORN_DIR));
+        Files.createDirectory(sRoot.resolve(BULK_DIR));
+        Files.createDirectory(sRoot.resolve(BATCH_DIR));
+        Files.createDirectory(sRoot.resolve(VERSION_DIR));
+        Files.createDirectory(sRoot.resolve(WATCH_DIR));
+        Files.createDirectory(sRoot.resolve(FAILING_DIR));
+    }
+
+    /**
+     * Verifies that entities can be stored and retrieved correctly.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void basicChecks()
+        throws PersistenceException
+    {
+        PersistenceFactory factory = PersistenceFactory.getFactory(sRoot.resolve(LOG_DIR).toString());
+        IEntityStore<NamedEntity> store = factory.getStore(NamedEntity.class, "Named", StoreType.LOG);
+        Assert.assertEquals(EntityLogStore.class, store.getClass());
+        verifyBasicStorage(store, new NamedEntity("David"));
+    }
+
+    /**
+     * Verifies that compaction preserves the live entities and that
+     * the log is replayed correctly after the store is re-opened.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void compaction()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(COMPACT_DIR).toString();
+        EntityLogStore<NamedEntity> store = new EntityLogStore<>(directory, "Entity", "E", NamedEntity.class, 128, 100);
+        for (int i = 1; i <= 20; i++)
+        {
+            Assert.assertEquals(i, store.create(new NamedEntity("entity" + i)).getId());
+        }
+        for (int i = 1; i <= 20; i += 2)
+        {
+            store.update(new NamedEntity(i, "updated" + i));
+        }
+        store.delete(4);
+        store.delete(20);
+        Assert.assertTrue(store.getSegmentCount() > 2);
+
+        store.compact();
+        Assert.assertEquals(2, store.getSegmentCount());
+        verifyCompactedEntities(store.getAll());
+        store.close();
+
+        EntityLogStore<NamedEntity> reopened = new EntityLogStore<>(directory, "Entity", "E", NamedEntity.class, 128, 100);
+        verifyCompactedEntities(reopened.getAll());
+        Assert.assertEquals("updated3", reopened.get(3).getKey());
+        Assert.assertEquals(21, reopened.create(new NamedEntity("entity21")).getId());
+        verifyCheckedExceptionThrown(() -> reopened.get(4), PersistenceException.class, "Error accessing Entity: 4");
+        reopened.close();
+    }
+
+    /**
+     * Verifies that a store re-opened by using it after it has been closed
+     * still compacts in the background and keeps every entity.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     * @throws InterruptedException interrupted while waiting for a compaction
+     */
+    @Test
+    public void compactionAfterClose()
+        throws PersistenceException, IOException, InterruptedException
+    {
+        String directory = sRoot.resolve(REOPEN_DIR).toString();
+        EntityLogStore<NamedEntity> store = new EntityLogStore<>(directory, "Entity", "E", NamedEntity.class, 128, 2);
+        for (int round = 0; round < 3; round++)
+        {
+            for (int i = 0; i < 10; i++)
+            {
+                store.create(new NamedEntity("round" + round));
+            }
+            // Closing waits for any compaction already running.
+            store.close();
+        }
+        Assert.assertEquals(30, store.getAll().size());
+        // Uncompacted, the records would fill around fifteen segments.
+        for (int i = 0; (i < 200) && (store.getSegmentCount() >= 10); i++)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(store.getSegmentCount() < 10);
+        Assert.assertEquals("round2", store.get(30).getKey());
+        store.close();
+    }
+
+    /**
+     * Verifies the entities remaining after the compaction test.
+     * 
+     * @param entities the entities to verify
+     */
+    private static void verifyCompactedEntities(Map<Integer, NamedEntity> entities)
+    {
+        Assert.assertEquals(18, entities.size());
+        Assert.assertFalse(entities.containsKey(4));
+        Assert.assertFalse(entities.containsKey(20));
+        Assert.assertEquals("updated1", entities.get(1).getKey());
+        Assert.assertEquals("entity2", entities.get(2).getKey());
+    }
+
+    /**
+     * Verifies that a torn record at the end of the log is discarded.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void tornRecord()
+        throws PersistenceException, IOException
+    {
+        Path directory = sRoot.resolve(TORN_DIR);
+        EntityLogStore<NamedEntity> store = new EntityLogStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        store.create(new NamedEntity("one"));
+        store.create(new NamedEntity("two"));
+        store.close();
+
+        Files.write(directory.resolve("E-000001.log"), new byte[] { 1, 0, 0, 0, 3, 0, 0 }, StandardOpenOption.APPEND);
+
+        store = new EntityLogStore<>(directory.toString(), "Entity", "E", NamedEntity.class);
+        Assert.assertEquals(2, store.getAll().size());
+        Assert.assertEquals(3, store.create(new NamedEntity("three")).getId());
+        Assert.assertEquals("three", store.get(3).getKey());
+        store.close();
+    }
+
+    /**
+     * Verifies that entities can be streamed and paged.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void bulkReads()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(BULK_DIR).toString();
+        try (EntityLogStore<NamedEntity> store = new EntityLogStore<>(directory, "Entity", "E", NamedEntity.class))
+        {
+            verifyBulkReads(store, () -> new NamedEntity("bulk"));
+        }
+    }
+
+    /**
+     * Verifies the batch operations.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void batchOperations()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(BATCH_DIR).toString();
+        AtomicInteger count = new AtomicInteger();
+        try (EntityLogStore<NamedEntity> store = new EntityLogStore<>(directory, "Entity", "E", NamedEntity.class))
+        {
+            verifyBatchOperations(store, () -> new NamedEntity("batch" + count.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Verifies that updates are checked against the stored version.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void versioning()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(VERSION_DIR).toString();
+        try (EntityLogStore<NamedEntity> store = new EntityLogStore<>(directory, "Entity", "E", NamedEntity.class))
+        {
+            verifyVersioning(store, () -> new NamedEntity("version"));
+        }
+    }
+
+    /**
+     * Verifies that a store without file system notifications is watched by polling.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     * @throws InterruptedException interrupted while waiting for a change
+     */
+    @Test
+    public void watching()
+        throws PersistenceException, IOException, InterruptedException
+    {
+        String directory = sRoot.resolve(WATCH_DIR).toString();
+        try (EntityLogStore<NamedEntity> store = new EntityLogStore<>(directory, "Entity", "E", NamedEntity.class))
+        {
+            verifyWatch(store, store, () -> new NamedEntity("watch"));
+
+            // The listener's exceptions are recorded and do not stop the watch.
+            try (IEntityWatch<NamedEntity> watch = store.watch(change -> {
+                throw new IllegalStateException("Failed: " + change.getId());
+            }))
+            {
+                NamedEntity first = store.create(new NamedEntity("failure1"));
+                waitForListenerFailures(watch, 1);
+                Assert.assertEquals("Failed: " + first.getId(), watch.getListenerFailure().getMessage());
+                NamedEntity second = store.create(new NamedEntity("failure2"));
+                waitForListenerFailures(watch, 2);
+                Assert.assertEquals("failure2", watch.get(second.getId()).getKey());
+            }
+        }
+    }
+
+    /**
+     * Verifies that a polling watch survives reads that fail, applying
+     * the changes that can still be read and recording the failure.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     * @throws InterruptedException interrupted while waiting for a change
+     */
+    @Test
+    public void watchingFailures()
+        throws PersistenceException, IOException, InterruptedException
+    {
+        String directory = sRoot.resolve(FAILING_DIR).toString();
+        try (EntityLogStore<NamedEntity> store = new EntityLogStore<NamedEntity>(directory, "Entity", "E", NamedEntity.class)
+        {
+            @Override
+            public Map<Integer, NamedEntity> getMany(int[] ids)
+            {
+                throw new IllegalStateException("getMany");
+            }
+
+            @Override
+            public NamedEntity get(int id)
+                throws PersistenceException
+            {
+                NamedEntity entity = super.get(id);
+                if (entity.getKey().equals("unreadable"))
+                {
+                    throw new IllegalStateException("Unreadable: " + id);
+                }
+                return entity;
+            }
+        })
+        {
+            try (IEntityWatch<NamedEntity> watch = store.watch(change -> {}))
+            {
+                NamedEntity bad = store.create(new NamedEntity("unreadable"));
+                NamedEntity good = store.create(new NamedEntity("readable"));
+                for (int i = 0; (i < 200) && (watch.get(good.getId()) == null); i++)
+                {
+                    Thread.sleep(50);
+                }
+                Assert.assertEquals("readable", watch.get(good.getId()).getKey());
+                Assert.assertNull(watch.get(bad.getId()));
+                Assert.assertEquals("Unreadable: " + bad.getId(), watch.getReadFailure().getMessage());
+
+                // The failed change is retried and applied once readable.
+                store.delete(bad.getId());
+                for (int i = 0; (i < 200) && (watch.getReadFailure() != null); i++)
+                {
+                    Thread.sleep(50);
+                }
+                Assert.assertNull(watch.getReadFailure());
+            }
+        }
+    }
+
+    /**
+     * Waits for the given watch's listener to have failed the given
+     * number of times.
+     * 
+     * @param watch the watch
+     * @param failures the number of failures
+     * 
+     * @throws InterruptedException interrupted while waiting
+     */
+    private static void waitForListenerFailures(IEntityWatch<?> watch, int failures)
+        throws InterruptedException
+    {
+        for (int i = 0; (i < 200) && (watch.getListenerFailures() < failures); i++)
+        {
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(failures, watch.getListenerFailures());
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * https://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Exercise the memory-mapped persistence.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "nls", "boxing" })
+public class MappedPersistenceUnitTest extends AbstractPersistenceUnitTest
+{
+    /** Persisted mapped sub-directory. */
+    private static final String MAPPED_DIR = "mapped";
+    /** Grown mapped sub-directory. */
+    private static final String GROWTH_DIR = "growth";
+    /** Bulk read sub-directory. */
+    private static final String BULK_DIR = "bulk";
+    /** Batch operation sub-directory. */
+    private static final String BATCH_DIR = "batch";
+    /** Versioning sub-directory. */
+    private static final String VERSION_DIR = "version";
+
+    /**
+     * Setup test fixtures and the like before all tests.
+     * 
+     * @throws IOException file error
+     */
+    @BeforeClass
+    public static void setup()
+        throws IOException
+    {
+        Files.createDirectories(sRoot.resolve(MAPPED_DIR).resolve("address"));
+        Files.createDirectory(sRoot.resolve(GROWTH_DIR));
+        Files.createDirectory(sRoot.resolve(BULK_DIR));
+        Files.createDirectory(sRoot.resolve(BATCH_DIR));
+        Files.createDirectory(sRoot.resolve(VERSION_DIR));
+    }
+
+    /**
+     * Verifies that entities can be stored and retrieved correctly.
+     * 
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void basicChecks()
+        throws PersistenceException
+    {
+        PersistenceFactory factory = PersistenceFactory.getFactory(sRoot.resolve(MAPPED_DIR).toString());
+        IEntityStore<Address> store = factory.getStore(Address.class, null, StoreType.MAPPED);
+        Assert.assertEquals(EntityMappedStore.class, store.getClass());
+        verifyBasicStorage(store, new Address(1, "Main Street"));
+    }
+
+    /**
+     * Verifies that the store grows its index and data regions
+     * correctly and can be re-opened afterwards.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void growth()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(GROWTH_DIR).toString();
+        EntityMappedStore<Address> store = new EntityMappedStore<>(directory, "Address", "A", Address.class);
+        final int count = 1500;
+        for (int i = 1; i <= count; i++)
+        {
+            Assert.assertEquals(i, store.create(new Address(i, "Street " + i)).getId());
+        }
+        for (int round = 0; round < 3; round++)
+        {
+            for (int i = 1; i <= count; i += 3)
+            {
+                store.update(new Address(i, i, "Road " + round));
+            }
+        }
+        store.delete(count);
+        store.delete(2);
+        store.close();
+
+        store = new EntityMappedStore<>(directory, "Address", "A", Address.class);
+        Map<Integer, Address> addresses = store.getAll();
+        Assert.assertEquals(count - 2, addresses.size());
+        Assert.assertEquals("Road 2", addresses.get(1).getStreet());
+        Assert.assertEquals("Street 3", store.get(3).getStreet());
+        Assert.assertFalse(addresses.containsKey(2));
+        Assert.assertEquals(count + 1, store.create(new Address(1, "Last Street")).getId());
+        store.close();
+    }
+
+    /**
+     * Verifies that entities can be streamed and paged.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void bulkReads()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(BULK_DIR).toString();
+        try (EntityMappedStore<Address> store = new EntityMappedStore<>(directory, "Address", "A", Address.class))
+        {
+            verifyBulkReads(store, () -> new Address(1, "Bulk Street"));
+        }
+    }
+
+    /**
+     * Verifies the batch operations.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void batchOperations()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(BATCH_DIR).toString();
+        AtomicInteger count = new AtomicInteger();
+        try (EntityMappedStore<Address> store = new EntityMappedStore<>(directory, "Address", "A", Address.class))
+        {
+            verifyBatchOperations(store, () -> new Address(count.incrementAndGet(), "Batch Street"));
+        }
+    }
+
+    /**
+     * Verifies that updates are checked against the stored version.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException file error
+     */
+    @Test
+    public void versioning()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(VERSION_DIR).toString();
+        try (EntityMappedStore<Address> store = new EntityMappedStore<>(directory, "Address", "A", Address.class))
+        {
+            verifyVersioning(store, () -> new Address(1, "Version Street"));
+        }
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * https://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Exercise persistence striped across several root directories.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "nls", "boxing" })
+public class StripedPersistenceUnitTest extends AbstractPersistenceUnitTest
+{
+    /** The root sub-directories to stripe across. */
+    private static final List<String> STRIPE_DIRS = Arrays.asList("stripe1", "stripe2", "stripe3");
+    /** Persisted entity sub-directory within each root. */
+    private static final String ENTITY_DIR = "entity";
+
+    /**
+     * Setup test fixtures and the like before all tests.
+     * 
+     * @throws IOException file error
+     */
+    @BeforeClass
+    public static void setup()
+        throws IOException
+    {
+        for (String stripe : STRIPE_DIRS)
+        {
+            Files.createDirectories(sRoot.resolve(stripe).resolve(ENTITY_DIR));
+        }
+    }
+
+    /**
+     * Verifies that the factory spreads entities across its roots by ID.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException error closing the store
+     */
+    @Test
+    public void placement()
+        throws PersistenceException, IOException
+    {
+        List<String> roots = new ArrayList<>();
+        STRIPE_DIRS.forEach(stripe -> roots.add(sRoot.resolve(stripe).toString()));
+        PersistenceFactory factory = PersistenceFactory.getFactory(roots);
+        Assert.assertEquals(roots, factory.getRoots());
+        IEntityStore<NamedEntity> store = factory.getStore(NamedEntity.class, "Named");
+        Assert.assertTrue(store instanceof StripedEntityStore);
+
+        verifyBasicStorage(store, new NamedEntity("striped1"));
+        store.create(new NamedEntity("striped2"));
+        store.create(new NamedEntity("striped3"));
+        Assert.assertEquals(true, Files.exists(sRoot.resolve("stripe2").resolve(ENTITY_DIR).resolve("E-01.json")));
+        Assert.assertEquals(true, Files.exists(sRoot.resolve("stripe3").resolve(ENTITY_DIR).resolve("E-02.json")));
+        Assert.assertEquals(true, Files.exists(sRoot.resolve("stripe1").resolve(ENTITY_DIR).resolve("E-03.json")));
+        Assert.assertEquals(3, store.getAll().size());
+        Assert.assertEquals(2, store.findByKey("striped2").get(0).getId());
+
+        // A new store picks up the highest ID from every stripe.
+        store.delete(1);
+        IEntityStore<NamedEntity> reopened = new StripedEntityStore<>("Entity", openStripes("E"));
+        Assert.assertEquals(4, reopened.create(new NamedEntity("striped4")).getId());
+        ((StripedEntityStore<NamedEntity>)store).close();
+        ((StripedEntityStore<NamedEntity>)reopened).close();
+    }
+
+    /**
+     * Verifies that entities can be streamed and paged in ID order.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException error closing the store
+     */
+    @Test
+    public void bulkReads()
+        throws PersistenceException, IOException
+    {
+        try (StripedEntityStore<NamedEntity> store = new StripedEntityStore<>("Entity", openStripes("B")))
+        {
+            verifyBulkReads(store, () -> new NamedEntity("bulk"));
+        }
+    }
+
+    /**
+     * Verifies the batch operations.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException error closing the store
+     */
+    @Test
+    public void batchOperations()
+        throws PersistenceException, IOException
+    {
+        AtomicInteger count = new AtomicInteger();
+        try (StripedEntityStore<NamedEntity> store = new StripedEntityStore<>("Entity", openStripes("C")))
+        {
+            verifyBatchOperations(store, () -> new NamedEntity("batch" + count.incrementAndGet()));
+        }
+    }
+
+    /**
+     * Verifies that a striped store can be exported and imported.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException error closing the store
+     */
+    @Test
+    public void archives()
+        throws PersistenceException, IOException
+    {
+        Path archive = sRoot.resolve(STRIPE_DIRS.get(0)).resolve("striped.archive");
+        try (StripedEntityStore<NamedEntity> store = new StripedEntityStore<>("Entity", openStripes("A"));
+             StripedEntityStore<NamedEntity> copy = new StripedEntityStore<>("Entity", openStripes("R")))
+        {
+            for (int i = 1; i <= 5; i++)
+            {
+                store.create(new NamedEntity("archive" + i));
+            }
+            store.delete(5);
+            Assert.assertEquals(4, store.exportTo(archive, true, true));
+
+            Assert.assertEquals(4, copy.importFrom(archive, NamedEntity.class));
+            Map<Integer, NamedEntity> entities = copy.getAll();
+            Assert.assertEquals(4, entities.size());
+            Assert.assertEquals("archive3", entities.get(3).getKey());
+            Assert.assertEquals(true, Files.exists(sRoot.resolve("stripe1").resolve(ENTITY_DIR).resolve("R-03.json")));
+            Assert.assertEquals(5, copy.create(new NamedEntity("next")).getId());
+        }
+    }
+
+    /**
+     * Verifies that a striped store is watched by comparing file stamps.
+     * 
+     * @throws PersistenceException persistence error
+     * @throws IOException error closing the store
+     * @throws InterruptedException interrupted while waiting for a change
+     */
+    @Test
+    public void watching()
+        throws PersistenceException, IOException, InterruptedException
+    {
+        try (StripedEntityStore<NamedEntity> store = new StripedEntityStore<>("Entity", openStripes("W")))
+        {
+            verifyWatch(store, store, () -> new NamedEntity("watch"));
+        }
+    }
+
+    /**
+     * Verifies that every stripe is closed even if closing some of them
+     * fails, and that the first failure is thrown.
+     */
+    @Test
+    public void closeFailures()
+    {
+        AtomicInteger closed = new AtomicInteger();
+        List<EntityDiskStore<NamedEntity>> stripes = new ArrayList<>();
+        for (int i = 0; i < STRIPE_DIRS.size(); i++)
+        {
+            int stripe = i;
+            stripes.add(new EntityDiskStore<NamedEntity>(sRoot.resolve(STRIPE_DIRS.get(i)).resolve(ENTITY_DIR).toString(), "Entity", "C", NamedEntity.class)
+            {
+                @Override
+                public void close()
+                    throws IOException
+                {
+                    closed.incrementAndGet();
+                    if (stripe != 1)
+                    {
+                        throw new IOException("Failed: " + stripe);
+                    }
+                }
+            });
+        }
+        StripedEntityStore<NamedEntity> store = new StripedEntityStore<>("Entity", stripes);
+        try
+        {
+            store.close();
+            Assert.fail("Expected close to fail");
+        }
+        catch (IOException e)
+        {
+            Assert.assertEquals("Failed: 0", e.getMessage());
+            Assert.assertEquals(1, e.getSuppressed().length);
+            Assert.assertEquals("Failed: 2", e.getSuppressed()[0].getMessage());
+        }
+        Assert.assertEquals(3, closed.get());
+    }
+
+    /**
+     * Opens a disk store in each root with the given prefix.
+     * 
+     * @param prefix the prefix to use
+     * 
+     * @return The stores.
+     */
+    private static List<EntityDiskStore<NamedEntity>> openStripes(String prefix)
+    {
+        List<EntityDiskStore<NamedEntity>> stripes = new ArrayList<>();
+        for (String stripe : STRIPE_DIRS)
+        {
+            stripes.add(new EntityDiskStore<>(sRoot.resolve(stripe).resolve(ENTITY_DIR).toString(), "Entity", prefix, NamedEntity.class));
+        }
+        return stripes;
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2018 shawware.com.au
+ *
+ * License: GNU General Public License V3 (or later)
+ * https://www.gnu.org/copyleft/gpl.html
+ */
+
+package au.com.shawware.util.persistence;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Exercise the tiered persistence store.
+ *
+ * @author <a href="mailto:david.shaw@shawware.com.au">David Shaw</a>
+ */
+@SuppressWarnings({ "nls", "boxing" })
+public class TieredPersistenceUnitTest extends AbstractPersistenceUnitTest
+{
+    /** Tiered entity sub-directory. */
+    private static final String TIERED_DIR = "tiered";
+    /** Bulk operation sub-directory. */
+    private static final String BULK_DIR = "tiered-bulk";
+    /** Versioned entity sub-directory. */
+    private static final String VERSION_DIR = "tiered-version";
+    /** Eviction sub-directory. */
+    private static final String EVICTION_DIR = "tiered-eviction";
+    /** Copied entity sub-directory. */
+    private static final String COPIER_DIR = "tiered-copier";
+
+    /**
+     * Setup test fixtures and the like before all tests.
+     *
+     * @throws IOException file error
+     */
+    @BeforeClass
+    public static void setup()
+        throws IOException
+    {
+        Files.createDirectory(sRoot.resolve(TIERED_DIR));
+        Files.createDirectory(sRoot.resolve(BULK_DIR));
+        Files.createDirectory(sRoot.resolve(VERSION_DIR));
+        Files.createDirectory(sRoot.resolve(EVICTION_DIR));
+        Files.createDirectory(sRoot.resolve(COPIER_DIR));
+    }
+
+    /**
+     * Verifies that entities are promoted, kept current and reported.
+     *
+     * @throws PersistenceException persistence error
+     * @throws IOException error closing the store
+     */
+    @Test
+    public void tiering()
+        throws PersistenceException, IOException
+    {
+        String directory = sRoot.resolve(TIERED_DIR).toString();
+        // Promote in the calling thread so that the outcome is predictable.
+        try (TieredEntityStore<NamedEntity> store = new TieredEntityStore<>(new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class), 4096, Runnable::run))
+        {
+            verifyBasicStorage(store, new NamedEntity("tiered"));
+            Assert.assertEquals(1, store.getColdHits());
+            Assert.assertEquals(1, store.getHotSize());
+            Assert.assertTrue(store.getHotBytes() > 0);
+
+            // Each retrieval gets a copy of its own.
+            NamedEntity e1 = store.get(1);
+            NamedEntity e2 = store.get(1);
+            Assert.assertNotSame(e1, e2);
+            Assert.assertEquals(e1.toString(), e2.toString());
+            Assert.assertEquals(2, store.getHotHits());
+            Assert.assertEquals(2.0 / 3, store.getHotHitRate(), 0.001);
+            e2.setKey("unsaved");
+            Assert.assertEquals("tiered", store.get(1).getKey());
+
+            // Writes go through to the cold tier and replace the hot entity.
+            NamedEntity updated = new NamedEntity(1, "updated");
+            store.update(updated);
+            updated.setKey("unsaved");
+            Assert.assertEquals("updated", store.get(1).getKey());
+            Assert.assertEquals(4, store.getHotHits());
+            Assert.assertEquals("updated", store.getStore().get(1).getKey());
+
+            store.delete(1);
+            Assert.assertEquals(0, store.getHotSize());
+            Assert.assertEquals(0, store.getHotBytes());
+            verifyCheckedExceptionThrown(() -> store.get(1), PersistenceException.class, "Error accessing Entity: 1");
+        }
+    }
+
+    /**
+     * Verifies the bulk operations, which mix hot and cold entities.
+     *
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void bulkOperations()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(BULK_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        TieredEntityStore<NamedEntity> store = new TieredEntityStore<>(disk, 4096, Runnable::run);
+        verifyBatchOperations(store, () -> new NamedEntity("bulk"));
+        Assert.assertTrue(store.getHotHits() > 0);
+        Assert.assertTrue(store.getColdHits() > 0);
+    }
+
+    /**
+     * Verifies that stale copies of hot entities fail the version check.
+     *
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void versioning()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(VERSION_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        verifyVersioning(new TieredEntityStore<>(disk, 4096, Runnable::run), () -> new NamedEntity("versioned"));
+    }
+
+    /**
+     * Verifies that the least used entities are demoted to make room for
+     * more frequently used ones, within the heap bound.
+     *
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void eviction()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(EVICTION_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        for (int i = 1; i <= 3; i++)
+        {
+            disk.create(new NamedEntity("entity-" + i));
+        }
+
+        // Measure an entity, then allow room for two.
+        TieredEntityStore<NamedEntity> measure = new TieredEntityStore<>(disk, 4096, Runnable::run);
+        measure.get(1);
+        long size = measure.getHotBytes();
+        TieredEntityStore<NamedEntity> store = new TieredEntityStore<>(disk, (2 * size) + (size / 2), Runnable::run);
+
+        for (int i = 0; i < 3; i++)
+        {
+            store.get(1);
+            store.get(2);
+        }
+        Assert.assertEquals(2, store.getHotSize());
+        Assert.assertEquals(2, store.getPromotions());
+
+        // An entity used less often than the hot ones stays cold.
+        store.get(3);
+        Assert.assertEquals(2, store.getHotSize());
+        Assert.assertEquals(0, store.getDemotions());
+
+        // Until it has been used more often.
+        for (int i = 0; i < 3; i++)
+        {
+            store.get(3);
+        }
+        Assert.assertEquals(2, store.getHotSize());
+        Assert.assertEquals(1, store.getDemotions());
+        Assert.assertEquals(3, store.getPromotions());
+        Assert.assertTrue(store.getHotBytes() <= (2 * size) + (size / 2));
+        Assert.assertEquals(4, store.getHotHits());
+        Assert.assertEquals(6, store.getColdHits());
+
+        store.demoteAll();
+        Assert.assertEquals(0, store.getHotSize());
+        Assert.assertEquals(0, store.getHotBytes());
+    }
+
+    /**
+     * Verifies that hot entities are handed out through the supplied copier.
+     *
+     * @throws PersistenceException persistence error
+     */
+    @Test
+    public void copier()
+        throws PersistenceException
+    {
+        String directory = sRoot.resolve(COPIER_DIR).toString();
+        IEntityStore<NamedEntity> disk = new EntityDiskStore<>(directory, "Entity", "E", NamedEntity.class);
+        AtomicInteger copies = new AtomicInteger();
+        TieredEntityStore<NamedEntity> store = new TieredEntityStore<>(disk, 4096, Runnable::run, entity -> {
+            copies.incrementAndGet();
+            NamedEntity copy = new NamedEntity(entity.getId(), entity.getKey());
+            copy.setVersion(entity.getVersion());
+            return copy;
+        });
+        NamedEntity created = store.create(new NamedEntity("copied"));
+
+        // Copied once on promotion, then once per hit.
+        store.get(created.getId());
+        Assert.assertEquals(1, copies.get());
+        NamedEntity e1 = store.get(created.getId());
+        NamedEntity e2 = store.get(created.getId());
+        Assert.assertEquals(3, copies.get());
+        Assert.assertNotSame(e1, e2);
+        Assert.assertEquals(AbstractEntity.INITIAL_VERSION, e1.getVersion());
+        e1.setKey("unsaved");
+        Assert.assertEquals("copied", store.get(created.getId()).getKey());
+        Assert.assertEquals(3, store.getHotHits());
+    }
+}